@@ -0,0 +1,97 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
+
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy.EvictionPolicy;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy.LruPolicy;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 将图片的url转为磁盘缓存的key：url的SHA-256摘要的十六进制形式，固定64个字符，只含[0-9a-f]，
+ * 不同的url几乎不可能得到相同的key，也不依赖url的格式
+ * 列表滑动时同一个url会被反复查询，因此最近算过的摘要保存在一个小的LRU缓存中
+ *
+ * @author WizardK
+ * @date 2021-05-10
+ */
+public class DiskCacheKeyGenerator {
+
+    /**
+     * key的长度，SHA-256为32字节，十六进制为64个字符
+     */
+    public static final int KEY_LENGTH = 64;
+
+    /**
+     * 默认缓存的摘要数量，约为一屏半到两屏的图片数的数倍
+     */
+    private static final int DEFAULT_CACHE_COUNT = 256;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * MessageDigest不是线程安全的，每个加载线程各用一个
+     */
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);//所有Android版本都支持SHA-256
+            }
+        }
+    };
+
+    /**
+     * url -> key，每个条目的权重为1
+     */
+    private final EvictionPolicy<String, String> keys;
+
+    public DiskCacheKeyGenerator() {
+        this(DEFAULT_CACHE_COUNT);
+    }
+
+    /**
+     * @param cacheCount 最多缓存的摘要数量
+     */
+    public DiskCacheKeyGenerator(int cacheCount) {
+        keys = new LruPolicy<>(cacheCount, new EvictionPolicy.Weigher<String, String>() {
+            @Override
+            public int weigh(String url, String key) {
+                return 1;
+            }
+        }, null);
+    }
+
+    /**
+     * @param url 图片的url
+     *
+     * @return 返回url对应的磁盘缓存key
+     */
+    public String generate(String url) {
+        if (url == null) {
+            throw new IllegalArgumentException("the url must not be null !");
+        }
+        String key = keys.get(url);
+        if (key == null) {
+            key = digest(url);
+            keys.put(url, key);//并发时可能重复计算，但结果相同
+        }
+        return key;
+    }
+
+    /**
+     * 计算url的SHA-256摘要，不经过缓存
+     */
+    public static String digest(String url) {
+        byte[] hash = DIGEST.get().digest(url.getBytes(UTF_8));
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,931 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 有容量上限的磁盘LRU缓存，每个key对应目录下的一个文件；可按key的前缀将文件分散到多级子目录中（见{@link #open(File, int, long, int)}），
+ * 避免单个目录中文件过多导致列目录和查找文件变慢
+ * 所有的写入、读取和删除都会追加记录到日志文件{@link #JOURNAL_FILE}中，重启后通过回放日志恢复条目及其访问顺序；
+ * 写入时先写到临时文件，{@link Editor#commit()}时先将临时文件刷到磁盘再重命名为正式文件，因此读到的文件一定是完整的，
+ * 即使重命名后立刻断电也不会留下被截断的文件
+ * 总大小超出上限时在后台线程中从最久未访问的条目开始逐个淘汰；若日志损坏则根据目录中现有的文件重建日志
+ *
+ * 日志格式：
+ * <pre>
+ *     photobrowser.DiskLruCache
+ *     1
+ *     (appVersion)
+ *
+ *     DIRTY key        开始写入key
+ *     CLEAN key size [metadata]   key写入完成，文件大小为size，可附带一段元数据（见{@link Editor#setMetadata(String)}）
+ *     REMOVE key       key被删除或写入失败
+ *     READ key         key被读取，用于记录访问顺序
+ * </pre>
+ *
+ * @author WizardK
+ * @date 2021-05-09
+ */
+public final class DiskLruCache implements Closeable {
+
+    private static final String TAG = "DiskLruCache";
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+    static final String MAGIC = "photobrowser.DiskLruCache";
+    static final String VERSION = "1";
+
+    /**
+     * 未提交的写入所用临时文件的后缀
+     */
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    private static final Pattern LEGAL_KEY_PATTERN = Pattern.compile("[a-zA-Z0-9_.%-]{1,120}");
+
+    /**
+     * 元数据只能是不含空格的可打印ASCII字符
+     */
+    private static final Pattern LEGAL_METADATA_PATTERN = Pattern.compile("[\\x21-\\x7e]{1,120}");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * 日志中多余的记录数超过此值（且多于条目数）时重写日志
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    /**
+     * 每一级子目录名取key的字符数，十六进制的key每级最多分出16个子目录，两级共256个，
+     * 按磁盘缓存约1000张图片计算每个目录只有几个文件，又不会建出大量几乎为空的目录
+     */
+    static final int SHARD_NAME_LENGTH = 1;
+
+    /**
+     * 最多支持的子目录层数
+     */
+    static final int MAX_SHARD_DEPTH = 3;
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final File journalFileBackup;
+    private final int appVersion;
+
+    /**
+     * 子目录的层数，为0时所有文件直接放在{@link #directory}中
+     */
+    private final int shardDepth;
+    private long maxSize;
+    private long size = 0;
+    private Writer journalWriter;
+
+    /**
+     * 按访问顺序排列的条目，最久未访问的在最前面
+     */
+    private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private int redundantOpCount;
+
+    private DiskStorage.RemovalListener removalListener;
+
+    /**
+     * 执行淘汰和重写日志的后台线程
+     */
+    private final ThreadPoolExecutor executorService = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DiskLruCache-cleanup");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Runnable cleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                trimToSize();
+                synchronized (DiskLruCache.this) {
+                    if (journalWriter != null && journalRebuildRequired()) {
+                        rebuildJournal();
+                        redundantOpCount = 0;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private DiskLruCache(File directory, int appVersion, long maxSize, int shardDepth) {
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.shardDepth = shardDepth;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+        this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 打开directory中的缓存，若不存在则创建；若日志损坏则根据目录中的文件重建
+     *
+     * @param directory 缓存目录，目录中不应放置其他文件
+     * @param appVersion 缓存格式的版本，与日志中记录的不一致时会根据目录中的文件重建
+     * @param maxSize 缓存的最大字节数(以字节B为单位)
+     *
+     * @return 返回打开的缓存
+     *
+     * @throws IOException 无法创建目录或日志时抛出
+     */
+    public static DiskLruCache open(File directory, int appVersion, long maxSize) throws IOException {
+        return open(directory, appVersion, maxSize, 0);
+    }
+
+    /**
+     * 与{@link #open(File, int, long)}相同，但文件按key的前缀放在shardDepth级子目录中，
+     * 如shardDepth = 2时key"3fa9c1..."的文件为"3/f/3fa9c1..."；此时key的长度必须大于shardDepth * {@link #SHARD_NAME_LENGTH}
+     *
+     * @param shardDepth 子目录的层数，0表示不分目录，最大为{@link #MAX_SHARD_DEPTH}；
+     *                   日志中只记录key，改变层数时必须同时改变appVersion，让缓存根据目录中的文件重建
+     */
+    public static DiskLruCache open(File directory, int appVersion, long maxSize, int shardDepth) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must larger than 0");
+        }
+        if (shardDepth < 0 || shardDepth > MAX_SHARD_DEPTH) {
+            throw new IllegalArgumentException("shardDepth must between 0 and " + MAX_SHARD_DEPTH);
+        }
+
+        //重写日志时崩溃可能只留下备份文件
+        File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
+        if (backupFile.exists()) {
+            File journalFile = new File(directory, JOURNAL_FILE);
+            if (journalFile.exists()) {
+                backupFile.delete();
+            } else {
+                renameTo(backupFile, journalFile, false);
+            }
+        }
+
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, maxSize, shardDepth);
+        if (cache.journalFile.exists()) {
+            try {
+                boolean torn = cache.readJournal();
+                int missing = cache.processJournal();
+                if (torn || missing > 0) {
+                    //不能在残缺的行后面继续追加，否则下一条记录会与它连成一行；文件已不存在的条目也从日志中去掉
+                    cache.rebuildJournal();
+                    cache.redundantOpCount = 0;
+                } else {
+                    cache.journalWriter = new BufferedWriter(
+                            new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), US_ASCII));
+                }
+                if (cache.size > cache.maxSize) {
+                    cache.executorService.execute(cache.cleanupRunnable);//容量可能比上次打开时变小了
+                }
+                return cache;
+            } catch (IOException e) {
+                MyLog.w(TAG, "open: journal " + cache.journalFile + " is corrupt: " + e.getMessage() + ", rebuilding");
+                cache.lruEntries.clear();
+                cache.size = 0;
+                cache.redundantOpCount = 0;
+            }
+        }
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("failed to create cache directory " + directory);
+        }
+        cache.rebuildFromDirectory();
+        cache.rebuildJournal();
+        cache.executorService.execute(cache.cleanupRunnable);//重建时可能已超出容量
+        return cache;
+    }
+
+    /**
+     * 返回key对应的文件，并记录一次访问；只返回已经提交完成的文件
+     *
+     * @return 若key存在则返回其文件，否则返回null
+     */
+    public synchronized File get(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.readable) {
+            return null;
+        }
+
+        redundantOpCount++;
+        journalWriter.append(READ + ' ' + key + '\n');
+        journalWriter.flush();//进程被杀时不丢失访问顺序；读取文件本身的开销远大于这一次写入
+        if (journalRebuildRequired()) {
+            executorService.execute(cleanupRunnable);
+        }
+        return entry.getCleanFile();
+    }
+
+    /**
+     * 开始写入key
+     *
+     * @return 返回用于写入的{@link Editor}，若key正在被其他线程写入则返回null
+     */
+    public synchronized Editor edit(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        } else if (entry.currentEditor != null) {
+            return null;
+        }
+
+        File parent = entry.getParentDirectory();
+        if (!parent.exists() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("failed to create shard directory " + parent);
+        }
+        Editor editor = new Editor(entry);
+        entry.currentEditor = editor;
+
+        //先将DIRTY写入日志，防止崩溃后残留的临时文件无法被清理
+        journalWriter.write(DIRTY + ' ' + key + '\n');
+        journalWriter.flush();
+        return editor;
+    }
+
+    /**
+     * @return 返回所有已提交过的key的快照，不记录访问也不改变访问顺序
+     */
+    public synchronized Set<String> keys() {
+        checkNotClosed();
+        Set<String> keys = new HashSet<>();
+        for (Entry entry : lruEntries.values()) {
+            if (entry.readable) {
+                keys.add(entry.key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return 返回所有已提交的key及其文件大小的快照，不会改变访问顺序
+     */
+    public synchronized Map<String, Long> entries() {
+        checkNotClosed();
+        Map<String, Long> entries = new HashMap<>();
+        for (Entry entry : lruEntries.values()) {
+            if (entry.readable) {
+                entries.put(entry.key, entry.length);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 设置条目被删除或淘汰时的监听器，在持有锁时回调
+     */
+    public synchronized void setRemovalListener(DiskStorage.RemovalListener listener) {
+        this.removalListener = listener;
+    }
+
+    /**
+     * 返回key最近一次提交时附带的元数据；会像{@link #get(String)}一样把条目移到最近访问的位置，但不写入日志，
+     * 通常与读取文件内容一起调用
+     *
+     * @return 若key存在且提交时设置过元数据则返回元数据，否则返回null
+     */
+    public synchronized String getMetadata(String key) {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        return entry == null || !entry.readable ? null : entry.metadata;
+    }
+
+    /**
+     * 删除key对应的条目，正在写入的条目不能删除
+     *
+     * @return 若删除成功则返回true
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || entry.currentEditor != null) {
+            return false;
+        }
+        removeEntryLocked(entry);
+        if (journalRebuildRequired()) {
+            executorService.execute(cleanupRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * 删除所有不在写入中的条目
+     */
+    public synchronized void evictAll() throws IOException {
+        checkNotClosed();
+        for (Entry entry : new ArrayList<>(lruEntries.values())) {
+            if (entry.currentEditor == null) {
+                removeEntryLocked(entry);
+            }
+        }
+        rebuildJournal();
+        redundantOpCount = 0;
+    }
+
+    /**
+     * 删除目录中没有正在进行的写入与之对应的临时文件，如进程在写入中被杀、而日志中的DIRTY记录又已被重写掉时残留的文件；
+     * 会遍历整个缓存目录，应在后台线程中调用
+     *
+     * @return 返回删除的文件数
+     */
+    public int deleteOrphanedTempFiles() {
+        List<File> tempFiles = new ArrayList<>();
+        collectTempFiles(directory, 0, tempFiles);
+        int deleted = 0;
+        for (File file : tempFiles) {
+            String name = file.getName();
+            String key = name.substring(0, name.length() - TEMP_SUFFIX.length());
+            synchronized (this) {
+                Entry entry = lruEntries.get(key);
+                if ((entry == null || entry.currentEditor == null) && file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private void collectTempFiles(File dir, int depth, List<File> tempFiles) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (depth < shardDepth) {
+                    collectTempFiles(file, depth + 1, tempFiles);
+                }
+            } else if (file.getName().endsWith(TEMP_SUFFIX) && !file.getName().equals(JOURNAL_FILE_TEMP)) {
+                tempFiles.add(file);
+            }
+        }
+    }
+
+    /**
+     * @return 返回当前所有条目占用的字节数(以字节B为单位)
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return 返回已提交的条目数
+     */
+    public synchronized int entryCount() {
+        int count = 0;
+        for (Entry entry : lruEntries.values()) {
+            if (entry.readable) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 修改缓存的最大字节数，超出部分在后台淘汰
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        executorService.execute(cleanupRunnable);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized boolean isClosed() {
+        return journalWriter == null;
+    }
+
+    /**
+     * 将日志缓冲区写入磁盘
+     */
+    public synchronized void flush() throws IOException {
+        checkNotClosed();
+        journalWriter.flush();
+    }
+
+    /**
+     * 关闭缓存，未提交的写入会被放弃
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (journalWriter == null) {
+            return;
+        }
+        for (Entry entry : new ArrayList<>(lruEntries.values())) {
+            if (entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
+        journalWriter.close();
+        journalWriter = null;
+        executorService.shutdown();
+    }
+
+    /**
+     * 在后台线程中逐个淘汰最久未访问的条目，每淘汰一个就释放一次锁，不会长时间阻塞读写
+     */
+    private void trimToSize() throws IOException {
+        while (true) {
+            synchronized (this) {
+                if (journalWriter == null || size <= maxSize) {
+                    return;
+                }
+                Entry eldest = null;
+                for (Entry entry : lruEntries.values()) {
+                    if (entry.currentEditor == null) {
+                        eldest = entry;
+                        break;
+                    }
+                }
+                if (eldest == null) {
+                    return;//剩下的都在写入中
+                }
+                MyLog.d(TAG, "trimToSize: evict " + eldest.key + ", size: " + size + ", maxSize: " + maxSize);
+                removeEntryLocked(eldest);
+            }
+        }
+    }
+
+    private void removeEntryLocked(Entry entry) throws IOException {
+        File file = entry.getCleanFile();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("failed to delete " + file);
+        }
+        size -= entry.length;
+        entry.length = 0;
+        redundantOpCount++;
+        journalWriter.append(REMOVE + ' ' + entry.key + '\n');
+        journalWriter.flush();//文件已删除，记录也要落到日志中，否则进程被杀后重新打开时条目仍在
+        lruEntries.remove(entry.key);
+        if (removalListener != null) {
+            removalListener.onRemoved(entry.key);
+        }
+    }
+
+    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+        Entry entry = editor.entry;
+        if (entry.currentEditor != editor) {
+            throw new IllegalStateException("edit of " + entry.key + " is already completed");
+        }
+
+        File dirty = entry.getDirtyFile();
+        if (success && dirty.exists()) {
+            File clean = entry.getCleanFile();
+            renameTo(dirty, clean, true);
+            long oldLength = entry.length;
+            entry.length = clean.length();
+            entry.metadata = editor.metadata;
+            size = size - oldLength + entry.length;
+            entry.readable = true;
+        } else {
+            deleteIfExists(dirty);
+            success = false;
+        }
+        entry.currentEditor = null;
+
+        if (journalWriter == null) {
+            return;//已关闭
+        }
+        redundantOpCount++;
+        if (success) {
+            journalWriter.append(cleanLine(entry));
+        } else if (!entry.readable) {
+            lruEntries.remove(entry.key);
+            journalWriter.append(REMOVE + ' ' + entry.key + '\n');
+        }
+        journalWriter.flush();
+
+        if (size > maxSize || journalRebuildRequired()) {
+            executorService.execute(cleanupRunnable);
+        }
+    }
+
+    /**
+     * 回放日志；进程在追加记录时被杀可能留下没有换行符的最后一行，此时把它当作文件末尾，保留之前回放的所有条目
+     *
+     * @return 若最后一行残缺则返回true，调用者应重写日志
+     *
+     * @throws IOException 日志头不匹配或中间有无法解析的行时抛出
+     */
+    private boolean readJournal() throws IOException {
+        boolean lastLineTerminated = endsWithNewline(journalFile);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), US_ASCII));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String appVersionString = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version)
+                    || !Integer.toString(appVersion).equals(appVersionString) || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version + ", " + appVersionString + "]");
+            }
+
+            int lineCount = 0;
+            boolean torn = false;
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null && !lastLineTerminated) {
+                    MyLog.w(TAG, "readJournal: dropping torn last line: " + line);
+                    torn = true;
+                    break;
+                }
+                readJournalLine(line);
+                lineCount++;
+                line = next;
+            }
+            redundantOpCount = lineCount - lruEntries.size();
+            return torn;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return 若file为空或最后一个字节是换行符则返回true
+     */
+    private static boolean endsWithNewline(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+        String op = parts[0];
+        String key = parts[1];
+        if (op.equals(REMOVE) && parts.length == 2) {
+            lruEntries.remove(key);
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (op.equals(CLEAN) && (parts.length == 3 || parts.length == 4)) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.metadata = parts.length == 4 ? parts[3] : null;
+            try {
+                entry.length = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+        } else if (op.equals(DIRTY) && parts.length == 2) {
+            entry.currentEditor = new Editor(entry);
+        } else if (!(op.equals(READ) && parts.length == 2)) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * 统计总大小，并删除上次运行时没有完成的写入（只有DIRTY没有CLEAN或REMOVE）；
+     * 同时丢弃文件已不存在的条目，如删除文件后、REMOVE记录写入日志前进程被杀，否则这些条目会计入总大小并在读取时失败
+     *
+     * @return 返回因文件不存在而丢弃的条目数
+     */
+    private int processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        int missing = 0;
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.currentEditor != null) {
+                entry.currentEditor = null;
+                deleteIfExists(entry.getDirtyFile());
+                if (!entry.readable) {
+                    deleteIfExists(entry.getCleanFile());
+                    i.remove();
+                    continue;
+                }
+                //旧版本仍然完整，保留
+            }
+            if (!entry.getCleanFile().exists()) {
+                MyLog.w(TAG, "processJournal: file of " + entry.key + " is missing, drop it");
+                i.remove();
+                missing++;
+                continue;
+            }
+            size += entry.length;
+        }
+        return missing;
+    }
+
+    /**
+     * 日志不可用时，把目录中已有的完整文件作为条目，按最后修改时间近似恢复访问顺序，并删除残留的临时文件
+     */
+    private void rebuildFromDirectory() {
+        List<File> entryFiles = new ArrayList<>();
+        collectEntryFiles(directory, 0, entryFiles);
+        //lastModified是一次系统调用，先取出来再排序，避免在比较时重复调用
+        final Map<File, Long> modifiedTimes = new HashMap<>();
+        for (File file : entryFiles) {
+            modifiedTimes.put(file, file.lastModified());
+        }
+        Collections.sort(entryFiles, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(modifiedTimes.get(a), modifiedTimes.get(b));
+            }
+        });
+        for (File file : entryFiles) {
+            Entry entry = new Entry(file.getName());
+            entry.readable = true;
+            entry.length = file.length();
+            lruEntries.put(entry.key, entry);
+            size += entry.length;
+        }
+        MyLog.d(TAG, "rebuildFromDirectory: " + lruEntries.size() + " entries, " + size + " bytes");
+    }
+
+    /**
+     * 收集dir（第depth级子目录）中的条目文件，临时文件、不合法的文件以及放错位置的文件都会被删除
+     */
+    private void collectEntryFiles(File dir, int depth, List<File> entryFiles) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (depth == 0 && (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TEMP)
+                    || name.equals(JOURNAL_FILE_BACKUP))) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                if (depth < shardDepth) {
+                    collectEntryFiles(file, depth + 1, entryFiles);
+                }
+                continue;//不认识的目录交给调用者处理
+            }
+            if (depth != shardDepth || name.endsWith(TEMP_SUFFIX) || !isLegalKey(name)
+                    || !new Entry(name).getParentDirectory().equals(dir)) {
+                file.delete();
+                continue;
+            }
+            entryFiles.add(file);
+        }
+    }
+
+    /**
+     * 返回在shardDepth级子目录的布局下，key的文件所在的目录，用于在缓存打开前迁移文件
+     *
+     * @param directory 缓存目录
+     * @param key 条目的key，长度须大于shardDepth * {@link #SHARD_NAME_LENGTH}
+     * @param shardDepth 子目录的层数
+     */
+    static File shardDirectory(File directory, String key, int shardDepth) {
+        File parent = directory;
+        for (int level = 0; level < shardDepth; level++) {
+            int start = level * SHARD_NAME_LENGTH;
+            parent = new File(parent, key.substring(start, start + SHARD_NAME_LENGTH));
+        }
+        return parent;
+    }
+
+    private boolean isLegalKey(String key) {
+        return LEGAL_KEY_PATTERN.matcher(key).matches() && key.length() > shardDepth * SHARD_NAME_LENGTH;
+    }
+
+    /**
+     * 根据内存中的条目重写一份精简的日志，先写到临时文件再替换，过程中崩溃也不会丢失旧日志
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFileTmp), US_ASCII));
+        try {
+            writer.write(MAGIC + "\n" + VERSION + "\n" + appVersion + "\n\n");
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                } else {
+                    writer.write(cleanLine(entry));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (journalFile.exists()) {
+            renameTo(journalFile, journalFileBackup, true);
+        }
+        renameTo(journalFileTmp, journalFile, false);
+        journalFileBackup.delete();
+
+        journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), US_ASCII));
+    }
+
+    private boolean journalRebuildRequired() {
+        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= lruEntries.size();
+    }
+
+    private void checkNotClosed() {
+        if (journalWriter == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    private void validateKey(String key) {
+        if (key == null || !isLegalKey(key)) {
+            throw new IllegalArgumentException("keys must match regex " + LEGAL_KEY_PATTERN
+                    + " and be longer than " + shardDepth * SHARD_NAME_LENGTH + ": \"" + key + "\"");
+        }
+    }
+
+    private static String cleanLine(Entry entry) {
+        return CLEAN + ' ' + entry.key + ' ' + entry.length + (entry.metadata != null ? ' ' + entry.metadata : "") + '\n';
+    }
+
+    /**
+     * 将文件的内容同步到磁盘，文件不存在时不做任何事
+     */
+    private static void syncFile(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void deleteIfExists(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("failed to delete " + file);
+        }
+    }
+
+    private static void renameTo(File from, File to, boolean deleteDestination) throws IOException {
+        if (deleteDestination) {
+            deleteIfExists(to);
+        }
+        if (!from.renameTo(to)) {
+            throw new IOException("failed to rename " + from + " to " + to);
+        }
+    }
+
+    /**
+     * 一次写入操作，写完后必须调用{@link #commit()}或{@link #abort()}之一
+     */
+    public final class Editor {
+
+        private final Entry entry;
+        private String metadata;
+
+        private Editor(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * 设置随本次写入一起提交的元数据，会记录在日志的CLEAN行中，读取时不必打开文件，见{@link #getMetadata(String)}
+         *
+         * @param metadata 不含空格的可打印ASCII字符串，最长120个字符；为null表示没有元数据
+         */
+        public void setMetadata(String metadata) {
+            if (metadata != null && !LEGAL_METADATA_PATTERN.matcher(metadata).matches()) {
+                throw new IllegalArgumentException("metadata must match regex " + LEGAL_METADATA_PATTERN + ": \"" + metadata + "\"");
+            }
+            this.metadata = metadata;
+        }
+
+        /**
+         * @return 返回写入用的临时文件，提交后才会重命名为正式文件
+         */
+        public File getFile() {
+            return entry.getDirtyFile();
+        }
+
+        public OutputStream newOutputStream() throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException("edit of " + entry.key + " is already completed");
+                }
+            }
+            return new FileOutputStream(entry.getDirtyFile());
+        }
+
+        /**
+         * 提交写入，临时文件重命名为正式文件后才对读取可见
+         */
+        public void commit() throws IOException {
+            syncFile(entry.getDirtyFile());//在锁外刷盘，不阻塞其他读写
+            completeEdit(this, true);
+        }
+
+        /**
+         * 放弃写入并删除临时文件
+         */
+        public void abort() throws IOException {
+            completeEdit(this, false);
+        }
+    }
+
+    private final class Entry {
+        private final String key;
+
+        /**
+         * 正式文件的大小(以字节B为单位)
+         */
+        private long length;
+
+        /**
+         * 是否已至少提交过一次
+         */
+        private boolean readable;
+
+        /**
+         * 最近一次提交时附带的元数据，没有则为null；根据目录重建时会丢失
+         */
+        private String metadata;
+
+        /**
+         * 正在进行的写入，没有则为null
+         */
+        private Editor currentEditor;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+        File getParentDirectory() {
+            return shardDirectory(directory, key, shardDepth);
+        }
+
+        File getCleanFile() {
+            return new File(getParentDirectory(), key);
+        }
+
+        File getDirtyFile() {
+            return new File(getParentDirectory(), key + TEMP_SUFFIX);
+        }
+    }
+}
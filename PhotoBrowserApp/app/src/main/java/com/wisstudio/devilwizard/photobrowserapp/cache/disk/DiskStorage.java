@@ -0,0 +1,90 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 文件缓存{@link FileCache}底层的存储方式，key由{@link DiskCacheKeyGenerator}生成
+ * 目前有两种实现：每张图片一个文件的{@link FileStorage}，以及多张图片追加在少数几个大文件中的{@link PackFileStorage}
+ * 实现类必须是线程安全的，所有方法都可能在加载线程中并发调用
+ *
+ * @author WizardK
+ * @date 2021-05-11
+ */
+public interface DiskStorage extends Closeable {
+
+    /**
+     * 读出key对应的全部内容，并记录一次访问
+     *
+     * @return 返回完整写入过的内容，若key不存在则返回null
+     */
+    byte[] read(String key) throws IOException;
+
+    /**
+     * 写入key对应的内容，替换原有的内容；只有返回true后内容才一定完整地保存在磁盘上
+     *
+     * @param metadata 随内容一起保存的元数据（不含空格的可打印ASCII字符），可为null
+     *
+     * @return 写入成功则返回true；若其他线程正在写入同一个key则返回false
+     */
+    boolean write(String key, byte[] data, String metadata) throws IOException;
+
+    /**
+     * @return 返回写入时保存的元数据，不需要读出内容；若key不存在或没有元数据则返回null
+     */
+    String getMetadata(String key);
+
+    /**
+     * @return 返回所有已完整写入的key的快照，不记录访问
+     */
+    Set<String> keys();
+
+    /**
+     * @return 返回所有已完整写入的key及其内容大小(以字节B为单位)的快照，不记录访问
+     */
+    Map<String, Long> entries();
+
+    /**
+     * 设置条目被删除时的监听器，包括主动删除、读取时发现损坏和超出容量时的淘汰；{@link #clear()}时不一定逐个回调
+     */
+    void setRemovalListener(RemovalListener listener);
+
+    /**
+     * @return 返回key所在位置的描述，如文件的绝对路径，用于记录到数据库中
+     */
+    String getLocation(String key);
+
+    /**
+     * @return 若删除成功则返回true
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * 删除所有内容
+     */
+    void clear() throws IOException;
+
+    /**
+     * 清理崩溃后残留的、不属于任何条目的数据，会遍历磁盘，应在后台线程中调用
+     */
+    void sweep() throws IOException;
+
+    /**
+     * @return 返回所有条目的内容占用的字节数(以字节B为单位)
+     */
+    long size();
+
+    /**
+     * @return 返回容量(以字节B为单位)
+     */
+    long getMaxSize();
+
+    /**
+     * 条目被删除时的回调，在存储内部持有锁时调用，不能在其中访问存储或做耗时操作
+     */
+    interface RemovalListener {
+        void onRemoved(String key);
+    }
+}
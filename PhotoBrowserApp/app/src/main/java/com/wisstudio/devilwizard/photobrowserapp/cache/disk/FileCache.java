@@ -3,17 +3,30 @@ package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Bitmap.Config;
 
 import com.wisstudio.devilwizard.photobrowserapp.cache.memory.MemoryCache;
-import com.wisstudio.devilwizard.photobrowserapp.util.image.load.ImageLoader;
+import com.wisstudio.devilwizard.photobrowserapp.db.PhotoDataBaseManager;
+import com.wisstudio.devilwizard.photobrowserapp.util.image.load.DecodeConfigPolicy;
 import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * FileCache类用于将图片缓存至本地
+ * FileCache类用于将图片缓存至本地，容量上限为{@link #DEFAULT_MAX_CACHE_SIZE}，超出时淘汰最久未访问的图片
+ * key为url的摘要（见{@link DiskCacheKeyGenerator}），具体的存储方式由{@link StorageType}决定
+ * 存储在后台线程中打开，打开后把所有条目及其大小放入内存索引，之后写入、删除和淘汰时同步更新，
+ * 判断图片是否已缓存({@link #contains(String)})只需查一次哈希表，不访问磁盘也不加锁
  *
  * @author WizardK
  * @date 2021-04-06
@@ -24,96 +37,450 @@ public class FileCache {
      * 默认的图片缓存路径"/data/data/com.wisstudio.devilwizard.photobrowserapp/cache/imgCache"
      */
     public static final String DEFAULT_CACHE_DIR = "imgCache";
+
+    /**
+     * {@link StorageType#PACK}的段文件所在的目录
+     */
+    public static final String PACK_CACHE_DIR = "imgPack";
+
+    /**
+     * 默认的文件缓存容量(以字节B为单位)，每张缩略图压缩后约50KB，约可缓存1000张
+     */
+    public static final long DEFAULT_MAX_CACHE_SIZE = 50 * 1024 * 1024;
+
+    /**
+     * 缓存格式的版本，文件的存放方式改变时需要增加
+     * 1: 文件名为url2path的结果，全部放在同一个目录中
+     * 2: 文件名为url的SHA-256摘要，分两级子目录存放
+     */
+    private static final int CACHE_VERSION = 2;
+
     private static final String TAG = "FileCache";
 
+    /**
+     * 图片缓存的存储方式
+     */
+    public enum StorageType {
+        /**
+         * 每张图片一个文件，见{@link FileStorage}
+         */
+        PER_FILE,
+        /**
+         * 所有图片追加在少数几个段文件中，见{@link PackFileStorage}
+         */
+        PACK
+    }
+
     /**
      * 图片缓存目录
      */
     private final File mCacheDir;
 
+    /**
+     * 底层的存储，在{@link #storageReady}之后才可访问，打开失败时为null，此时文件缓存不可用
+     */
+    private volatile DiskStorage storage;
+
+    /**
+     * 存储打开并建立索引后计数归零
+     */
+    private final CountDownLatch storageReady = new CountDownLatch(1);
+
+    /**
+     * 已完整写入的条目的内存索引，key -> 内容大小(以字节B为单位)
+     */
+    private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<>();
+
+    /**
+     * 索引中所有条目的总大小(以字节B为单位)
+     */
+    private final AtomicLong indexedBytes = new AtomicLong();
+
+    private final DiskCacheKeyGenerator keyGenerator = new DiskCacheKeyGenerator();
+
+    /**
+     * 使用{@link StorageType#PER_FILE}存储，见{@link #FileCache(Context, PhotoDataBaseManager, StorageType)}
+     */
+    public FileCache(Context context, PhotoDataBaseManager manager) {
+        this(context, manager, StorageType.PER_FILE);
+    }
+
     /**
      * 创建缓存文件目录，默认在手机内部创建，路径为"/data/data/com.wisstudio.devilwizard.photobrowserapp/cache/{@link #DEFAULT_CACHE_DIR}"
+     * 以下都在后台线程中完成，不阻塞调用者：若目录中还有旧版本直接放在目录下的文件，会先把数据库中记录过的文件移动到新的位置
+     * 并更新数据库中的缓存路径；打开存储后建立内存索引，再清理崩溃残留的数据和已不在缓存中的数据库记录
+     * 在此之前调用的读写方法会等待存储打开
      *
      * @param context
      *
+     * @param manager 图片数据库，用于迁移旧版本的缓存文件和清理失效的记录，为null时旧文件会被直接删除
+     *
+     * @param storageType 存储方式
+     *
      */
-    public FileCache(Context context) {
+    public FileCache(Context context, PhotoDataBaseManager manager, StorageType storageType) {
 
         //andriod 10后不允许直接在根目录直接创建目录，为了前后兼容，默认在手机内部新建缓存目录
-        mCacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
+        mCacheDir = new File(context.getCacheDir(), storageType == StorageType.PACK ? PACK_CACHE_DIR : DEFAULT_CACHE_DIR);
+        new Thread(() -> {
+            try {
+                storage = openStorage(storageType, manager);
+            } finally {
+                storageReady.countDown();
+            }
+            sweep(manager);
+        }, "FileCache-init").start();
+
+    }
+
+    /**
+     * 打开存储并建立内存索引，只在初始化线程中调用一次
+     *
+     * @return 返回打开的存储，失败则返回null
+     */
+    private DiskStorage openStorage(StorageType storageType, PhotoDataBaseManager manager) {
+        long start = System.currentTimeMillis();
         if (!mCacheDir.exists()) {
             mCacheDir.mkdirs();//创建目录
         }
+        DiskStorage opened;
+        try {
+            if (storageType == StorageType.PACK) {
+                opened = new PackFileStorage(mCacheDir, DEFAULT_MAX_CACHE_SIZE);
+            } else {
+                migrateLegacyFiles(manager);
+                //版本改变后日志失效，打开时会根据目录中的文件重建，未能迁移的旧文件会被删除
+                opened = new FileStorage(mCacheDir, CACHE_VERSION, DEFAULT_MAX_CACHE_SIZE);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        opened.setRemovalListener(this::removeFromIndex);//先设置监听再取快照，快照之后的淘汰不会漏掉
+        for (Map.Entry<String, Long> entry : opened.entries().entrySet()) {
+            addToIndex(entry.getKey(), entry.getValue());
+        }
+        MyLog.d(TAG, "openStorage: " + index.size() + " entries, " + indexedBytes.get() + " bytes, "
+                + (System.currentTimeMillis() - start) + "ms");
+        return opened;
+    }
+
+    /**
+     * 判断url对应的图片是否已完整缓存，只查找内存索引，不访问磁盘，也不记录访问；存储还未打开时会等待
+     *
+     * @param url 图片的url
+     *
+     * @return 若已缓存则返回true
+     */
+    public boolean contains(String url) {
+        return awaitStorage() != null && index.containsKey(getKey(url));
+    }
+
+    /**
+     * @return 若存储已打开、索引已建立则返回true
+     */
+    public boolean isReady() {
+        return storageReady.getCount() == 0;
+    }
+
+    /**
+     * 读出url对应图片压缩后的全部字节，并记录一次访问
+     *
+     * @param url 图片的url
+     *
+     * @return 若图片已完整缓存则返回其字节，否则返回null
+     */
+    public byte[] read(String url) {
+        DiskStorage storage = awaitStorage();
+        if (storage == null) {
+            return null;
+        }
+        try {
+            String key = getKey(url);
+            byte[] data = storage.read(key);
+            MyLog.d(TAG, "read: " + (data != null));
+            if (data == null) {
+                removeFromIndex(key);//文件可能已在磁盘上丢失
+            }
+            return data;
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
+    /**
+     * 将图片压缩后的字节写入缓存，数据刷到磁盘后才对读取可见；
+     * 只有返回true后图片才一定完整可读，此时才能将图片记录到数据库
+     *
+     * @param url 图片的url
+     *
+     * @param data 图片压缩后的字节
+     *
+     * @return 写入成功则返回true
+     */
+    public boolean put(String url, byte[] data) {
+        return put(url, data, null);
     }
 
     /**
-     * 通过url获取图片缓存路径的{@link File}对象
+     * 与{@link #put(String, byte[])}相同，同时记录图片的宽高和格式，之后解码时可以省去解析文件头的一遍
      *
-     * @param url 图片缓存的路径
+     * @param header 图片的宽高和格式，为null表示不记录
+     */
+    public boolean put(String url, byte[] data, ImageHeader header) {
+        DiskStorage storage = awaitStorage();
+        if (storage == null) {
+            return false;
+        }
+        try {
+            String key = getKey(url);
+            if (!storage.write(key, data, header != null ? header.encode() : null)) {
+                return false;
+            }
+            addToIndex(key, data.length);
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 返回写入时记录的图片宽高和格式，不需要读出图片
      *
-     * @return java.io.File
+     * @param url 图片的url
      *
-     * @exception UnsupportedEncodingException
+     * @return 若写入时记录过则返回{@link ImageHeader}，否则（如旧版本的文件或日志重建过）返回null
      */
-    public File getFile(String url) {
+    public ImageHeader getHeader(String url) {
+        DiskStorage storage = awaitStorage();
+        if (storage == null) {
+            return null;
+        }
+        try {
+            return ImageHeader.decode(storage.getMetadata(getKey(url)));
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-        File f = null;
-        String path = ImageLoader.url2path(url);
-        try{
-            String fileName = URLEncoder.encode(path, "utf-8");
-            f = new File(mCacheDir, fileName);
-            MyLog.d(TAG, "getFile: " + f.exists());
-        } catch (UnsupportedEncodingException e) {
+    /**
+     * 删除url对应的缓存，如图片已损坏无法解码时
+     */
+    public void remove(String url) {
+        DiskStorage storage = awaitStorage();
+        if (storage == null) {
+            return;
+        }
+        try {
+            storage.remove(getKey(url));
+        } catch (IOException | IllegalStateException e) {
             e.printStackTrace();
         }
+    }
 
-        return f;
+    /**
+     * @return 返回文件缓存当前占用的字节数(以字节B为单位)，取自内存索引，不会等待存储打开
+     */
+    public long getSize() {
+        return indexedBytes.get();
     }
 
     /**
-     * 先从mMemoryCache中寻找那些被清出放在reusableBitmaps里的bitmap，若有则直接读取，
-     * 否则通过缓存路径读取缓存图片并返回其{@link Bitmap}，此方法得到的缓存与{@link #getFile(String)}一致
+     * @return 返回已缓存的图片数，取自内存索引，不会等待存储打开
+     */
+    public int getEntryCount() {
+        return index.size();
+    }
+
+    /**
+     * @return 返回文件缓存的容量(以字节B为单位)
+     */
+    public long getMaxSize() {
+        DiskStorage storage = awaitStorage();
+        return storage == null ? 0 : storage.getMaxSize();
+    }
+
+    /**
+     * 先从mMemoryCache的复用池{@link MemoryCache#getBitmapPool()}中寻找那些被清出的bitmap，若有则直接复用其内存，
+     * 再解码图片压缩后的字节并返回其{@link Bitmap}
      *
-     * @param cachePath 图片的缓存路径（通过{@link #getFullCachePath(String)}得到的缓存路径）
+     * @param data 图片压缩后的字节，如{@link #read(String)}读出的内容
      *
-     * @param mMemoryCache 内存缓存实例
+     * @param header 写入时记录的宽高和格式，不为null时只需解码一遍；为null时先解析一遍文件头
      *
-     * @return 返回图片的 {@link Bitmap}
+     * @param config 请求的储存格式，会根据图片是否透明由{@link DecodeConfigPolicy#resolve(Config, boolean)}修正
      *
+     * @param mMemoryCache 内存缓存实例
+     *
+     * @return 返回图片的 {@link Bitmap}，解码失败则返回null
      */
-    public Bitmap getBitmapFromFile(String cachePath, MemoryCache mMemoryCache) {
+    public Bitmap getBitmapFromBytes(byte[] data, ImageHeader header, Config config, MemoryCache mMemoryCache) {
 
         final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(cachePath, options);//先解析一遍原来的图，获取其相关options参数
-        options.inJustDecodeBounds = false;
+        if (header != null) {
+            header.applyTo(options);
+            options.inPreferredConfig = DecodeConfigPolicy.resolve(config, header.isOpaque());
+        } else {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            options.inJustDecodeBounds = false;
+            options.inPreferredConfig = DecodeConfigPolicy.resolve(config, options.outMimeType);
+        }
         addInBitmapOptions(options, mMemoryCache);
 
-        return BitmapFactory.decodeFile(cachePath, options);//若addInBitmapOptions成功，那么这里decodeFile能直接复用inBitmap
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            MyLog.w(TAG, "getBitmapFromBytes: inBitmap rejected, " + e.getMessage());
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
     }
 
     /**
-     * 返回图片储存的完整绝对路径
+     * 返回图片在缓存中的位置，记录到数据库中；{@link StorageType#PACK}时不对应具体的文件，读取图片应使用{@link #read(String)}
      *
      * @param url 图片的url
      * @return 返回图片储存的完整绝对路径
      *
      */
     public String getFullCachePath(String url) {
-        return mCacheDir.getAbsolutePath() + File.separator + ImageLoader.url2path(url);
+        DiskStorage storage = awaitStorage();
+        return storage != null ? storage.getLocation(getKey(url))
+                : FileStorage.getFile(mCacheDir, getKey(url)).getAbsolutePath();
     }
 
     /**
      * 清除本地文件缓存
      */
     public void clear() {
+        DiskStorage storage = awaitStorage();
+        if (storage == null) {
+            return;
+        }
+        try {
+            storage.clear();
+            index.clear();
+            indexedBytes.set(0);
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * 将url转为{@link DiskStorage}中的key
+     */
+    private String getKey(String url) {
+        return keyGenerator.generate(url);
+    }
+
+    /**
+     * 等待存储打开
+     *
+     * @return 返回打开的存储，打开失败或等待时被中断则返回null
+     */
+    private DiskStorage awaitStorage() {
+        try {
+            storageReady.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return storage;
+    }
+
+    private void addToIndex(String key, long size) {
+        Long old = index.put(key, size);
+        indexedBytes.addAndGet(size - (old == null ? 0 : old));
+    }
+
+    private void removeFromIndex(String key) {
+        Long old = index.remove(key);
+        if (old != null) {
+            indexedBytes.addAndGet(-old);
+        }
+    }
+
+    /**
+     * 清理崩溃残留的数据（见{@link DiskStorage#sweep()}），以及图片已被淘汰或删除的数据库记录，
+     * 避免无网络时从数据库加载出无法显示的图片；已收藏的记录只清空缓存路径，不会丢失收藏，
+     * 见{@link PhotoDataBaseManager#removeCachedPhotos(java.util.Collection)}；在初始化线程中调用
+     *
+     * @param manager 图片数据库，为null时只清理存储
+     */
+    private void sweep(PhotoDataBaseManager manager) {
+        DiskStorage storage = this.storage;
+        if (storage == null) {
+            return;
+        }
+        try {
+            storage.sweep();
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+        if (manager == null) {
+            return;
+        }
+        //先查数据库再取索引的快照：数据库记录在图片写入后才插入，查到的记录对应的图片一定已在快照中（除非已被淘汰）
+        Set<String> urls = manager.selectAllCachePaths().keySet();
+        Set<String> keys = new HashSet<>(index.keySet());
+        List<String> staleUrls = new ArrayList<>();
+        for (String url : urls) {
+            if (!keys.contains(getKey(url))) {
+                staleUrls.add(url);
+            }
+        }
+        int deleted = 0;
+        if (!staleUrls.isEmpty()) {
+            deleted = manager.removeCachedPhotos(staleUrls);
+        }
+        MyLog.d(TAG, "sweep: " + deleted + " stale rows deleted, "
+                + (staleUrls.size() - deleted) + " starred rows kept");
+    }
+
+    /**
+     * 将旧版本直接放在缓存目录下的文件移动到按摘要分目录的新位置，并在同一个事务中更新数据库中的缓存路径；
+     * 移动只是同一分区内的重命名，文件的修改时间不变，打开缓存时重建的访问顺序与原来一致
+     *
+     * @param manager 图片数据库，旧文件只能通过数据库中的url找到对应的新key
+     */
+    private void migrateLegacyFiles(PhotoDataBaseManager manager) {
         File[] files = mCacheDir.listFiles();
-        for (File f : files) {
-            f.delete();
+        boolean hasLegacyFiles = false;
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !file.getName().startsWith(DiskLruCache.JOURNAL_FILE)) {
+                    hasLegacyFiles = true;
+                    break;
+                }
+            }
+        }
+        if (!hasLegacyFiles || manager == null) {
+            return;
         }
 
+        Map<String, String> migratedPaths = new HashMap<>();
+        for (Map.Entry<String, String> row : manager.selectAllCachePaths().entrySet()) {
+            if (row.getValue() == null) {
+                continue;
+            }
+            File legacyFile = new File(row.getValue());
+            if (!mCacheDir.equals(legacyFile.getParentFile()) || !legacyFile.isFile()) {
+                continue;//已经迁移过或文件已不存在
+            }
+            File target = FileStorage.getFile(mCacheDir, getKey(row.getKey()));
+            File parent = target.getParentFile();
+            if ((parent.isDirectory() || parent.mkdirs()) && legacyFile.renameTo(target)) {
+                migratedPaths.put(row.getKey(), target.getAbsolutePath());
+            }
+        }
+        if (!migratedPaths.isEmpty()) {
+            manager.updateCachePaths(migratedPaths);
+        }
+        MyLog.d(TAG, "migrateLegacyFiles: " + migratedPaths.size() + " files migrated");
     }
 
     /**
@@ -121,7 +488,7 @@ public class FileCache {
      *
      * @param options 目标图片的相关{@link BitmapFactory.Options}参数
      *
-     * @param mMemoryCache 内存缓存实例，在这里面寻找是否有合适的inBitmap
+     * @param mMemoryCache 内存缓存实例，在其复用池{@link MemoryCache#getBitmapPool()}中寻找是否有合适的inBitmap
      */
     private void addInBitmapOptions(BitmapFactory.Options options, MemoryCache mMemoryCache) {
 
@@ -129,7 +496,7 @@ public class FileCache {
 
         if (mMemoryCache != null) {
             //寻找是否有符合资格的bitmap
-            Bitmap inBitmap = mMemoryCache.getBitmapFromReusableSet(options);
+            Bitmap inBitmap = mMemoryCache.getBitmapPool().get(options);
 
             if (inBitmap != null) {
                 //若符合复用资格则将其赋给options的inBitmap属性，
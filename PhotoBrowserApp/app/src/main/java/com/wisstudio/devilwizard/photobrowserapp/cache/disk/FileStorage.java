@@ -0,0 +1,167 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 每张图片一个文件的{@link DiskStorage}，由{@link DiskLruCache}管理容量和访问顺序，文件按key的前缀分散在子目录中
+ *
+ * @author WizardK
+ * @date 2021-05-11
+ */
+public class FileStorage implements DiskStorage {
+
+    private static final String TAG = "FileStorage";
+
+    /**
+     * 子目录的层数
+     */
+    static final int SHARD_DEPTH = 2;
+
+    private final File directory;
+    private final DiskLruCache diskLruCache;
+
+    /**
+     * 打开directory中的缓存
+     *
+     * @param directory 缓存目录
+     * @param version 缓存格式的版本，见{@link DiskLruCache#open(File, int, long, int)}
+     * @param maxSize 容量(以字节B为单位)
+     *
+     * @throws IOException 无法创建目录或日志时抛出
+     */
+    public FileStorage(File directory, int version, long maxSize) throws IOException {
+        this.directory = directory;
+        this.diskLruCache = DiskLruCache.open(directory, version, maxSize, SHARD_DEPTH);
+    }
+
+    @Override
+    public byte[] read(String key) throws IOException {
+        File file = diskLruCache.get(key);
+        if (file == null) {
+            return null;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.max(file.length(), 32));
+            byte[] buffer = new byte[8 * 1024];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, len);
+            }
+            return baos.toByteArray();
+        } catch (IOException e) {
+            MyLog.w(TAG, "read: " + file + " is unreadable: " + e.getMessage());
+            return null;//文件可能刚被淘汰
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean write(String key, byte[] data, String metadata) throws IOException {
+        DiskLruCache.Editor editor = diskLruCache.edit(key);
+        if (editor == null) {
+            return false;//其他线程正在写入同一张图片
+        }
+        OutputStream os = null;
+        try {
+            editor.setMetadata(metadata);
+            os = editor.newOutputStream();
+            os.write(data);
+            os.close();
+            os = null;
+            editor.commit();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            abortQuietly(editor);
+            throw e;
+        } finally {
+            if (os != null) {
+                os.close();
+            }
+        }
+    }
+
+    @Override
+    public String getMetadata(String key) {
+        return diskLruCache.getMetadata(key);
+    }
+
+    @Override
+    public Set<String> keys() {
+        return diskLruCache.keys();
+    }
+
+    @Override
+    public Map<String, Long> entries() {
+        return diskLruCache.entries();
+    }
+
+    @Override
+    public void setRemovalListener(RemovalListener listener) {
+        diskLruCache.setRemovalListener(listener);
+    }
+
+    @Override
+    public String getLocation(String key) {
+        return getFile(directory, key).getAbsolutePath();
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        return diskLruCache.remove(key);
+    }
+
+    @Override
+    public void clear() throws IOException {
+        diskLruCache.evictAll();
+    }
+
+    @Override
+    public void sweep() {
+        int deleted = diskLruCache.deleteOrphanedTempFiles();
+        MyLog.d(TAG, "sweep: " + deleted + " temp files deleted");
+    }
+
+    @Override
+    public long size() {
+        return diskLruCache.size();
+    }
+
+    @Override
+    public long getMaxSize() {
+        return diskLruCache.getMaxSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        diskLruCache.close();
+    }
+
+    /**
+     * 返回key在directory中对应的文件，缓存打开前也可以调用，如迁移旧版本的文件时
+     */
+    static File getFile(File directory, String key) {
+        return new File(DiskLruCache.shardDirectory(directory, key, SHARD_DEPTH), key);
+    }
+
+    private static void abortQuietly(DiskLruCache.Editor editor) {
+        try {
+            editor.abort();
+        } catch (IOException | IllegalStateException e) {
+            //已经提交或放弃过
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
+
+import android.graphics.BitmapFactory;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.image.load.DecodeConfigPolicy;
+
+/**
+ * 缓存文件中图片的宽高和格式，写入文件缓存时已经知道，随条目一起记录在{@link DiskLruCache}的日志中；
+ * 读取时直接填入{@link BitmapFactory.Options}，不必先用inJustDecodeBounds解析一遍文件头
+ *
+ * @author WizardK
+ * @date 2021-05-10
+ */
+public class ImageHeader {
+
+    private static final char SEPARATOR = ',';
+    private static final String OPAQUE = "opaque";
+
+    private final int width;
+    private final int height;
+    private final String mimeType;
+    private final boolean opaque;
+
+    /**
+     * @param width 图片的宽(以pixel为单位)
+     * @param height 图片的高(以pixel为单位)
+     * @param mimeType 图片的MIME类型，如"image/jpeg"，是否透明由格式判断
+     */
+    public ImageHeader(int width, int height, String mimeType) {
+        this(width, height, mimeType, DecodeConfigPolicy.isOpaque(mimeType));
+    }
+
+    /**
+     * @param width 图片的宽(以pixel为单位)
+     * @param height 图片的高(以pixel为单位)
+     * @param mimeType 图片的MIME类型，如"image/webp"
+     * @param opaque 图片是否一定不透明，如由不透明的bitmap编码而来的WebP
+     */
+    public ImageHeader(int width, int height, String mimeType, boolean opaque) {
+        if (width <= 0 || height <= 0 || mimeType == null || mimeType.isEmpty()) {
+            throw new IllegalArgumentException("width and height must larger than 0, and mimeType must not be empty");
+        }
+        this.width = width;
+        this.height = height;
+        this.mimeType = mimeType;
+        this.opaque = opaque;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return 返回图片是否一定不透明，决定能否以{@link android.graphics.Bitmap.Config#RGB_565}解码
+     */
+    public boolean isOpaque() {
+        return opaque;
+    }
+
+    /**
+     * 将宽高和格式填入options，效果与inJustDecodeBounds解析一遍相同
+     */
+    public void applyTo(BitmapFactory.Options options) {
+        options.outWidth = width;
+        options.outHeight = height;
+        options.outMimeType = mimeType;
+    }
+
+    /**
+     * @return 返回记录在日志中的形式，如"640,427,image/jpeg"；格式本身不能说明不透明时追加标记，如"640,427,image/webp,opaque"
+     */
+    public String encode() {
+        String encoded = String.valueOf(width) + SEPARATOR + height + SEPARATOR + mimeType;
+        if (opaque && !DecodeConfigPolicy.isOpaque(mimeType)) {
+            encoded += SEPARATOR + OPAQUE;
+        }
+        return encoded;
+    }
+
+    /**
+     * 解析{@link #encode()}的结果
+     *
+     * @return 返回解析出的ImageHeader，若metadata为null或格式不对则返回null
+     */
+    public static ImageHeader decode(String metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        String[] parts = metadata.split(String.valueOf(SEPARATOR), 4);
+        if (parts.length < 3 || (parts.length == 4 && !OPAQUE.equals(parts[3]))) {
+            return null;
+        }
+        try {
+            boolean opaque = parts.length == 4 || DecodeConfigPolicy.isOpaque(parts[2]);
+            return new ImageHeader(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), parts[2], opaque);
+        } catch (IllegalArgumentException e) {
+            return null;//NumberFormatException也是IllegalArgumentException
+        }
+    }
+}
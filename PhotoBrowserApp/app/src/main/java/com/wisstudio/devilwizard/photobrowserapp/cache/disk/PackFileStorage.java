@@ -0,0 +1,775 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * 将所有图片依次追加到少数几个大文件（段）中的{@link DiskStorage}，内存中保存每个key所在的段和偏移量
+ * 每张缩略图只有几十KB，每张一个文件时大部分时间花在打开、查找和关闭文件上，且每个文件都会浪费一部分文件系统块；
+ * 这里写满{@link #MAX_SEGMENT_SIZE}的段不再修改，通过{@link MappedByteBuffer}读取，正在写入的段通过{@link FileChannel}按位置读取
+ *
+ * 段中的每条记录：
+ * <pre>
+ *     magic(4) | keyLength(2) | metadataLength(2) | dataLength(4，删除记录为-1) | crc32(4) | key | metadata | data
+ * </pre>
+ * 打开时按段的编号和偏移量顺序扫描记录头重建索引，后面的记录覆盖前面的；写入中断留下的不完整记录会被截掉，
+ * 数据损坏的记录在读取时通过crc32发现并删除
+ * 被覆盖、删除或淘汰的记录成为死数据，某个段中的死数据超过一半时在后台把其中仍有效的记录复制到当前段后删除整个段
+ * 重启后访问顺序按写入顺序重建，不再保留上次的访问顺序
+ *
+ * @author WizardK
+ * @date 2021-05-11
+ */
+public class PackFileStorage implements DiskStorage {
+
+    private static final String TAG = "PackFileStorage";
+
+    /**
+     * 段文件的最大大小，按容量50MB计算约有7个段
+     */
+    static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * 段中的死数据超过此比例时压缩该段
+     */
+    private static final float COMPACT_DEAD_RATIO = 0.5f;
+
+    private static final int RECORD_MAGIC = 0x50424b31;//"PBK1"
+    private static final int HEADER_SIZE = 16;
+    private static final int TOMBSTONE = -1;
+    private static final int MAX_KEY_LENGTH = 120;
+    private static final int MAX_METADATA_LENGTH = 120;
+
+    private static final String SEGMENT_PREFIX = "pack-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("pack-(\\d+)\\.dat");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * 按访问顺序排列的索引，最久未访问的在最前面
+     */
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<>(0, 0.75f, true);
+
+    /**
+     * 按编号排列的所有段，编号越大越新，最后一个是{@link #active}
+     */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long liveBytes;
+
+    private RemovalListener removalListener;
+    private boolean closed;
+
+    /**
+     * 是否已经安排了压缩，避免每产生一条死数据就提交一次任务
+     */
+    private boolean compactionScheduled;
+
+    /**
+     * 执行压缩的后台线程
+     */
+    private final ThreadPoolExecutor executorService = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PackFileStorage-compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Runnable compactRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                Segment segment;
+                while ((segment = nextSegmentToCompact()) != null) {
+                    compact(segment);
+                }
+            } catch (IOException e) {
+                MyLog.w(TAG, "compactRunnable: compaction failed, " + e);
+            } finally {
+                synchronized (PackFileStorage.this) {
+                    compactionScheduled = false;//失败后下一次产生死数据时重新安排压缩
+                }
+            }
+        }
+    };
+
+    /**
+     * 打开directory中的段文件，若不存在则创建
+     *
+     * @param directory 段文件所在的目录，目录中不应放置其他文件
+     * @param maxSize 有效数据的最大字节数(以字节B为单位)，段文件的总大小还包括尚未压缩的死数据
+     *
+     * @throws IOException 无法创建目录或段文件时抛出
+     */
+    public PackFileStorage(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must larger than 0");
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("failed to create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        TreeMap<Integer, File> files = new TreeMap<>();
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File file : children) {
+                Matcher matcher = SEGMENT_PATTERN.matcher(file.getName());
+                if (matcher.matches()) {
+                    files.put(Integer.parseInt(matcher.group(1)), file);
+                }
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<Integer, File> file : files.entrySet()) {
+                boolean last = file.getKey().equals(files.lastKey());
+                Segment segment = loadSegment(file.getKey(), file.getValue(), last);
+                segments.put(segment.id, segment);
+                if (last) {
+                    active = segment;
+                }
+            }
+            if (active == null) {
+                active = Segment.create(directory, 1);
+                segments.put(active.id, active);
+            }
+            evictLocked();
+            scheduleCompactionLocked();
+        }
+        MyLog.d(TAG, "open: " + segments.size() + " segments, " + index.size() + " entries, " + liveBytes + " bytes");
+    }
+
+    @Override
+    public byte[] read(String key) throws IOException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location location;
+            Segment segment;
+            long dataOffset;
+            synchronized (this) {
+                checkNotClosed();
+                location = index.get(key);
+                if (location == null) {
+                    return null;
+                }
+                segment = segments.get(location.segmentId);
+                dataOffset = location.dataOffset;
+            }
+            byte[] data = new byte[location.dataLength];
+            try {
+                segment.read(dataOffset, data);
+            } catch (ClosedChannelException e) {
+                continue;//读取时该段刚好写满被映射，或被压缩删除，重新查找位置
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            if ((int) crc.getValue() != location.crc) {
+                MyLog.w(TAG, "read: crc mismatch of " + key + ", removing");
+                synchronized (this) {
+                    if (index.containsKey(key) && location == peekLocked(key)) {
+                        removeLocked(key);
+                    }
+                }
+                return null;
+            }
+            return data;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean write(String key, byte[] data, String metadata) throws IOException {
+        byte[] record = encodeRecord(key, metadata, data);
+        FileChannel channel;
+        synchronized (this) {
+            checkNotClosed();
+            Location location = appendLocked(record);
+            location.metadata = metadata;
+            location.dataLength = data.length;
+            location.crc = readCrc(record);
+            Location old = index.put(key, location);
+            if (old != null) {
+                markDeadLocked(old);
+                liveBytes -= old.dataLength;
+            }
+            liveBytes += data.length;
+            channel = active.channel;
+            evictLocked();
+        }
+        try {
+            channel.force(false);//在锁外刷盘，不阻塞其他读写
+        } catch (ClosedChannelException e) {
+            //段已写满被封存，封存时已经刷过盘
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized String getMetadata(String key) {
+        checkNotClosed();
+        Location location = index.get(key);
+        return location == null ? null : location.metadata;
+    }
+
+    @Override
+    public synchronized Set<String> keys() {
+        checkNotClosed();
+        return new HashSet<>(index.keySet());
+    }
+
+    @Override
+    public synchronized Map<String, Long> entries() {
+        checkNotClosed();
+        Map<String, Long> entries = new HashMap<>();
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            entries.put(entry.getKey(), (long) entry.getValue().dataLength);
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized void setRemovalListener(RemovalListener listener) {
+        this.removalListener = listener;
+    }
+
+    /**
+     * @return 返回"目录#key"的形式，图片在段中的位置会因压缩而改变，不对应具体的文件
+     */
+    @Override
+    public String getLocation(String key) {
+        return directory.getAbsolutePath() + '#' + key;
+    }
+
+    @Override
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        removeLocked(key);
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        checkNotClosed();
+        for (Segment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+        index.clear();
+        liveBytes = 0;
+        active = Segment.create(directory, 1);
+        segments.put(active.id, active);
+    }
+
+    @Override
+    public void sweep() {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File file : children) {
+                Matcher matcher = SEGMENT_PATTERN.matcher(file.getName());
+                synchronized (this) {
+                    if (!matcher.matches() || !segments.containsKey(Integer.parseInt(matcher.group(1)))) {
+                        file.delete();//不属于任何段的文件，如压缩删除段时崩溃残留的
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            scheduleCompactionLocked();
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return liveBytes;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return 返回所有段文件的总大小(以字节B为单位)，包括尚未压缩的死数据
+     */
+    public synchronized long fileSize() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        return total;
+    }
+
+    /**
+     * @return 返回当前段文件的数量
+     */
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        executorService.shutdown();
+    }
+
+    /**
+     * 把record追加到当前段，当前段放不下时先封存并新建一段
+     *
+     * @return 返回新记录的位置，尚未放入索引
+     */
+    private Location appendLocked(byte[] record) throws IOException {
+        if (active.size > 0 && active.size + record.length > MAX_SEGMENT_SIZE) {
+            active.seal();
+            Segment next = Segment.create(directory, active.id + 1);
+            segments.put(next.id, next);
+            active = next;
+        }
+        long offset = active.append(record);
+        Location location = new Location();
+        location.segmentId = active.id;
+        location.offset = offset;
+        location.length = record.length;
+        location.dataOffset = offset + dataStart(record);
+        return location;
+    }
+
+    private void removeLocked(String key) throws IOException {
+        Location old = index.remove(key);
+        if (old == null) {
+            return;
+        }
+        markDeadLocked(old);
+        liveBytes -= old.dataLength;
+        if (removalListener != null) {
+            removalListener.onRemoved(key);
+        }
+        //写入删除记录，重启后才不会恢复已删除的条目；删除记录本身也是死数据
+        Location tombstone = appendLocked(encodeRecord(key, null, null));
+        active.deadBytes += tombstone.length;
+    }
+
+    /**
+     * 淘汰最久未访问的条目直到有效数据不超过容量
+     */
+    private void evictLocked() throws IOException {
+        Iterator<Map.Entry<String, Location>> iterator = index.entrySet().iterator();
+        while (liveBytes > maxSize && iterator.hasNext()) {
+            String eldest = iterator.next().getKey();
+            removeLocked(eldest);
+            iterator = index.entrySet().iterator();
+        }
+    }
+
+    private void markDeadLocked(Location location) {
+        Segment segment = segments.get(location.segmentId);
+        if (segment == null) {
+            return;
+        }
+        segment.deadBytes += location.length;
+        if (segment != active && segment.deadBytes >= segment.size * COMPACT_DEAD_RATIO) {
+            scheduleCompactionLocked();
+        }
+    }
+
+    private void scheduleCompactionLocked() {
+        if (!compactionScheduled && !closed) {
+            compactionScheduled = true;
+            executorService.execute(compactRunnable);
+        }
+    }
+
+    /**
+     * 不改变访问顺序地查找key的位置
+     */
+    private Location peekLocked(String key) {
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            if (entry.getKey().equals(key)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private synchronized Segment nextSegmentToCompact() {
+        if (closed) {
+            return null;
+        }
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.deadBytes >= segment.size * COMPACT_DEAD_RATIO) {
+                return segment;
+            }
+        }
+        compactionScheduled = false;
+        return null;
+    }
+
+    /**
+     * 把已封存的segment中仍然有效的记录复制到当前段，然后删除segment；
+     * 封存的段不会再被修改，因此扫描和读取在锁外进行，只有追加和更新索引时加锁，每次只复制一条记录
+     */
+    private void compact(Segment segment) throws IOException {
+        long liveCopied = 0;
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (closed || !segments.containsKey(segment.id)) {
+                return;
+            }
+            buffer = segment.mapped.duplicate();
+        }
+        long position = 0;
+        while (position + HEADER_SIZE <= segment.size) {
+            RecordHeader header = readHeader(buffer, position, segment.size);
+            if (header == null) {
+                break;
+            }
+            synchronized (this) {
+                if (closed || !segments.containsKey(segment.id)) {
+                    return;
+                }
+                if (header.dataLength == TOMBSTONE) {
+                    //更早的段中可能还有该key被删除前的记录，删除记录需要保留到那些段都被压缩掉
+                    if (segments.firstKey() < segment.id && !index.containsKey(header.key)) {
+                        Location tombstone = appendLocked(copyRecord(buffer, position, header.length));
+                        active.deadBytes += tombstone.length;
+                    }
+                } else {
+                    Location location = index.containsKey(header.key) ? peekLocked(header.key) : null;
+                    if (location != null && location.segmentId == segment.id && location.offset == position) {
+                        Location moved = appendLocked(copyRecord(buffer, position, header.length));
+                        //直接修改原来的位置对象，不改变条目的访问顺序
+                        location.segmentId = moved.segmentId;
+                        location.offset = moved.offset;
+                        location.dataOffset = moved.dataOffset;
+                        liveCopied += header.length;
+                    }
+                }
+            }
+            position += header.length;
+        }
+        synchronized (this) {
+            if (closed || !segments.containsKey(segment.id)) {
+                return;
+            }
+            active.channel.force(false);//复制的记录落盘后才能删除原来的段
+            segments.remove(segment.id);
+            segment.delete();
+        }
+        MyLog.d(TAG, "compact: segment " + segment.id + " removed, " + liveCopied + " live bytes copied");
+    }
+
+    /**
+     * 扫描段文件中的记录重建索引，当前段中不完整的尾部会被截掉
+     */
+    private Segment loadSegment(int id, File file, boolean active) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, active ? "rw" : "r");
+        FileChannel channel = raf.getChannel();
+        long fileSize = channel.size();
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        Segment segment = new Segment(id, file);
+        long position = 0;
+        while (position + HEADER_SIZE <= fileSize) {
+            RecordHeader header = readHeader(mapped, position, fileSize);
+            if (header == null) {
+                break;
+            }
+            Location old;
+            if (header.dataLength == TOMBSTONE) {
+                old = index.remove(header.key);
+                segment.deadBytes += header.length;
+            } else {
+                Location location = new Location();
+                location.segmentId = id;
+                location.offset = position;
+                location.length = header.length;
+                location.dataOffset = position + header.length - header.dataLength;
+                location.dataLength = header.dataLength;
+                location.crc = header.crc;
+                location.metadata = header.metadata;
+                old = index.put(header.key, location);
+                liveBytes += header.dataLength;
+            }
+            if (old != null) {
+                liveBytes -= old.dataLength;
+                Segment oldSegment = old.segmentId == id ? segment : segments.get(old.segmentId);
+                oldSegment.deadBytes += old.length;
+            }
+            position += header.length;
+        }
+        if (position < fileSize) {
+            MyLog.w(TAG, "loadSegment: " + file.getName() + " is truncated at " + position + " of " + fileSize);
+        }
+        segment.size = position;
+        if (active) {
+            channel.truncate(position);//丢弃写入中断留下的不完整记录
+            segment.raf = raf;
+            segment.channel = channel;
+        } else {
+            segment.deadBytes += fileSize - position;
+            segment.size = fileSize;
+            segment.mapped = mapped;
+            channel.close();
+            raf.close();
+        }
+        return segment;
+    }
+
+    /**
+     * 解析position处的记录头，记录不完整或格式不对时返回null
+     */
+    private static RecordHeader readHeader(ByteBuffer buffer, long position, long limit) {
+        int pos = (int) position;
+        if (buffer.getInt(pos) != RECORD_MAGIC) {
+            return null;
+        }
+        int keyLength = buffer.getShort(pos + 4);
+        int metadataLength = buffer.getShort(pos + 6);
+        int dataLength = buffer.getInt(pos + 8);
+        if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH || metadataLength < 0 || metadataLength > MAX_METADATA_LENGTH
+                || dataLength < TOMBSTONE) {
+            return null;
+        }
+        long length = (long) HEADER_SIZE + keyLength + metadataLength + Math.max(dataLength, 0);
+        if (position + length > limit) {
+            return null;
+        }
+        RecordHeader header = new RecordHeader();
+        header.key = readString(buffer, pos + HEADER_SIZE, keyLength);
+        header.metadata = metadataLength == 0 ? null : readString(buffer, pos + HEADER_SIZE + keyLength, metadataLength);
+        header.dataLength = dataLength;
+        header.crc = buffer.getInt(pos + 12);
+        header.length = (int) length;
+        return header;
+    }
+
+    private static String readString(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes, US_ASCII);
+    }
+
+    private static byte[] copyRecord(ByteBuffer buffer, long position, int length) {
+        byte[] record = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position((int) position);
+        source.get(record);
+        return record;
+    }
+
+    /**
+     * 编码一条记录，data为null表示删除记录
+     */
+    private static byte[] encodeRecord(String key, String metadata, byte[] data) {
+        byte[] keyBytes = key.getBytes(US_ASCII);
+        byte[] metadataBytes = metadata == null ? new byte[0] : metadata.getBytes(US_ASCII);
+        if (keyBytes.length == 0 || keyBytes.length > MAX_KEY_LENGTH || metadataBytes.length > MAX_METADATA_LENGTH) {
+            throw new IllegalArgumentException("key must not be empty, and key and metadata must not longer than 120");
+        }
+        int dataLength = data == null ? 0 : data.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + metadataBytes.length + dataLength);
+        record.putInt(RECORD_MAGIC);
+        record.putShort((short) keyBytes.length);
+        record.putShort((short) metadataBytes.length);
+        record.putInt(data == null ? TOMBSTONE : data.length);
+        int crc = 0;
+        if (data != null) {
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, data.length);
+            crc = (int) crc32.getValue();
+        }
+        record.putInt(crc);
+        record.put(keyBytes);
+        record.put(metadataBytes);
+        if (data != null) {
+            record.put(data);
+        }
+        return record.array();
+    }
+
+    private static int readCrc(byte[] record) {
+        return ByteBuffer.wrap(record).getInt(12);
+    }
+
+    /**
+     * @return 返回记录中数据部分的起始偏移量
+     */
+    private static int dataStart(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        return HEADER_SIZE + buffer.getShort(4) + buffer.getShort(6);
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("storage is closed");
+        }
+    }
+
+    /**
+     * 索引中一个条目的位置，压缩时只修改segmentId、offset和dataOffset，读取时须在锁内取出这几个字段
+     */
+    private static final class Location {
+        int segmentId;
+        long offset;
+        int length;
+        long dataOffset;
+        int dataLength;
+        int crc;
+        String metadata;
+    }
+
+    private static final class RecordHeader {
+        String key;
+        String metadata;
+        int dataLength;
+        int crc;
+        int length;
+    }
+
+    /**
+     * 一个段文件，当前段可以追加写入，封存后只读并映射到内存中
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        long size;
+        long deadBytes;
+
+        /**
+         * 当前段的文件，封存后为null
+         */
+        volatile RandomAccessFile raf;
+        volatile FileChannel channel;
+
+        /**
+         * 封存后的只读映射，封存前为null
+         */
+        volatile MappedByteBuffer mapped;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        static Segment create(File directory, int id) throws IOException {
+            Segment segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+            segment.raf = new RandomAccessFile(segment.file, "rw");
+            segment.raf.setLength(0);
+            segment.channel = segment.raf.getChannel();
+            return segment;
+        }
+
+        /**
+         * 追加一条记录
+         *
+         * @return 返回记录的起始偏移量
+         */
+        long append(byte[] record) throws IOException {
+            long offset = size;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            size += record.length;
+            return offset;
+        }
+
+        void read(long position, byte[] out) throws IOException {
+            MappedByteBuffer mapped = this.mapped;
+            if (mapped != null) {
+                ByteBuffer source = mapped.duplicate();//各线程使用独立的position
+                source.position((int) position);
+                source.get(out);
+                return;
+            }
+            FileChannel channel = this.channel;
+            if (channel == null) {
+                throw new ClosedChannelException();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(out);
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("unexpected end of " + file);
+                }
+            }
+        }
+
+        /**
+         * 写满后刷盘并改为只读映射
+         */
+        void seal() throws IOException {
+            channel.force(false);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            FileChannel old = channel;
+            channel = null;
+            old.close();
+            raf.close();
+            raf = null;
+        }
+
+        void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                raf.close();
+                channel = null;
+                raf = null;
+            }
+        }
+
+        void delete() throws IOException {
+            close();
+            mapped = null;//已在读取的线程仍持有映射，由GC解除
+            if (file.exists() && !file.delete()) {
+                throw new IOException("failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * 用于测试的快照
+     */
+    synchronized List<Integer> segmentIds() {
+        return new ArrayList<>(segments.keySet());
+    }
+}
@@ -0,0 +1,111 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory;
+
+import android.graphics.Bitmap.Config;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import androidx.annotation.NonNull;
+
+import java.util.Objects;
+
+/**
+ * 内存缓存{@link MemoryCache}的键，除了图片的url外还包含了目标显示的宽高和储存格式，
+ * 这样同一张图片为不同大小的ImageView解码出的多个版本就不会互相覆盖
+ *
+ * @author WizardK
+ * @date 2021-05-03
+ */
+public class BitmapKey {
+
+    private final String url;
+
+    /**
+     * 目标显示的宽(以pixel为单位)，小于等于0表示不限制
+     */
+    private final int width;
+
+    /**
+     * 目标显示的高(以pixel为单位)，小于等于0表示不限制
+     */
+    private final int height;
+
+    private final Config config;
+
+    public BitmapKey(String url, int width, int height, Config config) {
+        if (url == null) {
+            throw new IllegalArgumentException("the url must not be null !");
+        }
+        this.url = url;
+        this.width = Math.max(width, 0);
+        this.height = Math.max(height, 0);
+        this.config = config != null ? config : Config.ARGB_8888;
+    }
+
+    /**
+     * 根据要显示图片的ImageView的大小生成键，若ImageView还未完成布局（宽高为0），则使用其LayoutParams中指定的宽高
+     *
+     * @param url 图片的url地址
+     * @param imageView 要显示图片的ImageView
+     * @param config 图片解码的储存格式
+     *
+     * @return 返回对应的BitmapKey
+     */
+    public static BitmapKey of(String url, ImageView imageView, Config config) {
+        int width = 0;
+        int height = 0;
+        if (imageView != null) {
+            width = imageView.getWidth();
+            height = imageView.getHeight();
+            ViewGroup.LayoutParams params = imageView.getLayoutParams();
+            if (params != null) {
+                if (width <= 0) {
+                    width = params.width;//MATCH_PARENT、WRAP_CONTENT均为负数，会被当作不限制
+                }
+                if (height <= 0) {
+                    height = params.height;
+                }
+            }
+        }
+        return new BitmapKey(url, width, height, config);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BitmapKey)) {
+            return false;
+        }
+        BitmapKey other = (BitmapKey) o;
+        return width == other.width && height == other.height
+                && config == other.config && url.equals(other.url);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(url, width, height, config);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return url + "@" + width + "x" + height + "-" + config;
+    }
+}
@@ -0,0 +1,281 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * BitmapPool用于保存那些被移出内存缓存的Bitmap，供解码时作为{@link BitmapFactory.Options#inBitmap}复用，所有数据均以字节B为单位
+ * 池中的Bitmap先按{@link Config}分组，再按{@link Bitmap#getAllocationByteCount()}放入有序的{@link TreeMap}中，
+ * 因此查找最合适（不小于目标且最小）的Bitmap只需O(log n)，而不用像以前那样遍历整个集合
+ *
+ * @author WizardK
+ * @date 2021-05-02
+ */
+public class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    /**
+     * 候选Bitmap的内存最多只能是目标图片的多少倍，防止用很大的Bitmap去装很小的图片而浪费内存
+     */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    /**
+     * 池的最大字节数（以字节B为单位），内存紧张时会被{@link #resize(long)}调小
+     */
+    private long maxPoolSize;
+
+    /**
+     * 池当前占用的字节数（以字节B为单位）
+     */
+    private long currentSize;
+
+    /**
+     * Config -> (allocationByteCount -> 该大小的Bitmap队列)
+     */
+    private final Map<Config, TreeMap<Integer, ArrayDeque<Bitmap>>> buckets;
+
+    /**
+     * 按放入顺序记录池中的Bitmap，超出{@link #maxPoolSize}时从最早放入的开始淘汰
+     */
+    private final LinkedHashSet<Bitmap> lruOrder;
+
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * 初始化Bitmap复用池
+     *
+     * @param maxPoolSizeInByte 池的最大容量(以字节B为单位)
+     */
+    public BitmapPool(long maxPoolSizeInByte) {
+        this.maxPoolSize = maxPoolSizeInByte;
+        this.buckets = new HashMap<>();
+        this.lruOrder = new LinkedHashSet<>();
+        MyLog.d(TAG, "BitmapPool: maxPoolSize is " + maxPoolSize / 1024 / 1024 + "MB");
+    }
+
+    /**
+     * 将bitmap放入池中，只有可变的、未被回收的Bitmap才能放入
+     *
+     * @param bitmap 要放入池中等待复用的bitmap
+     *
+     * @return 放入成功则返回true，否则返回false
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxPoolSize || lruOrder.contains(bitmap)) {
+            return false;
+        }
+
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizeMap = buckets.get(bitmap.getConfig());
+        if (sizeMap == null) {
+            sizeMap = new TreeMap<>();
+            buckets.put(bitmap.getConfig(), sizeMap);
+        }
+        ArrayDeque<Bitmap> queue = sizeMap.get(size);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            sizeMap.put(size, queue);
+        }
+        queue.addLast(bitmap);
+        lruOrder.add(bitmap);
+        currentSize += size;
+
+        trimToSize(maxPoolSize);
+        return true;
+    }
+
+    /**
+     * 根据即将解码的图片的options寻找可复用的bitmap
+     *
+     * @param options 要加载的目标图片的相关{@link BitmapFactory.Options}参数，需已包含outWidth和outHeight
+     *
+     * @return 返回符合条件的bitmap，若没有则返回null
+     */
+    public Bitmap get(BitmapFactory.Options options) {
+        int sampleSize = getActualSampleSize(options.inSampleSize);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Config.ARGB_8888;
+        return get(width, height, config);
+    }
+
+    /**
+     * 寻找能够装下width * height大小、格式为config的图片的最小的bitmap，找到后会将其移出池，防止二次使用
+     *
+     * @param width 目标图片的宽(以pixel为单位)
+     * @param height 目标图片的高(以pixel为单位)
+     * @param config 目标图片的储存格式
+     *
+     * @return 返回符合条件的bitmap，若没有则返回null
+     */
+    public synchronized Bitmap get(int width, int height, Config config) {
+        long requiredSize = (long) width * height * getBytesPerPixel(config);
+        if (width <= 0 || height <= 0 || requiredSize > Integer.MAX_VALUE) {
+            missCount++;
+            return null;
+        }
+        //优先使用同一格式的bitmap，没有时再使用其他格式中足够大的（如用被淘汰的ARGB_8888原图装RGB_565的缩略图），
+        //API 19以后解码器会按inPreferredConfig重新配置inBitmap，只要求其分配的内存足够
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizeMap = buckets.get(config);
+        Integer size = ceilingSize(sizeMap, requiredSize);
+        if (size == null) {
+            for (Map.Entry<Config, TreeMap<Integer, ArrayDeque<Bitmap>>> entry : buckets.entrySet()) {
+                Integer candidate = ceilingSize(entry.getValue(), requiredSize);
+                if (entry.getKey() != config && candidate != null && (size == null || candidate < size)) {
+                    sizeMap = entry.getValue();
+                    size = candidate;
+                }
+            }
+        }
+        if (size != null) {
+            Bitmap bitmap = removeFromBucket(sizeMap, size);
+            lruOrder.remove(bitmap);
+            currentSize -= size;
+            hitCount++;
+            MyLog.d(TAG, "get: candidate found! hit: " + hitCount + ", miss: " + missCount);
+            return bitmap;
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * @return 返回sizeMap中能装下requiredSize且不超过{@link #MAX_SIZE_MULTIPLE}倍的最小尺寸，没有则返回null
+     */
+    private static Integer ceilingSize(TreeMap<Integer, ArrayDeque<Bitmap>> sizeMap, long requiredSize) {
+        if (sizeMap == null) {
+            return null;
+        }
+        //ceilingKey即不小于requiredSize的最小尺寸，是最合适的候选
+        Integer size = sizeMap.ceilingKey((int) requiredSize);
+        return size != null && size <= requiredSize * MAX_SIZE_MULTIPLE ? size : null;
+    }
+
+    /**
+     * 淘汰最早放入的bitmap，直到池占用的内存不大于maxSize
+     *
+     * @param maxSize 池占用内存的上限(以字节B为单位)，传入0即清空整个池
+     */
+    public synchronized void trimToSize(long maxSize) {
+        Iterator<Bitmap> iterator = lruOrder.iterator();
+        while (currentSize > maxSize && iterator.hasNext()) {
+            Bitmap eldest = iterator.next();
+            iterator.remove();
+            int size = eldest.getAllocationByteCount();
+            removeFromBucket(buckets.get(eldest.getConfig()), size, eldest);
+            currentSize -= size;
+        }
+    }
+
+    /**
+     * 修改池的最大容量，若当前占用超出新的容量则立即淘汰
+     *
+     * @param maxSize 新的最大容量(以字节B为单位)
+     */
+    public synchronized void resize(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative");
+        }
+        maxPoolSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * 清空整个池
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return 返回池当前占用的字节数(以字节B为单位)
+     */
+    public synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    /**
+     * @return 返回池的最大容量(以字节B为单位)
+     */
+    public synchronized long getMaxSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * 根据图片的bitmap储存格式，返回相应的单位像素占用内存大小(Byte/pixel)
+     *
+     * @return 返回相应的单位像素占用内存大小(Byte/pixel)
+     */
+    public static int getBytesPerPixel(Config config) {
+        if (config == Config.ARGB_8888) {
+            return 4;
+        } else if (config == Config.RGB_565){
+            return 2;
+        } else if (config == Config.ARGB_4444) {
+            return 2;
+        } else if (config == Config.ALPHA_8) {
+            return 1;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Config.RGBA_F16) {
+            return 8;
+        }
+
+        return 1;
+    }
+
+    /**
+     * 解码器实际使用的采样率是不大于inSampleSize的2的幂，按实际采样率计算才不会低估目标图片的大小
+     *
+     * @param inSampleSize {@link BitmapFactory.Options#inSampleSize}
+     *
+     * @return 返回解码器实际使用的采样率
+     */
+    public static int getActualSampleSize(int inSampleSize) {
+        return inSampleSize > 1 ? Integer.highestOneBit(inSampleSize) : 1;
+    }
+
+    private Bitmap removeFromBucket(TreeMap<Integer, ArrayDeque<Bitmap>> sizeMap, int size) {
+        ArrayDeque<Bitmap> queue = sizeMap.get(size);
+        Bitmap bitmap = queue.pollFirst();
+        if (queue.isEmpty()) {
+            sizeMap.remove(size);
+        }
+        return bitmap;
+    }
+
+    private void removeFromBucket(TreeMap<Integer, ArrayDeque<Bitmap>> sizeMap, int size, Bitmap bitmap) {
+        if (sizeMap == null) {
+            return;
+        }
+        ArrayDeque<Bitmap> queue = sizeMap.get(size);
+        if (queue != null) {
+            queue.remove(bitmap);
+            if (queue.isEmpty()) {
+                sizeMap.remove(size);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory;
+
+import android.graphics.Bitmap;
+
+/**
+ * 带引用计数的Bitmap，内存缓存和每个正在显示它的ImageView各持有一个引用
+ * 只有当所有引用都被释放（计数归零）时才会把Bitmap放回复用池{@link BitmapPool}，
+ * 这样解码时通过{@link android.graphics.BitmapFactory.Options#inBitmap}复用的Bitmap一定不会仍显示在某个ImageView上
+ *
+ * @author WizardK
+ * @date 2021-05-07
+ */
+public final class BitmapResource {
+
+    private final Bitmap bitmap;
+    private final BitmapPool bitmapPool;
+
+    /**
+     * 当前的引用数，归零后此对象不可再被{@link #acquire()}
+     */
+    private int refCount;
+
+    /**
+     * 创建一个引用计数为1的资源，该引用属于调用者
+     *
+     * @param bitmap 被管理的Bitmap
+     * @param bitmapPool 引用归零后Bitmap要放回的复用池
+     */
+    BitmapResource(Bitmap bitmap, BitmapPool bitmapPool) {
+        if (bitmap == null) {
+            throw new IllegalArgumentException("bitmap must not be null !");
+        }
+        this.bitmap = bitmap;
+        this.bitmapPool = bitmapPool;
+        this.refCount = 1;
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * 增加一个引用
+     *
+     * @return 若引用已经归零（Bitmap可能已在复用池中）则返回false，此时不能再使用此Bitmap
+     */
+    public synchronized boolean acquire() {
+        if (refCount <= 0) {
+            return false;
+        }
+        refCount++;
+        return true;
+    }
+
+    /**
+     * 释放一个引用，计数归零时将Bitmap放回复用池
+     *
+     * @throws IllegalStateException 释放次数多于获取次数时抛出
+     */
+    public void release() {
+        boolean free;
+        synchronized (this) {
+            if (refCount <= 0) {
+                throw new IllegalStateException("release() called more times than acquire() on " + bitmap);
+            }
+            free = --refCount == 0;
+        }
+        if (free) {
+            bitmapPool.put(bitmap);
+        }
+    }
+
+    public synchronized int getRefCount() {
+        return refCount;
+    }
+}
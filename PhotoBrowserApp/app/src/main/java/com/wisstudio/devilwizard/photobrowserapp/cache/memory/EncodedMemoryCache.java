@@ -0,0 +1,125 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy.EvictionPolicy;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy.LruPolicy;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy.StripedPolicy;
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+/**
+ * 介于{@link MemoryCache}和{@link com.wisstudio.devilwizard.photobrowserapp.cache.disk.FileCache}之间的内存缓存，
+ * 以url为键保存图片压缩后的字节（JPEG或WebP，见{@link com.wisstudio.devilwizard.photobrowserapp.util.image.load.ThumbnailEncoder}，
+ * 质量压缩后约50KB一张），同样的内存能容纳的图片数是解码后Bitmap的十倍左右，
+ * Bitmap缓存未命中时可以直接从这里解码而不必读取磁盘
+ * 与MemoryCache一样，注册到Context后会在内存紧张时分级缩小
+ *
+ * @author WizardK
+ * @date 2021-05-08
+ */
+public class EncodedMemoryCache implements ComponentCallbacks2 {
+
+    private static final String TAG = "EncodedMemoryCache";
+
+    /**
+     * 以字节为单位的缓存，使用LRU淘汰
+     */
+    private final EvictionPolicy<String, byte[]> mCacheMap;
+
+    /**
+     * 缓存的最大字节数(以字节B为单位)
+     */
+    private final int maxSize;
+
+    /**
+     * @param maxSizeInByte 缓存的最大值(以字节B为单位)
+     * @param concurrencyLevel 预计同时访问缓存的线程数，大于1时分段加锁
+     */
+    public EncodedMemoryCache(int maxSizeInByte, int concurrencyLevel) {
+        if (maxSizeInByte <= 0) {
+            throw new IllegalArgumentException("maxSizeInByte must larger than 0");
+        }
+        this.maxSize = maxSizeInByte;
+        EvictionPolicy.Weigher<String, byte[]> weigher = new EvictionPolicy.Weigher<String, byte[]>() {
+            @Override
+            public int weigh(String key, byte[] value) {
+                return value.length;
+            }
+        };
+        mCacheMap = concurrencyLevel > 1
+                ? new StripedPolicy<>(maxSizeInByte, concurrencyLevel, weigher, null)
+                : new LruPolicy<>(maxSizeInByte, weigher, null);
+        MyLog.d(TAG, "EncodedMemoryCache: maxSize is " + maxSizeInByte / 1024 / 1024 + "MB");
+    }
+
+    /**
+     * 取出url对应图片的压缩字节，返回的数组与缓存共用，调用者不能修改
+     *
+     * @return 若仍在缓存中则返回其字节，否则返回null
+     */
+    public byte[] get(String url) {
+        return mCacheMap.get(url);
+    }
+
+    /**
+     * 缓存url对应图片的压缩字节，缓存后调用者不能再修改data
+     */
+    public void put(String url, byte[] data) {
+        if (url == null || data == null || data.length == 0 || data.length > maxSize) {
+            return;
+        }
+        mCacheMap.putIfAbsent(url, data);
+    }
+
+    public void remove(String url) {
+        mCacheMap.remove(url);
+    }
+
+    /**
+     * @return 返回当前缓存占用的字节数(以字节B为单位)
+     */
+    public long getSize() {
+        return mCacheMap.size();
+    }
+
+    public void clear() {
+        mCacheMap.evictAll();
+    }
+
+    public void register(Context context) {
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
+
+    public void unregister(Context context) {
+        context.getApplicationContext().unregisterComponentCallbacks(this);
+    }
+
+    /**
+     * 压缩字节重新获取只需要读一次磁盘，因此比Bitmap缓存更早释放：
+     * 前台内存紧张时按比例淘汰，界面不可见后全部清空
+     *
+     * @param level {@link ComponentCallbacks2}中的内存等级
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCacheMap.trimToSize(maxSize / 4);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            mCacheMap.trimToSize(maxSize / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+
+    }
+}
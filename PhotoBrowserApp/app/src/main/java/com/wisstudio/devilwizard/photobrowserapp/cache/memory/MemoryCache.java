@@ -1,172 +1,502 @@
 package com.wisstudio.devilwizard.photobrowserapp.cache.memory;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
-import android.util.LruCache;
 
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy.EvictionPolicy;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy.LruPolicy;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy.StripedPolicy;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy.TinyLfuPolicy;
 import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * MemoryCache类用于内存缓存已加载的图片，所有数据均以KB为单位
+ * 缓存以{@link BitmapKey}（url + 目标宽高 + 储存格式）为键，同一张图片可以同时缓存多个不同大小的版本
+ * 注册到Context后会响应系统的{@link #onTrimMemory(int)}和{@link #onLowMemory()}，按内存紧张的程度分级缩小缓存和复用池
  *
  * @author WizardK
  * @date 2021-04-06
  */
-public class MemoryCache {
+public class MemoryCache implements ComponentCallbacks2 {
 
 
     private static final String TAG = "MemoryCache";
 
     /**
-     * 最大的缓存字节数（KB为单位）
+     * 默认的复用池大小与内存缓存大小之比的倒数
+     */
+    private static final int DEFAULT_POOL_RATIO = 4;
+
+    /**
+     * 使用{@link EvictionType#TINY_LFU}时窗口区占缓存的初始比例。缩略图较大，缓存中只有几十张，
+     * 而上下来回滑动一两屏是最常见的浏览方式，窗口区需要能容纳这段距离内的图片，否则刚加载出来的图片还没来得及被再次访问就会被拒绝
+     */
+    private static final float TINY_LFU_WINDOW_RATIO = 0.5f;
+
+    /**
+     * 估计频率统计表大小时假定的单张图片大小(KB)，取得比实际缩略图小，使统计表能记住一次快速滑动中出现的大量图片
+     */
+    private static final int TINY_LFU_EXPECTED_ENTRY_SIZE = 32;
+
+    /**
+     * 普通设备上内存缓存占应用内存等级({@link ActivityManager#getMemoryClass()})的比例的倒数
+     */
+    private static final int DEFAULT_MEMORY_CLASS_DIVISOR = 8;
+
+    /**
+     * 低内存设备({@link ActivityManager#isLowRamDevice()})上内存缓存占应用内存等级的比例的倒数
+     */
+    private static final int LOW_RAM_MEMORY_CLASS_DIVISOR = 16;
+
+    /**
+     * 低内存设备上复用池大小与内存缓存大小之比的倒数
+     */
+    private static final int LOW_RAM_POOL_RATIO = 8;
+
+    /**
+     * 缓存容量恢复到初始大小时回调{@link OnResizeListener}所传的trimLevel
+     */
+    public static final int TRIM_LEVEL_RESTORED = 0;
+
+    /**
+     * 缓存容量改变时的回调，可用于统计内存紧张的频率和缓存实际可用的大小
+     */
+    public interface OnResizeListener {
+        /**
+         * @param oldMaxSize 改变前的缓存容量(KB为单位)
+         * @param newMaxSize 改变后的缓存容量(KB为单位)
+         * @param trimLevel 引起改变的{@link ComponentCallbacks2}内存等级，恢复时为{@link #TRIM_LEVEL_RESTORED}
+         */
+        void onResize(long oldMaxSize, long newMaxSize, int trimLevel);
+    }
+
+    /**
+     * 缓存可选的淘汰策略
+     */
+    public enum EvictionType {
+        /**
+         * 最近最少使用，与{@link android.util.LruCache}相同
+         */
+        LRU,
+        /**
+         * W-TinyLFU，根据访问频率决定是否接纳新图片，快速滑动时不会把经常回看的图片挤出缓存
+         */
+        TINY_LFU
+    }
+
+    /**
+     * 最大的缓存字节数（KB为单位），即内存不紧张时的容量
      */
     private final int maxMemorySize;
 
     /**
-     * 用LruCache作内存缓存
+     * 复用池在内存不紧张时的容量(以字节B为单位)
      */
-    private final LruCache<String, Bitmap> mCacheMap;
+    private final long maxPoolSize;
 
     /**
-     * 用于保存那些被移出内存缓存{@link #mCacheMap}的Bitmap引用，方便后续在这寻找合适的{@link BitmapFactory.Options#inBitmap}进行复用
+     * 当前生效的缓存容量(KB为单位)，内存紧张时小于{@link #maxMemorySize}
      */
-    private final Set<SoftReference<Bitmap>> reusableBitmaps;
+    private long currentMaxSize;
+
+    private volatile OnResizeListener onResizeListener;
 
     /**
-     * 初始化内存缓存，并设置缓存大小{@link #maxMemorySize}(以KB为单位)
+     * 内存缓存，具体的淘汰策略见{@link EvictionType}
+     */
+    private final EvictionPolicy<BitmapKey, BitmapResource> mCacheMap;
+
+    /**
+     * 记录每个url在{@link #mCacheMap}中缓存了哪些版本，用于在没有完全匹配的版本时寻找更大的版本来缩放
+     */
+    private final Map<String, List<BitmapKey>> variants;
+
+    /**
+     * 用于保存那些被移出内存缓存{@link #mCacheMap}的Bitmap，方便后续在这寻找合适的{@link BitmapFactory.Options#inBitmap}进行复用
+     */
+    private final BitmapPool bitmapPool;
+
+    /**
+     * 初始化内存缓存，并设置缓存大小{@link #maxMemorySize}(以KB为单位)，复用池的大小默认为缓存大小的1/{@link #DEFAULT_POOL_RATIO}
      *
      * @param maxMemorySizeInByte 内存缓存的最大值(以字节B为单位)
      */
     public MemoryCache(int maxMemorySizeInByte) {
+        this(maxMemorySizeInByte, maxMemorySizeInByte / DEFAULT_POOL_RATIO);
+    }
+
+    /**
+     * 初始化内存缓存，并设置缓存大小{@link #maxMemorySize}(以KB为单位)及复用池{@link #bitmapPool}的大小
+     *
+     * @param maxMemorySizeInByte 内存缓存的最大值(以字节B为单位)
+     * @param maxPoolSizeInByte 复用池的最大值(以字节B为单位)
+     */
+    public MemoryCache(int maxMemorySizeInByte, int maxPoolSizeInByte) {
+        this(maxMemorySizeInByte, maxPoolSizeInByte, EvictionType.LRU);
+    }
+
+    /**
+     * 初始化内存缓存，并设置缓存大小{@link #maxMemorySize}(以KB为单位)、复用池{@link #bitmapPool}的大小及淘汰策略
+     *
+     * @param maxMemorySizeInByte 内存缓存的最大值(以字节B为单位)
+     * @param maxPoolSizeInByte 复用池的最大值(以字节B为单位)
+     * @param evictionType 缓存的淘汰策略
+     */
+    public MemoryCache(int maxMemorySizeInByte, int maxPoolSizeInByte, EvictionType evictionType) {
+        this(maxMemorySizeInByte, maxPoolSizeInByte, evictionType, 1);
+    }
+
+    /**
+     * 初始化内存缓存，并设置缓存大小{@link #maxMemorySize}(以KB为单位)、复用池{@link #bitmapPool}的大小、淘汰策略及并发度
+     * 并发度大于1且使用{@link EvictionType#LRU}时，缓存会被分为多个独立加锁的段（见{@link StripedPolicy}），
+     * 多个加载线程同时读写缓存时不必争抢同一把锁；{@link EvictionType#TINY_LFU}需要全局的访问频率，不做分段
+     *
+     * @param maxMemorySizeInByte 内存缓存的最大值(以字节B为单位)
+     * @param maxPoolSizeInByte 复用池的最大值(以字节B为单位)
+     * @param evictionType 缓存的淘汰策略
+     * @param concurrencyLevel 预计同时访问缓存的线程数
+     */
+    public MemoryCache(int maxMemorySizeInByte, int maxPoolSizeInByte, EvictionType evictionType, int concurrencyLevel) {
         this.maxMemorySize = maxMemorySizeInByte / 1024;
-        MyLog.d(TAG, "MemoryCache: maxMemorySize is " + maxMemorySize/1024 + "MB");
-        reusableBitmaps = Collections.synchronizedSet(new HashSet<>());
-        mCacheMap = new LruCache<String, Bitmap>(maxMemorySize){
+        this.maxPoolSize = maxPoolSizeInByte;
+        this.currentMaxSize = maxMemorySize;
+        MyLog.d(TAG, "MemoryCache: maxMemorySize is " + maxMemorySize/1024 + "MB, policy: " + evictionType
+                + ", concurrencyLevel: " + concurrencyLevel);
+        bitmapPool = new BitmapPool(maxPoolSizeInByte);
+        variants = new HashMap<>();
+
+        EvictionPolicy.Weigher<BitmapKey, BitmapResource> weigher = new EvictionPolicy.Weigher<BitmapKey, BitmapResource>() {
             @Override
-            protected int sizeOf(String key, Bitmap value) {
-                return value.getByteCount() / 1024;//转为KB
+            public int weigh(BitmapKey key, BitmapResource value) {
+                //复用池给出的inBitmap可能比图片本身更大或格式不同，按实际占用的内存计算
+                return value.getBitmap().getAllocationByteCount() / 1024;//转为KB
             }
-
+        };
+        EvictionPolicy.RemovalListener<BitmapKey, BitmapResource> listener = new EvictionPolicy.RemovalListener<BitmapKey, BitmapResource>() {
             @Override
-            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
-                reusableBitmaps.add(new SoftReference<Bitmap>(oldValue));//当其被移出时，将其加入reusableBitmaps
+            public void onEntryRemoved(boolean evicted, BitmapKey key, BitmapResource oldValue, BitmapResource newValue) {
+                if (newValue == null) {
+                    removeVariant(key);
+                }
+                oldValue.release();//释放缓存持有的引用，没有ImageView在显示时才会放入复用池
             }
         };
+        switch (evictionType) {
+            case TINY_LFU:
+                mCacheMap = new TinyLfuPolicy<>(maxMemorySize, TINY_LFU_WINDOW_RATIO,
+                        maxMemorySize / TINY_LFU_EXPECTED_ENTRY_SIZE, weigher, listener);
+                break;
+            case LRU:
+            default:
+                mCacheMap = concurrencyLevel > 1
+                        ? new StripedPolicy<>(maxMemorySize, concurrencyLevel, weigher, listener)
+                        : new LruPolicy<>(maxMemorySize, weigher, listener);
+                break;
+        }
     }
 
     /**
-     * 从缓存中取出图片
+     * 根据设备的内存等级创建内存缓存，并注册到应用的Context以响应内存紧张的回调
+     * 普通设备上缓存占{@link ActivityManager#getMemoryClass()}的1/{@link #DEFAULT_MEMORY_CLASS_DIVISOR}，
+     * 低内存设备上占1/{@link #LOW_RAM_MEMORY_CLASS_DIVISOR}，复用池也相应缩小
      *
-     * @param key 储存在{@link #mCacheMap}中的图片的url地址
+     * @param context 用于获取ActivityManager及注册回调的Context
+     * @param evictionType 缓存的淘汰策略
+     * @param concurrencyLevel 预计同时访问缓存的线程数
      *
-     * @return 若该图片仍在缓存中则返回其Bitmap，否则返回null
+     * @return 返回已注册回调的内存缓存
      */
-    public Bitmap get(String key) {
-        return mCacheMap.get(key);
+    public static MemoryCache create(Context context, EvictionType evictionType, int concurrencyLevel) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClassInByte = activityManager.getMemoryClass() * 1024L * 1024L;
+        boolean lowRam = activityManager.isLowRamDevice();
+        //声明了largeHeap时memoryClass仍是普通应用的上限，以两者中较小者为准
+        long heapInByte = Math.min(memoryClassInByte, Runtime.getRuntime().maxMemory());
+        int maxMemorySizeInByte = (int) (heapInByte / (lowRam ? LOW_RAM_MEMORY_CLASS_DIVISOR : DEFAULT_MEMORY_CLASS_DIVISOR));
+        int maxPoolSizeInByte = maxMemorySizeInByte / (lowRam ? LOW_RAM_POOL_RATIO : DEFAULT_POOL_RATIO);
+        MyLog.d(TAG, "create: memoryClass is " + activityManager.getMemoryClass() + "MB, lowRam: " + lowRam);
+
+        MemoryCache memoryCache = new MemoryCache(maxMemorySizeInByte, maxPoolSizeInByte, evictionType, concurrencyLevel);
+        memoryCache.register(context);
+        return memoryCache;
     }
 
     /**
-     * 缓存图片
-     *
-     * @param key 储存在{@link #mCacheMap}中的url地址
-     *
-     * @param value 待储存图片的Bitmap对象
-     *
-     * @return void
+     * 注册到应用的Context，使缓存能收到{@link #onTrimMemory(int)}及{@link #onLowMemory()}回调
      */
-    public void put(String key, Bitmap value) {
+    public void register(Context context) {
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
 
-        if (get(key) == null) {
-            mCacheMap.put(key, value);
-        }
-        MyLog.d(TAG, "currentSize of MemoryCache in MB: "+ mCacheMap.size() / 1024);
+    /**
+     * 取消注册，不再响应内存紧张的回调
+     */
+    public void unregister(Context context) {
+        context.getApplicationContext().unregisterComponentCallbacks(this);
     }
 
     /**
-     * 通过遍历{@link #reusableBitmaps}来寻找是否有能够被复用的bitmap引用
-     *
-     * @param options 要加载的目标图片的相关{@link BitmapFactory.Options}参数
+     * 按内存紧张的程度分级处理：
+     * 前台运行时（RUNNING_*）只按比例缩小缓存和复用池的容量，尽量保留正在浏览的图片；
+     * 界面不可见后（UI_HIDDEN及以上）不会再解码新图片，复用池直接清空，缓存随着进程在LRU列表中的位置越靠后缩得越小；
+     * TRIM_MEMORY_COMPLETE时进程随时可能被杀，清空全部缓存
+     * 容量只会缩小，直到{@link #restoreMaxSize()}被调用才恢复
      *
-     * @return 返回符合条件的bitmap
+     * @param level {@link ComponentCallbacks2}中的内存等级
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        MyLog.d(TAG, "onTrimMemory: level " + level);
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            shrink(level, 8, 0);
+            clearCache();
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            shrink(level, 8, 0);
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            shrink(level, 4, 0);
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            shrink(level, 2, 0);
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            shrink(level, 4, 0);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            shrink(level, 2, 2);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            shrink(level, 4 / 3f, 4 / 3f);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+
+    }
+
+    /**
+     * 将缓存和复用池的容量恢复到初始大小，应在界面重新可见时调用
      */
-    public Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        Bitmap bitmap = null;
+    public void restoreMaxSize() {
+        long oldMaxSize;
+        synchronized (this) {
+            if (currentMaxSize == maxMemorySize) {
+                return;
+            }
+            oldMaxSize = currentMaxSize;
+            currentMaxSize = maxMemorySize;
+            mCacheMap.resize(maxMemorySize);
+            bitmapPool.resize(maxPoolSize);
+        }
+        notifyResize(oldMaxSize, maxMemorySize, TRIM_LEVEL_RESTORED);
+    }
 
-        if (reusableBitmaps != null && !reusableBitmaps.isEmpty()) {
-            synchronized (reusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = reusableBitmaps.iterator();
-                Bitmap item;
+    /**
+     * 设置缓存容量改变时的回调
+     */
+    public void setOnResizeListener(OnResizeListener onResizeListener) {
+        this.onResizeListener = onResizeListener;
+    }
 
-                while(iterator.hasNext()) {
-                    item = iterator.next().get();
+    /**
+     * @return 返回当前生效的缓存容量(KB为单位)
+     */
+    public synchronized long getMaxSize() {
+        return currentMaxSize;
+    }
 
-                    if (item != null && item.isMutable()) {
-                        //检查item是否符合复用条件
-                        if (canUseForInBitmap(item, options)) {
-                            MyLog.d(TAG, "getBitmapFromReusableSet: candidate found!");
-                            bitmap = item;
-                            iterator.remove();//若符合条件则将其从reusableBitmaps移除，防止二次使用
-                            break;
-                        }
-                    } else {
-                        iterator.remove();//若此bitmap引用已被清理，则也将其移出
-                    }
-                }
+    /**
+     * @return 返回当前缓存占用的大小(KB为单位)
+     */
+    public long getSize() {
+        return mCacheMap.size();
+    }
 
+    /**
+     * 将缓存容量缩小为初始大小的1/cacheDivisor，复用池缩小为初始大小的1/poolDivisor（poolDivisor为0时清空复用池），
+     * 若当前容量已经更小则保持不变
+     */
+    private void shrink(int level, float cacheDivisor, float poolDivisor) {
+        long oldMaxSize;
+        long newMaxSize = Math.max(1, (long) (maxMemorySize / cacheDivisor));
+        long newPoolSize = poolDivisor == 0 ? 0 : (long) (maxPoolSize / poolDivisor);
+        synchronized (this) {
+            if (newPoolSize < bitmapPool.getMaxSize()) {
+                bitmapPool.resize(newPoolSize);
+            }
+            if (newMaxSize >= currentMaxSize) {
+                return;
             }
+            oldMaxSize = currentMaxSize;
+            currentMaxSize = newMaxSize;
+            mCacheMap.resize(newMaxSize);
+        }
+        MyLog.d(TAG, "shrink: maxMemorySize " + oldMaxSize / 1024 + "MB -> " + newMaxSize / 1024 + "MB");
+        notifyResize(oldMaxSize, newMaxSize, level);
+    }
+
+    private void notifyResize(long oldMaxSize, long newMaxSize, int trimLevel) {
+        OnResizeListener listener = onResizeListener;
+        if (listener != null) {
+            listener.onResize(oldMaxSize, newMaxSize, trimLevel);
         }
-        return bitmap;
     }
 
     /**
-     * 清除所有缓存
+     * 从缓存中取出图片，返回的资源已为调用者增加了一个引用，不再使用（如ImageView换了图片）时必须调用{@link BitmapResource#release()}
      *
-     * @exception
+     * @param key 储存在{@link #mCacheMap}中的图片的键
+     *
+     * @return 若该版本的图片仍在缓存中则返回其资源，否则返回null
      */
-    public void clearCache() {
-        mCacheMap.evictAll();//调用LruCache自带方法释放内存缓存
+    public BitmapResource get(BitmapKey key) {
+        BitmapResource resource = mCacheMap.get(key);
+        if (resource != null && resource.acquire()) {
+            return resource;
+        }
+        return null;//刚被淘汰且已放回复用池的图片不能再使用
     }
 
     /**
-     * 判断candidate是否符合被复用的条件
+     * 在没有完全匹配key的版本时，从同一url已缓存的更大的版本中缩放出目标大小的图片，并将其缓存起来，
+     * 这样就不必再从文件缓存或网络重新解码。缩放需要一定的耗时，不应在UI线程中调用
      *
-     * @param candidate {@link #reusableBitmaps}中待判断是否符合复用资格的bitmap
-     * @param targetOptions 要加载的目标图片的相关{@link BitmapFactory.Options}参数
+     * @param key 目标版本的键
+     * @param targetWidth 目标版本解码后的宽(以pixel为单位)
+     * @param targetHeight 目标版本解码后的高(以pixel为单位)
      *
-     * @return 符合则返回true，否则返回false
+     * @return 返回缩放后的图片资源（已为调用者增加了一个引用），若没有足够大的版本则返回null
      */
-    private boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options targetOptions) {
+    public BitmapResource getScaledFromLargerVariant(BitmapKey key, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return null;
+        }
+        BitmapResource source = null;
+        synchronized (variants) {
+            List<BitmapKey> keys = variants.get(key.getUrl());
+            if (keys == null) {
+                return null;
+            }
+            //选出能覆盖目标大小的最小版本，缩放时的开销和失真都最小
+            for (BitmapKey variantKey : keys) {
+                if (variantKey.getConfig() != key.getConfig()) {
+                    continue;
+                }
+                BitmapResource candidate = mCacheMap.get(variantKey);
+                if (candidate == null) {
+                    continue;
+                }
+                Bitmap bitmap = candidate.getBitmap();
+                if (bitmap.getWidth() >= targetWidth && bitmap.getHeight() >= targetHeight
+                        && (source == null || bitmap.getAllocationByteCount() < source.getBitmap().getAllocationByteCount())) {
+                    source = candidate;
+                }
+            }
+        }
+        if (source == null || !source.acquire()) {//缩放期间持有引用，防止源图片被淘汰后立即被复用
+            return null;
+        }
+        Bitmap sourceBitmap = source.getBitmap();
+        MyLog.d(TAG, "getScaledFromLargerVariant: " + key + " scaled from " + sourceBitmap.getWidth() + "x" + sourceBitmap.getHeight());
+        if (sourceBitmap.getWidth() == targetWidth && sourceBitmap.getHeight() == targetHeight) {
+            return cacheResource(key, source);//大小刚好相同时两个键共用同一个资源
+        }
+        Bitmap scaled;
+        try {
+            scaled = Bitmap.createScaledBitmap(sourceBitmap, targetWidth, targetHeight, true);
+        } finally {
+            source.release();
+        }
+        return put(key, scaled);
+    }
 
-        int width = targetOptions.outWidth / (targetOptions.inSampleSize > 0 ? targetOptions.inSampleSize:1);
-        int height = targetOptions.outHeight / (targetOptions.inSampleSize > 0 ? targetOptions.inSampleSize:1);
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        //当目标图片比candidate小时（占用内存更小时），则candidate符合复用资格
-        return byteCount <= candidate.getAllocationByteCount();
+    /**
+     * 缓存图片，若该版本已在缓存中（例如两个线程同时加载了同一张图片）则保留已有的Bitmap
+     * 写入不会被当作一次访问，不会打乱淘汰顺序，也不会计入命中率
+     *
+     * @param key 储存在{@link #mCacheMap}中的键
+     *
+     * @param value 待储存图片的Bitmap对象
+     *
+     * @return 返回实际缓存的图片资源（若已有缓存则为已有的资源），已为调用者增加了一个引用
+     */
+    public BitmapResource put(BitmapKey key, Bitmap value) {
+        BitmapResource resource = cacheResource(key, new BitmapResource(value, bitmapPool));
+        MyLog.d(TAG, "currentSize of MemoryCache in MB: "+ mCacheMap.size() / 1024);
+        return resource;
     }
 
     /**
-     * 根据图片的bitmap储存格式，返回相应的单位像素占用内存大小(Byte/pixel)
+     * 返回用于{@link BitmapFactory.Options#inBitmap}复用的Bitmap池
      *
-     * @return 返回相应的单位像素占用内存大小(Byte/pixel)
+     * @return 返回{@link #bitmapPool}
      */
-    private int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
-            return 4;
-        } else if (config == Config.RGB_565){
-            return 2;
-        } else if (config == Config.ARGB_4444) {
-            return 2;
-        } else if (config == Config.ALPHA_8) {
-            return 1;
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * 清除所有缓存
+     *
+     * @exception
+     */
+    public void clearCache() {
+        mCacheMap.evictAll();//调用LruCache自带方法释放内存缓存
+        bitmapPool.clear();
+    }
+
+    /**
+     * 让缓存持有resource的一个引用并以key储存，调用者须已持有resource的引用
+     *
+     * @return 返回实际缓存的资源并将调用者的引用转移给它，若key已有其他资源则释放resource并返回已有的资源
+     */
+    private BitmapResource cacheResource(BitmapKey key, BitmapResource resource) {
+        resource.acquire();//缓存的引用
+        BitmapResource existing = mCacheMap.putIfAbsent(key, resource);
+        if (existing == null) {
+            addVariant(key);
+            return resource;
+        }
+        resource.release();
+        if (existing.acquire()) {
+            resource.release();//没有被缓存也没有显示过，直接放回复用池
+            return existing;
         }
+        return resource;//已有的资源恰好被淘汰，直接使用未缓存的resource
+    }
 
-        return 1;
+    private void addVariant(BitmapKey key) {
+        synchronized (variants) {
+            List<BitmapKey> keys = variants.get(key.getUrl());
+            if (keys == null) {
+                keys = new ArrayList<>(2);
+                variants.put(key.getUrl(), keys);
+            }
+            if (!keys.contains(key)) {
+                keys.add(key);
+            }
+        }
+    }
+
+    private void removeVariant(BitmapKey key) {
+        synchronized (variants) {
+            List<BitmapKey> keys = variants.get(key.getUrl());
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    variants.remove(key.getUrl());
+                }
+            }
+        }
     }
 }
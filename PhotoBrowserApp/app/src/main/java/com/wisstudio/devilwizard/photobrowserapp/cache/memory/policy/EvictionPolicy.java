@@ -0,0 +1,94 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy;
+
+/**
+ * 内存缓存的淘汰策略接口，{@link com.wisstudio.devilwizard.photobrowserapp.cache.memory.MemoryCache}通过它来储存和淘汰图片，
+ * 容量以{@link Weigher}计算出的权重为单位（对图片来说即占用的KB数），而不是条目数
+ * 实现类需要保证线程安全
+ *
+ * @author WizardK
+ * @date 2021-05-05
+ */
+public interface EvictionPolicy<K, V> {
+
+    /**
+     * 计算每个条目的权重
+     */
+    interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    /**
+     * 条目被移出缓存时的回调，与{@link android.util.LruCache}的entryRemoved含义相同，且不会在持有缓存锁的时候回调
+     */
+    interface RemovalListener<K, V> {
+        /**
+         * @param evicted 若是因容量不足被淘汰则为true，若是被remove或put替换则为false
+         * @param key 被移出的键
+         * @param oldValue 被移出的值
+         * @param newValue 若是被put替换则为新的值，否则为null
+         */
+        void onEntryRemoved(boolean evicted, K key, V oldValue, V newValue);
+    }
+
+    /**
+     * 取出key对应的值，并将这次访问记录到淘汰策略中
+     *
+     * @return 若存在则返回其值，否则返回null
+     */
+    V get(K key);
+
+    /**
+     * 缓存key对应的值，必要时淘汰其他条目
+     *
+     * @return 返回被替换的旧值，若没有则返回null
+     */
+    V put(K key, V value);
+
+    /**
+     * 仅当key不在缓存中时才缓存其值，检查和写入是原子的，且不会被当作一次访问
+     *
+     * @return 若key已在缓存中则返回已有的值（不替换），否则返回null
+     */
+    V putIfAbsent(K key, V value);
+
+    /**
+     * 移除key对应的条目
+     *
+     * @return 返回被移除的值，若没有则返回null
+     */
+    V remove(K key);
+
+    /**
+     * 判断key是否在缓存中，与{@link #get(Object)}不同，此方法不会被当作一次访问
+     */
+    boolean containsKey(K key);
+
+    /**
+     * 淘汰条目直到总权重不大于maxSize
+     */
+    void trimToSize(long maxSize);
+
+    /**
+     * 修改缓存的最大容量，若当前总权重超出新的容量则立即淘汰
+     */
+    void resize(long maxSize);
+
+    /**
+     * 清空所有条目
+     */
+    void evictAll();
+
+    /**
+     * @return 返回当前所有条目的总权重
+     */
+    long size();
+
+    /**
+     * @return 返回最大容量
+     */
+    long maxSize();
+
+    int hitCount();
+
+    int missCount();
+}
@@ -0,0 +1,123 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy;
+
+/**
+ * 用于估计条目访问频率的Count-Min Sketch，每个计数器只占4位（最大计为15），一个long可容纳16个计数器，
+ * 因此即使记录大量只访问过一次的url也只占用很少的内存
+ * 当记录的访问次数达到{@link #sampleSize}时，所有计数器减半，使频率能随时间衰减，旧的热门图片不会一直霸占缓存
+ * 此类不是线程安全的，需由调用者加锁
+ *
+ * @author WizardK
+ * @date 2021-05-05
+ */
+final class FrequencySketch {
+
+    /**
+     * 用于计算四个哈希位置的种子
+     */
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    /**
+     * 每个计数器减半时用的掩码
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private long[] table;
+    private int tableMask;
+
+    /**
+     * 累计的访问次数，达到此值时执行一次{@link #reset()}
+     */
+    private int sampleSize;
+    private int size;
+
+    /**
+     * @param expectedEntries 预计缓存中同时存在的条目数
+     */
+    FrequencySketch(int expectedEntries) {
+        ensureCapacity(expectedEntries);
+    }
+
+    /**
+     * 保证计数器表能容纳maximumSize个条目，若需要扩容则会丢弃已有的计数
+     *
+     * @param maximumSize 预计缓存中同时存在的最大条目数
+     */
+    void ensureCapacity(int maximumSize) {
+        int maximum = Math.max(maximumSize, 16);
+        if (table != null && table.length >= maximum) {
+            return;
+        }
+        int capacity = Integer.highestOneBit(maximum - 1) << 1;
+        table = new long[capacity];
+        tableMask = capacity - 1;
+        sampleSize = 10 * maximum;
+        size = 0;
+    }
+
+    /**
+     * 估计e被访问的频率
+     *
+     * @return 返回0~15之间的估计频率
+     */
+    int frequency(Object e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * 将e的访问频率加一
+     */
+    void increment(Object e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = (0xfL << offset);
+        if ((table[i] & mask) != mask) {//计数器已满（15）时不再增加
+            table[i] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 所有计数器减半
+     */
+    private void reset() {
+        int count = 0;
+        for (int i = 0; i < table.length; i++) {
+            count += Long.bitCount(table[i] & 0x1111111111111111L);//减半时被舍去的奇数部分
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (count >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,204 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 最近最少使用（LRU）淘汰策略，行为与{@link android.util.LruCache}一致：
+ * 用访问顺序的{@link LinkedHashMap}记录条目，容量不足时从最久未访问的条目开始淘汰
+ *
+ * @author WizardK
+ * @date 2021-05-05
+ */
+public class LruPolicy<K, V> implements EvictionPolicy<K, V> {
+
+    private final LinkedHashMap<K, V> map;
+    private final Weigher<K, V> weigher;
+    private final RemovalListener<K, V> listener;
+
+    private long size;
+    private long maxSize;
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * @param maxSize 最大容量（以weigher计算的权重为单位）
+     * @param weigher 计算条目权重的方法
+     * @param listener 条目被移出时的回调，可为null
+     */
+    public LruPolicy(long maxSize, Weigher<K, V> weigher, RemovalListener<K, V> listener) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must larger than 0");
+        }
+        this.maxSize = maxSize;
+        this.weigher = weigher;
+        this.listener = listener;
+        this.map = new LinkedHashMap<>(0, 0.75f, true);//按访问顺序排列
+    }
+
+    @Override
+    public V get(K key) {
+        synchronized (this) {
+            V value = map.get(key);
+            if (value != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+            return value;
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        V previous;
+        List<Map.Entry<K, V>> evicted;
+        synchronized (this) {
+            size += weigher.weigh(key, value);
+            previous = map.put(key, value);
+            if (previous != null) {
+                size -= weigher.weigh(key, previous);
+            }
+            evicted = evictLocked(maxSize);
+        }
+        if (previous != null) {
+            notifyRemoved(false, key, previous, value);
+        }
+        notifyEvicted(evicted);
+        return previous;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        List<Map.Entry<K, V>> evicted;
+        synchronized (this) {
+            if (map.containsKey(key)) {
+                return peekLocked(key);
+            }
+            map.put(key, value);
+            size += weigher.weigh(key, value);
+            evicted = evictLocked(maxSize);
+        }
+        notifyEvicted(evicted);
+        return null;
+    }
+
+    @Override
+    public V remove(K key) {
+        V previous;
+        synchronized (this) {
+            previous = map.remove(key);
+            if (previous != null) {
+                size -= weigher.weigh(key, previous);
+            }
+        }
+        if (previous != null) {
+            notifyRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized boolean containsKey(K key) {
+        return map.containsKey(key);//containsKey不会改变LinkedHashMap的访问顺序
+    }
+
+    @Override
+    public void trimToSize(long maxSize) {
+        List<Map.Entry<K, V>> evicted;
+        synchronized (this) {
+            evicted = evictLocked(maxSize);
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must larger than 0");
+        }
+        synchronized (this) {
+            this.maxSize = maxSize;
+        }
+        trimToSize(maxSize);
+    }
+
+    @Override
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized long maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    /**
+     * 不改变访问顺序地读取key对应的值，{@link LinkedHashMap#get(Object)}会把条目移到队尾，因此这里遍历查找，
+     * 只有两个线程同时加载了同一张图片时才会走到这里
+     */
+    private V peekLocked(K key) {
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            if (entry.getKey().equals(key)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在持有锁时淘汰最久未访问的条目，返回被淘汰的条目，待释放锁后再回调
+     */
+    private List<Map.Entry<K, V>> evictLocked(long maxSize) {
+        List<Map.Entry<K, V>> evicted = null;
+        Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<K, V> eldest = iterator.next();
+            iterator.remove();
+            size -= weigher.weigh(eldest.getKey(), eldest.getValue());
+            if (evicted == null) {
+                evicted = new ArrayList<>();
+            }
+            evicted.add(eldest);
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(List<Map.Entry<K, V>> evicted) {
+        if (evicted != null) {
+            for (Map.Entry<K, V> entry : evicted) {
+                notifyRemoved(true, entry.getKey(), entry.getValue(), null);
+            }
+        }
+    }
+
+    private void notifyRemoved(boolean evicted, K key, V oldValue, V newValue) {
+        if (listener != null) {
+            listener.onEntryRemoved(evicted, key, oldValue, newValue);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分段加锁的淘汰策略：按key的哈希把条目分到若干个段中，每个段是一个独立加锁的{@link EvictionPolicy}，
+ * 不同段的读写互不阻塞，从而避免{@link android.util.LruCache}那样所有加载线程都在同一把锁上排队
+ * 容量仍是全局的：所有段共用一个总权重{@link #totalSize}，超出{@link #maxSize}时轮流从各段各淘汰一个最旧的条目，
+ * 近似整个缓存的LRU，且优先不动刚写入的段；某一段可以暂时占用多于平均的容量，不会因为哈希分布不均而提前淘汰
+ *
+ * @author WizardK
+ * @date 2021-05-06
+ */
+public class StripedPolicy<K, V> implements EvictionPolicy<K, V> {
+
+    /**
+     * 创建每个段所用的淘汰策略
+     */
+    public interface SegmentFactory<K, V> {
+        /**
+         * @param maxSize 段的容量，即整个缓存的容量，段自身不需要再按比例划分
+         * @param listener 段中条目被移出时必须回调的监听器
+         */
+        EvictionPolicy<K, V> create(long maxSize, RemovalListener<K, V> listener);
+    }
+
+    private final EvictionPolicy<K, V>[] segments;
+    private final int segmentMask;
+    private final Weigher<K, V> weigher;
+    private final RemovalListener<K, V> listener;
+
+    /**
+     * 所有段的总权重
+     */
+    private final AtomicLong totalSize = new AtomicLong();
+
+    /**
+     * 下一次全局淘汰从哪个段开始
+     */
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+
+    private volatile long maxSize;
+
+    /**
+     * 使用LRU作为每个段的淘汰策略
+     *
+     * @param maxSize 最大容量（以weigher计算的权重为单位）
+     * @param concurrencyLevel 预计同时访问缓存的线程数，段数为不小于它的2的幂
+     * @param weigher 计算条目权重的方法
+     * @param listener 条目被移出时的回调，可为null
+     */
+    public StripedPolicy(long maxSize, int concurrencyLevel, final Weigher<K, V> weigher, RemovalListener<K, V> listener) {
+        this(maxSize, concurrencyLevel, weigher, listener, new SegmentFactory<K, V>() {
+            @Override
+            public EvictionPolicy<K, V> create(long maxSize, RemovalListener<K, V> listener) {
+                return new LruPolicy<>(maxSize, weigher, listener);
+            }
+        });
+    }
+
+    /**
+     * @param maxSize 最大容量（以weigher计算的权重为单位）
+     * @param concurrencyLevel 预计同时访问缓存的线程数，段数为不小于它的2的幂
+     * @param weigher 计算条目权重的方法，需与段所用的weigher一致
+     * @param listener 条目被移出时的回调，可为null
+     * @param factory 创建每个段的淘汰策略
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public StripedPolicy(long maxSize, int concurrencyLevel, Weigher<K, V> weigher,
+                         RemovalListener<K, V> listener, SegmentFactory<K, V> factory) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must larger than 0");
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel must larger than 0");
+        }
+        this.maxSize = maxSize;
+        this.weigher = weigher;
+        this.listener = listener;
+        int segmentCount = concurrencyLevel == 1 ? 1 : Integer.highestOneBit(concurrencyLevel - 1) << 1;
+        segmentMask = segmentCount - 1;
+        segments = new EvictionPolicy[segmentCount];
+        RemovalListener<K, V> segmentListener = new RemovalListener<K, V>() {
+            @Override
+            public void onEntryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+                totalSize.addAndGet(-StripedPolicy.this.weigher.weigh(key, oldValue));
+                if (StripedPolicy.this.listener != null) {
+                    StripedPolicy.this.listener.onEntryRemoved(evicted, key, oldValue, newValue);
+                }
+            }
+        };
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = factory.create(maxSize, segmentListener);
+        }
+    }
+
+    @Override
+    public V get(K key) {
+        return segmentFor(key).get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        EvictionPolicy<K, V> segment = segmentFor(key);
+        V previous = segment.put(key, value);//被替换的旧值会在段的回调中扣除
+        totalSize.addAndGet(weigher.weigh(key, value));
+        evictIfNeeded(segment);
+        return previous;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        EvictionPolicy<K, V> segment = segmentFor(key);
+        V existing = segment.putIfAbsent(key, value);
+        if (existing == null) {
+            totalSize.addAndGet(weigher.weigh(key, value));
+            evictIfNeeded(segment);
+        }
+        return existing;
+    }
+
+    @Override
+    public V remove(K key) {
+        return segmentFor(key).remove(key);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return segmentFor(key).containsKey(key);
+    }
+
+    @Override
+    public void trimToSize(long maxSize) {
+        if (maxSize < 0) {
+            evictAll();
+            return;
+        }
+        trimTotalTo(maxSize, null);
+    }
+
+    @Override
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must larger than 0");
+        }
+        this.maxSize = maxSize;
+        for (EvictionPolicy<K, V> segment : segments) {
+            segment.resize(maxSize);
+        }
+        evictIfNeeded(null);
+    }
+
+    @Override
+    public void evictAll() {
+        for (EvictionPolicy<K, V> segment : segments) {
+            segment.evictAll();
+        }
+    }
+
+    @Override
+    public long size() {
+        return totalSize.get();
+    }
+
+    @Override
+    public long maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public int hitCount() {
+        int hitCount = 0;
+        for (EvictionPolicy<K, V> segment : segments) {
+            hitCount += segment.hitCount();
+        }
+        return hitCount;
+    }
+
+    @Override
+    public int missCount() {
+        int missCount = 0;
+        for (EvictionPolicy<K, V> segment : segments) {
+            missCount += segment.missCount();
+        }
+        return missCount;
+    }
+
+    /**
+     * @return 返回段的个数
+     */
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    private EvictionPolicy<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);//与HashMap相同，让高位也参与段的选择
+        return segments[h & segmentMask];
+    }
+
+    private void evictIfNeeded(EvictionPolicy<K, V> written) {
+        if (totalSize.get() > maxSize) {
+            trimTotalTo(maxSize, written);
+        }
+    }
+
+    /**
+     * 从{@link #evictionCursor}指向的段开始轮流淘汰，每个段每次只淘汰它最旧的一个条目，直到总权重不大于maxSize；
+     * 每次只锁住一个段，其他线程在此期间仍可访问别的段
+     *
+     * @param written 刚写入的段，其他段都淘汰空了才从它淘汰，避免淘汰刚放入的条目；为null时不区分
+     */
+    private void trimTotalTo(long maxSize, EvictionPolicy<K, V> written) {
+        int skipped = 0;//连续跳过的段数，等于段数时说明只有written中还有条目
+        while (totalSize.get() > maxSize && skipped < segments.length) {
+            EvictionPolicy<K, V> segment = segments[evictionCursor.getAndIncrement() & segmentMask];
+            long segmentSize = segment.size();
+            if (segmentSize <= 0 || segment == written) {
+                skipped++;
+                continue;
+            }
+            skipped = 0;
+            segment.trimToSize(segmentSize - 1);//段内按自己的策略淘汰一个条目
+        }
+        long excess = totalSize.get() - maxSize;
+        if (excess > 0 && written != null) {
+            written.trimToSize(Math.max(0, written.size() - excess));
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * W-TinyLFU淘汰策略，容量按权重计算：
+ * <ul>
+ *     <li>新条目先进入较小的窗口区（window，LRU），用于容纳刚加载、马上要显示的图片</li>
+ *     <li>被挤出窗口的条目作为候选者进入主区的试用段（probation），主区满时用{@link FrequencySketch}比较
+ *         候选者与试用段中最久未访问者的访问频率，频率低的一方被淘汰</li>
+ *     <li>试用段中再次被访问的条目晋升到保护段（protected），保护段满时最久未访问者降回试用段</li>
+ * </ul>
+ * 这样快速滑到底部时大量只出现一次的图片只会在窗口区和试用段中流转，不会把经常回看的缩略图挤出缓存
+ * 窗口区的大小会用爬山法（hill climbing）根据每个采样周期的命中率自动调整：对于来回小幅滑动这种偏重最近性的访问模式，
+ * 窗口区会逐渐变大，表现接近LRU；对于频繁回看的模式，窗口区会变小，更多容量留给高频的图片
+ *
+ * @author WizardK
+ * @date 2021-05-05
+ */
+public class TinyLfuPolicy<K, V> implements EvictionPolicy<K, V> {
+
+    /**
+     * 默认窗口区占总容量的比例
+     */
+    public static final float DEFAULT_WINDOW_RATIO = 0.01f;
+
+    /**
+     * 保护段占主区容量的比例
+     */
+    private static final float PROTECTED_RATIO = 0.8f;
+
+    /**
+     * 窗口区最大能占总容量的比例
+     */
+    private static final float MAX_WINDOW_RATIO = 0.9f;
+
+    /**
+     * 爬山法每次调整窗口区大小的初始步长（占总容量的比例）
+     */
+    private static final float CLIMBER_STEP_RATIO = 0.0625f;
+
+    /**
+     * 命中率变化超过此值时认为访问模式发生了变化，步长恢复为初始值
+     */
+    private static final double CLIMBER_RESTART_THRESHOLD = 0.05;
+
+    /**
+     * 命中率变化不大时步长的衰减率
+     */
+    private static final double CLIMBER_STEP_DECAY = 0.98;
+
+    /**
+     * 命中率变化小于此值时不调整窗口区大小
+     */
+    private static final double CLIMBER_TOLERANCE = 0.01;
+
+    /**
+     * 每个采样周期至少包含的请求数
+     */
+    private static final int MIN_SAMPLE_PERIOD = 32;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final HashMap<K, Node<K, V>> data;
+    private final AccessQueue<K, V> windowQueue;
+    private final AccessQueue<K, V> probationQueue;
+    private final AccessQueue<K, V> protectedQueue;
+    private final FrequencySketch sketch;
+    private final Weigher<K, V> weigher;
+    private final RemovalListener<K, V> listener;
+    private final float initialWindowRatio;
+
+    private long maxSize;
+    private long windowMaxSize;
+    private long protectedMaxSize;
+    private long windowSize;
+    private long probationSize;
+    private long protectedSize;
+    private int hitCount;
+    private int missCount;
+
+    private int sampleCount;
+    private int sampleHits;
+    private double previousHitRate;
+    private double stepSize;
+
+    /**
+     * @param maxSize 最大容量（以weigher计算的权重为单位）
+     * @param weigher 计算条目权重的方法
+     * @param listener 条目被移出时的回调，可为null
+     */
+    public TinyLfuPolicy(long maxSize, Weigher<K, V> weigher, RemovalListener<K, V> listener) {
+        this(maxSize, DEFAULT_WINDOW_RATIO, 0, weigher, listener);
+    }
+
+    /**
+     * @param maxSize 最大容量（以weigher计算的权重为单位）
+     * @param windowRatio 窗口区占总容量的初始比例，取值范围(0, 1)，之后会根据命中率自动调整
+     * @param expectedEntries 预计同时缓存的条目数，用于初始化频率统计表，传入0则按需增长
+     * @param weigher 计算条目权重的方法
+     * @param listener 条目被移出时的回调，可为null
+     */
+    public TinyLfuPolicy(long maxSize, float windowRatio, int expectedEntries,
+                         Weigher<K, V> weigher, RemovalListener<K, V> listener) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must larger than 0");
+        }
+        if (windowRatio <= 0 || windowRatio >= 1) {
+            throw new IllegalArgumentException("windowRatio must between 0 and 1");
+        }
+        this.weigher = weigher;
+        this.listener = listener;
+        this.initialWindowRatio = windowRatio;
+        this.data = new HashMap<>();
+        this.windowQueue = new AccessQueue<>();
+        this.probationQueue = new AccessQueue<>();
+        this.protectedQueue = new AccessQueue<>();
+        this.sketch = new FrequencySketch(expectedEntries);
+        setMaxSizeLocked(maxSize);
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        sketch.increment(key);//未命中也记录，使再次请求的图片更容易被接纳
+        Node<K, V> node = data.get(key);
+        climbLocked(node != null);
+        if (node == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        onAccessLocked(node);//只在区段间移动，总权重不变，无需淘汰
+        return node.value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        V previous = null;
+        List<Node<K, V>> evicted;
+        synchronized (this) {
+            sketch.increment(key);
+            int weight = weigher.weigh(key, value);
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                previous = node.value;
+                addWeightLocked(node, weight - node.weight);
+                node.value = value;
+                node.weight = weight;
+                onAccessLocked(node);
+            } else {
+                node = new Node<>(key, value, weight);
+                data.put(key, node);
+                sketch.ensureCapacity(data.size());
+                node.queueType = WINDOW;
+                windowQueue.addLast(node);
+                windowSize += weight;
+            }
+            evicted = evictLocked(maxSize);
+        }
+        if (previous != null) {
+            notifyRemoved(false, key, previous, value);
+        }
+        notifyEvicted(evicted);
+        return previous;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        List<Node<K, V>> evicted;
+        synchronized (this) {
+            Node<K, V> existing = data.get(key);
+            if (existing != null) {
+                return existing.value;//不调用onAccessLocked，不改变条目所在的队列
+            }
+            sketch.increment(key);
+            Node<K, V> node = new Node<>(key, value, weigher.weigh(key, value));
+            data.put(key, node);
+            sketch.ensureCapacity(data.size());
+            node.queueType = WINDOW;
+            windowQueue.addLast(node);
+            windowSize += node.weight;
+            evicted = evictLocked(maxSize);
+        }
+        notifyEvicted(evicted);
+        return null;
+    }
+
+    @Override
+    public V remove(K key) {
+        Node<K, V> node;
+        synchronized (this) {
+            node = data.remove(key);
+            if (node != null) {
+                unlinkLocked(node);
+            }
+        }
+        if (node != null) {
+            notifyRemoved(false, key, node.value, null);
+            return node.value;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized boolean containsKey(K key) {
+        return data.containsKey(key);
+    }
+
+    @Override
+    public void trimToSize(long maxSize) {
+        List<Node<K, V>> evicted;
+        synchronized (this) {
+            evicted = evictLocked(maxSize);
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must larger than 0");
+        }
+        synchronized (this) {
+            setMaxSizeLocked(maxSize);
+        }
+        trimToSize(maxSize);
+    }
+
+    @Override
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    @Override
+    public synchronized long size() {
+        return windowSize + probationSize + protectedSize;
+    }
+
+    @Override
+    public synchronized long maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    private void setMaxSizeLocked(long maxSize) {
+        this.maxSize = maxSize;
+        this.stepSize = maxSize * CLIMBER_STEP_RATIO;
+        setWindowMaxSizeLocked((long) (maxSize * initialWindowRatio));
+    }
+
+    private void setWindowMaxSizeLocked(long windowMaxSize) {
+        this.windowMaxSize = Math.max(1, Math.min(windowMaxSize, (long) (maxSize * MAX_WINDOW_RATIO)));
+        this.protectedMaxSize = (long) ((maxSize - this.windowMaxSize) * PROTECTED_RATIO);
+    }
+
+    /**
+     * 用爬山法调整窗口区大小：每个采样周期结束时，若命中率比上一周期高则继续沿原方向调整，否则反向调整
+     *
+     * @param hit 本次请求是否命中
+     */
+    private void climbLocked(boolean hit) {
+        sampleCount++;
+        if (hit) {
+            sampleHits++;
+        }
+        if (sampleCount < Math.max(MIN_SAMPLE_PERIOD, data.size() * 2)) {
+            return;
+        }
+        double hitRate = (double) sampleHits / sampleCount;
+        double change = hitRate - previousHitRate;
+        previousHitRate = hitRate;
+        sampleCount = 0;
+        sampleHits = 0;
+        if (Math.abs(change) < CLIMBER_TOLERANCE) {
+            //命中率没有明显变化（如一直在快速滑动浏览新图片）时保持不动，否则窗口区会一路增大，退化成LRU
+            return;
+        }
+        double amount = change > 0 ? stepSize : -stepSize;
+        stepSize = Math.abs(change) >= CLIMBER_RESTART_THRESHOLD
+                ? maxSize * CLIMBER_STEP_RATIO * (amount >= 0 ? 1 : -1)
+                : CLIMBER_STEP_DECAY * amount;
+        setWindowMaxSizeLocked(windowMaxSize + (long) amount);
+        demoteFromProtectedLocked();
+    }
+
+    /**
+     * 条目被访问时调整其所在的区段
+     */
+    private void onAccessLocked(Node<K, V> node) {
+        switch (node.queueType) {
+            case WINDOW:
+                windowQueue.moveToLast(node);
+                break;
+            case PROBATION:
+                //试用段中再次被访问，晋升到保护段
+                probationQueue.remove(node);
+                probationSize -= node.weight;
+                node.queueType = PROTECTED;
+                protectedQueue.addLast(node);
+                protectedSize += node.weight;
+                demoteFromProtectedLocked();
+                break;
+            case PROTECTED:
+                protectedQueue.moveToLast(node);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 保护段超出容量时，将其中最久未访问的条目降回试用段
+     */
+    private void demoteFromProtectedLocked() {
+        while (protectedSize > protectedMaxSize) {
+            Node<K, V> demoted = protectedQueue.peekFirst();
+            if (demoted == null) {
+                break;
+            }
+            protectedQueue.remove(demoted);
+            protectedSize -= demoted.weight;
+            demoted.queueType = PROBATION;
+            probationQueue.addLast(demoted);
+            probationSize += demoted.weight;
+        }
+    }
+
+    /**
+     * 淘汰条目直到总权重不大于maxSize，返回被淘汰的条目，待释放锁后再回调
+     */
+    private List<Node<K, V>> evictLocked(long maxSize) {
+        List<Node<K, V>> evicted = null;
+        if (maxSize < 0) {
+            //清空缓存时无需比较频率
+            evicted = new ArrayList<>(data.values());
+            data.clear();
+            windowQueue.clear();
+            probationQueue.clear();
+            protectedQueue.clear();
+            windowSize = probationSize = protectedSize = 0;
+            return evicted;
+        }
+
+        //先把超出窗口区容量的条目移入试用段，第一个被移入的就是本轮的候选者
+        Node<K, V> candidate = null;
+        while (windowSize > windowMaxSize) {
+            Node<K, V> node = windowQueue.peekFirst();
+            if (node == null) {
+                break;
+            }
+            windowQueue.remove(node);
+            windowSize -= node.weight;
+            node.queueType = PROBATION;
+            probationQueue.addLast(node);
+            probationSize += node.weight;
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (size() > maxSize) {
+            Node<K, V> victim = probationQueue.peekFirst();
+            if (victim == null) {
+                victim = protectedQueue.peekFirst();
+            }
+            if (victim == null) {
+                victim = windowQueue.peekFirst();
+            }
+            if (victim == null) {
+                break;
+            }
+
+            Node<K, V> toEvict;
+            if (candidate == null || candidate == victim || candidate.queueType != PROBATION) {
+                toEvict = victim;
+                if (candidate == victim) {
+                    candidate = candidate.next;
+                }
+            } else if (candidate.weight > maxSize
+                    || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                //候选者不比受害者更常被访问，拒绝候选者
+                toEvict = candidate;
+                candidate = candidate.next;
+            } else {
+                toEvict = victim;
+            }
+
+            data.remove(toEvict.key);
+            unlinkLocked(toEvict);
+            if (evicted == null) {
+                evicted = new ArrayList<>();
+            }
+            evicted.add(toEvict);
+        }
+        return evicted;
+    }
+
+    private void addWeightLocked(Node<K, V> node, int delta) {
+        switch (node.queueType) {
+            case WINDOW:
+                windowSize += delta;
+                break;
+            case PROBATION:
+                probationSize += delta;
+                break;
+            case PROTECTED:
+                protectedSize += delta;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void unlinkLocked(Node<K, V> node) {
+        switch (node.queueType) {
+            case WINDOW:
+                windowQueue.remove(node);
+                windowSize -= node.weight;
+                break;
+            case PROBATION:
+                probationQueue.remove(node);
+                probationSize -= node.weight;
+                break;
+            case PROTECTED:
+                protectedQueue.remove(node);
+                protectedSize -= node.weight;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void notifyEvicted(List<Node<K, V>> evicted) {
+        if (evicted != null) {
+            for (Node<K, V> node : evicted) {
+                notifyRemoved(true, node.key, node.value, null);
+            }
+        }
+    }
+
+    private void notifyRemoved(boolean evicted, K key, V oldValue, V newValue) {
+        if (listener != null) {
+            listener.onEntryRemoved(evicted, key, oldValue, newValue);
+        }
+    }
+
+    /**
+     * 缓存条目，同时也是所在区段双向链表的节点
+     */
+    private static final class Node<K, V> {
+        final K key;
+        V value;
+        int weight;
+        int queueType;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 按访问顺序排列的双向链表，头部为最久未访问的条目，所有操作均为O(1)
+     */
+    private static final class AccessQueue<K, V> {
+        private Node<K, V> first;
+        private Node<K, V> last;
+
+        Node<K, V> peekFirst() {
+            return first;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            first = null;
+            last = null;
+        }
+    }
+}
@@ -10,7 +10,10 @@ import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
 
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 用于管理本地图片数据库
@@ -73,7 +76,14 @@ public class PhotoDataBaseManager {
             db.insert(tableName, null, values);
             values.clear();
         } else {
-            MyLog.d(TAG, "addOnePhoto Failed: this photo is already in the database!");
+            //已收藏图片的缓存被清理后记录仍在，只补上缓存路径
+            ContentValues values = new ContentValues();
+            values.put(CACHEPATH_COLUMN, cachePath);
+            int updated = db.update(tableName, values, URL_COLUMN + " = ? AND " + CACHEPATH_COLUMN + " IS NULL",
+                    new String[] {url});
+            if (updated == 0) {
+                MyLog.d(TAG, "addOnePhoto Failed: this photo is already in the database!");
+            }
         }
 
     }
@@ -94,6 +104,40 @@ public class PhotoDataBaseManager {
         }
     }
 
+    /**
+     * 在同一个事务中处理缓存文件已不存在的图片记录：未收藏的记录直接删除，
+     * 已收藏的记录保留收藏状态，只清空缓存路径，图片重新缓存后由{@link #addOnePhoto(String, String, int, int, String)}补上
+     *
+     * @param urls 缓存文件已不存在的图片的url
+     *
+     * @return 返回删除的记录数
+     */
+    public int removeCachedPhotos(Collection<String> urls) {
+        if (urls == null) {
+            throw new IllegalArgumentException("the urls must not be null !");
+        }
+        String unstarredClause = URL_COLUMN + " = ? AND " + STARRED_COLUMN + " != " + STARRED_STATE;
+        String whereClause = URL_COLUMN + " = ?";
+        ContentValues values = new ContentValues();
+        values.putNull(CACHEPATH_COLUMN);
+        int deleted = 0;
+        db.beginTransaction();
+        try {
+            for (String url : urls) {
+                int count = db.delete(tableName, unstarredClause, new String[] {url});
+                if (count == 0) {//已收藏
+                    db.update(tableName, values, whereClause, new String[] {url});
+                }
+                deleted += count;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        values.clear();
+        return deleted;
+    }
+
     /**
      * 查询源网址为url的图片是否储存在数据库中
      *
@@ -203,6 +247,48 @@ public class PhotoDataBaseManager {
         return cachedImages;
     }
 
+    /**
+     * 查询所有图片的缓存路径
+     *
+     * @return 返回url到缓存路径的映射
+     */
+    public Map<String, String> selectAllCachePaths() {
+        Map<String, String> cachePaths = new HashMap<>();
+        Cursor cursor = db.query(tableName, new String[] {URL_COLUMN, CACHEPATH_COLUMN}, null, null,
+                null, null, null);
+        if (cursor.moveToFirst()) {
+            do {
+                cachePaths.put(cursor.getString(0), cursor.getString(1));
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return cachePaths;
+    }
+
+    /**
+     * 在同一个事务中批量更新图片的缓存路径，如缓存文件被移动到新的位置后
+     *
+     * @param cachePaths url到新缓存路径的映射
+     */
+    public void updateCachePaths(Map<String, String> cachePaths) {
+        if (cachePaths == null) {
+            throw new IllegalArgumentException("the cachePaths must not be null !");
+        }
+        String whereClause = URL_COLUMN + " = ?";
+        ContentValues values = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, String> entry : cachePaths.entrySet()) {
+                values.put(CACHEPATH_COLUMN, entry.getValue());
+                db.update(tableName, values, whereClause, new String[] {entry.getKey()});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        values.clear();
+    }
+
     /**
      * 关闭当前的数据库连接，此方法只可在完全不需要操作数据库的时候调用，例如app进程被关闭时
      */
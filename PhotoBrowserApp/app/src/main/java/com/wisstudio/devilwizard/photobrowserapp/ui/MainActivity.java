@@ -4,11 +4,13 @@ import android.Manifest;
 import android.content.DialogInterface;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -25,13 +27,17 @@ import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import com.wisstudio.devilwizard.photobrowserapp.R;
 import com.wisstudio.devilwizard.photobrowserapp.cache.disk.FileCache;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.EncodedMemoryCache;
 import com.wisstudio.devilwizard.photobrowserapp.cache.memory.MemoryCache;
 import com.wisstudio.devilwizard.photobrowserapp.db.PhotoDataBaseHelper;
 import com.wisstudio.devilwizard.photobrowserapp.db.PhotoDataBaseManager;
+import com.wisstudio.devilwizard.photobrowserapp.util.LifecycleDispatcher;
 import com.wisstudio.devilwizard.photobrowserapp.util.MyApplication;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.MyImage;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.download.ImageDownLoader;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.load.ImageLoader;
+import com.wisstudio.devilwizard.photobrowserapp.util.image.load.PhotoLoadThreadPoolExecutor;
+import com.wisstudio.devilwizard.photobrowserapp.util.image.load.ScrollPrefetcher;
 import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
 import com.wisstudio.devilwizard.photobrowserapp.util.network.HttpCallBackListener;
 import com.wisstudio.devilwizard.photobrowserapp.util.network.HttpRequest;
@@ -45,10 +51,6 @@ import java.util.List;
  */
 public class MainActivity extends AppCompatActivity implements HttpCallBackListener<List<MyImage>> {
 
-
-    public static PhotoDataBaseManager photoDBManager;
-    private static MainActivity mainActivity;
-
     private static final String TAG = "MainActivity";
     private static final String PHOTO_JSON_HEAD = "https://picsum.photos/v2/list?page=";
     private static final String PHOTO_JSON_REAR = "&limit=8";//默认一次initImageList请求加载8张图片
@@ -59,6 +61,11 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
      */
     private static final int PHOTO_DB_VERSION = 1;
 
+    /**
+     * 文件缓存的存储方式，两种方式的读取吞吐量对比见DiskStorageBenchmarkTest
+     */
+    private static final FileCache.StorageType DISK_STORAGE_TYPE = FileCache.StorageType.PER_FILE;
+
     /**
      * 储存权限请求码
      */
@@ -69,6 +76,21 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
      */
     private static final int PAGE_PER_PHOTOS = 8;
 
+    /**
+     * 最多预加载到屏幕外第几张图片
+     */
+    private static final int PREFETCH_MAX_AHEAD = 12;
+
+    /**
+     * 同时进行的预加载数上限
+     */
+    private static final int PREFETCH_MAX_IN_FLIGHT = 2;
+
+    /**
+     * 预加载的图片最多占内存缓存的几分之一
+     */
+    private static final int PREFETCH_MEMORY_DIVISOR = 4;
+
     private ActionBar actionBar;
     private SwipeRefreshLayout swipeRefreshLayout;
     private RecyclerView recyclerView;
@@ -77,11 +99,18 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
 
     private MyAdapter myAdapter;
     private MemoryCache memoryCache;
+    private EncodedMemoryCache encodedCache;
     private FileCache fileCache;
     private ImageLoader imageLoader;
+    private ScrollPrefetcher prefetcher;
     private PhotoDataBaseHelper photoDataBaseHelper;
+    private PhotoDataBaseManager photoDBManager;
+
+    /**
+     * 本页面的结果分发器，加载类通过它把结果送回UI线程，页面销毁后不再持有本页面
+     */
+    private LifecycleDispatcher dispatcher;
     private ImageDownLoader imageDownLoader;
-    private int maxMemory;//应用占用的最大内存，以字节B为单位
     private int maxThread;//应用分配到的线程数
 
     private int page = 1;//图片url的页数，page不同请求回的图片也不同
@@ -93,17 +122,25 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        mainActivity = this;
+        dispatcher = new LifecycleDispatcher(this);
         showPermissionDialog();//第一次启动应用时进行弹窗请求相应权限
-        maxMemory = (int) Runtime.getRuntime().maxMemory();
         maxThread = Runtime.getRuntime().availableProcessors();
 
         photoDataBaseHelper = new PhotoDataBaseHelper(this, PHOTO_DB_NAME, null, PHOTO_DB_VERSION);
         photoDBManager = new PhotoDataBaseManager(photoDataBaseHelper);
-        imageDownLoader = new ImageDownLoader();
-        memoryCache = new MemoryCache(maxMemory / 8);
-        fileCache = new FileCache(this);
-        imageLoader = ImageLoader.getInstance(memoryCache, fileCache, 2*maxThread + 1);
+        imageDownLoader = new ImageDownLoader(dispatcher);
+        int loadThreads = 2*maxThread + 1;
+        //加载线程和UI线程都会访问内存缓存，按线程数分段加锁；缓存大小由设备的内存等级决定
+        memoryCache = MemoryCache.create(this, MemoryCache.EvictionType.LRU, loadThreads + 1);
+        //压缩字节缓存占Bitmap缓存的一半内存，但能多容纳数倍的图片
+        encodedCache = new EncodedMemoryCache((int) (memoryCache.getMaxSize() * 1024 / 2), loadThreads + 1);
+        encodedCache.register(this);
+        fileCache = new FileCache(this, photoDBManager, DISK_STORAGE_TYPE);
+        imageLoader = ImageLoader.getInstance(memoryCache, encodedCache, fileCache, photoDBManager, loadThreads);
+        imageLoader.bind(dispatcher);//进入后台时暂停下载，销毁时取消加载
+        prefetcher = new ScrollPrefetcher(imageLoader, PREFETCH_MAX_AHEAD, PREFETCH_MAX_IN_FLIGHT,
+                memoryCache.getMaxSize() * 1024 / PREFETCH_MEMORY_DIVISOR);
+        prefetcher.setImages(myImageList);
 
         firstTimeLoadingTips = findViewById(R.id.firstTimeLoadingTips);
         loadingBar = findViewById(R.id.loadingBar);
@@ -183,7 +220,7 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
         StaggeredGridLayoutManager staggeredGridLayoutManager = new StaggeredGridLayoutManager(2,
                 StaggeredGridLayoutManager.VERTICAL);
         recyclerView.setLayoutManager(staggeredGridLayoutManager);
-        myAdapter = new MyAdapter(myImageList);
+        myAdapter = new MyAdapter(myImageList, photoDBManager, imageDownLoader, dispatcher);
         recyclerView.setAdapter(myAdapter);//初始化数组适配器
         addListenerForRecyclerView(recyclerView);//初始化滑动监听器
     }
@@ -212,14 +249,15 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
             HttpRequest.getJson(randomJsonUrl, new HttpCallBackListener<List<MyImage>>() {
                 @Override
                 public void onFinish(List<MyImage> response) {
-                    for (MyImage image : response) {
-                        myImageList.add(0, image);
-                    }
-                    MainActivity.getMainActivity().runOnUiThread(() -> {
+                    dispatcher.post(() -> {//页面已销毁时丢弃
+                        for (MyImage image : response) {
+                            myImageList.add(0, image);
+                        }
+                        prefetcher.cancelAll();//插入到最前面后位置都变了
                         myAdapter.notifyItemRangeChanged(0, PAGE_PER_PHOTOS);
                         recyclerView.smoothScrollToPosition(0);
+                        swipeRefreshLayout.setRefreshing(false);
                     });
-                    swipeRefreshLayout.setRefreshing(false);
                 }
 
                 @Override
@@ -240,13 +278,24 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
      */
     private void initImageList(String imgJsonUrl) {
         if (!NetWorkState.isNetworkConnected(this)) {    //无网络时直接读取缓存
-            List<MyImage> cachedImages = photoDBManager.selectAllPhoto();
-            for (MyImage myImage : cachedImages) {
-                myImageList.add(myImage);//读取本地缓存后add进适配器
-                myAdapter.notifyItemInserted(myImageList.size() - 1);
-            }
-            loadingBar.setVisibility(View.GONE);
-            firstTimeLoadingTips.setVisibility(View.GONE);
+            new Thread(() -> {
+                //查询数据库和等待文件缓存建立索引都在子线程中进行，只显示文件缓存中仍然存在的图片
+                List<MyImage> cachedImages = new ArrayList<>();
+                for (MyImage myImage : photoDBManager.selectAllPhoto()) {
+                    if (fileCache.contains(myImage.getUrl())) {
+                        cachedImages.add(myImage);
+                    }
+                }
+                MyLog.d(TAG, "initImageList: " + cachedImages.size() + " cached images, file cache "
+                        + fileCache.getEntryCount() + " entries, " + fileCache.getSize() / 1024 + "KB");
+                dispatcher.post(() -> {
+                    int start = myImageList.size();
+                    myImageList.addAll(cachedImages);//读取本地缓存后add进适配器
+                    myAdapter.notifyItemRangeInserted(start, cachedImages.size());
+                    loadingBar.setVisibility(View.GONE);
+                    firstTimeLoadingTips.setVisibility(View.GONE);
+                });
+            }).start();
         } else {
             HttpRequest.getJson(imgJsonUrl, this);
         }
@@ -261,6 +310,7 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
         recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
             private boolean isSlidingUpward = false;
             private int[] lastPositions = null;
+            private int[] firstPositions = null;
             private int lastCompletelyVisibleItemPosition = 0;
             private final StaggeredGridLayoutManager manager = (StaggeredGridLayoutManager) recyclerView.getLayoutManager();
             private final ImageLoader imageLoader = ImageLoader.getInstance();
@@ -272,6 +322,14 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
                 switch (newState) {
                     case RecyclerView.SCROLL_STATE_IDLE:
                         imageLoader.resume();
+                        MyLog.d(TAG, "onScrollStateChanged: loads in flight: " + imageLoader.getInFlightLoadCount()
+                                + ", queued: " + imageLoader.getQueuedLoadCount()
+                                + ", oldest queued: " + imageLoader.getOldestQueuedLoadMillis() + "ms");
+                        MyLog.d(TAG, "onScrollStateChanged: cancellation " + imageLoader.getCancellationStats());
+                        MyLog.d(TAG, "onScrollStateChanged: pause " + imageLoader.getPauseStats());
+                        MyLog.d(TAG, "onScrollStateChanged: prefetch " + prefetcher.getStats());
+                        MyLog.d(TAG, "onScrollStateChanged: display " + imageLoader.getDisplayStats());
+                        MyLog.d(TAG, "onScrollStateChanged: transfer " + HttpRequest.getTransferStats());
                         int visibleItemCount = manager.getChildCount();
                         int totalItemCount = manager.getItemCount();
                         manager.findLastCompletelyVisibleItemPositions(lastPositions);
@@ -306,9 +364,45 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
 
                 if (lastPositions == null) {
                     lastPositions = new int[manager.getSpanCount()];
+                    firstPositions = new int[manager.getSpanCount()];
+                }
+                updateLoadPriorities(recyclerView);
+                if (dy != 0 && NetWorkState.isNetworkConnected(MyApplication.getContext())) {
+                    manager.findFirstVisibleItemPositions(firstPositions);
+                    manager.findLastVisibleItemPositions(lastPositions);
+                    prefetcher.onScrolled(findMin(firstPositions), findMax(lastPositions), dy, SystemClock.uptimeMillis());
                 }
             }
 
+            //屏幕内的图片优先加载，已布局但在屏幕外的图片降低优先级；布局完成后也会回调onScrolled
+            private void updateLoadPriorities(RecyclerView recyclerView) {
+                int height = recyclerView.getHeight();
+                for (int i = 0; i < recyclerView.getChildCount(); i++) {
+                    View child = recyclerView.getChildAt(i);
+                    ImageView imageView = child.findViewById(R.id.image);
+                    if (imageView == null) {//“加载更多”视图
+                        continue;
+                    }
+                    if (imageView.getWidth() > 0 && imageView.getHeight() > 0) {
+                        prefetcher.setCellSize(imageView.getWidth(), imageView.getHeight());//预加载与显示的大小一致才能命中
+                    }
+                    boolean visible = child.getBottom() > 0 && child.getTop() < height;
+                    imageLoader.setLoadPriority(imageView, visible ? PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE
+                            : PhotoLoadThreadPoolExecutor.PRIORITY_NEAR_VISIBLE);
+                }
+            }
+
+            //找到屏幕最顶最左的视图位置，还没有视图的列为NO_POSITION
+            private int findMin(int[] firstPositions) {
+                int min = Integer.MAX_VALUE;
+                for (int value : firstPositions) {
+                    if (value != RecyclerView.NO_POSITION && value < min) {
+                        min = value;
+                    }
+                }
+                return min == Integer.MAX_VALUE ? RecyclerView.NO_POSITION : min;
+            }
+
             //找到屏幕最底最右的视图位置
             private int findMax(int[] lastPositions) {
                 int max = lastPositions[0];
@@ -362,17 +456,17 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
      */
     @Override
     public void onFinish(List<MyImage> response) {
-        for (MyImage myImage : response) {
-            myImageList.add(myImage);
-            MyLog.d(TAG, "onFinish: " + myImage);
-        }
-        MainActivity.getMainActivity().runOnUiThread(() -> {
+        dispatcher.post(() -> {//在UI线程中修改列表，页面已销毁时丢弃
+            for (MyImage myImage : response) {
+                myImageList.add(myImage);
+                MyLog.d(TAG, "onFinish: " + myImage);
+            }
             loadingBar.setVisibility(View.GONE);
             firstTimeLoadingTips.setVisibility(View.GONE);
             myAdapter.notifyItemRangeChanged(myImageList.size() - 1, PAGE_PER_PHOTOS);
             myAdapter.setLoadState(MyAdapter.LOAD_FINISHED);
         });
-        MyLog.d(TAG, "onFinish: myImageList size" + myImageList.size());
+        MyLog.d(TAG, "onFinish: " + response.size() + " images");
    }
 
     /**
@@ -409,15 +503,6 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
         }
     }
 
-    /**
-     * 返回主页面的Activity实例
-     * @return 返回主页面的Activity实例
-     */
-    public static MainActivity getMainActivity() {
-        MyLog.d(TAG, "getMainActivity: mainactivity instance : " + mainActivity);
-        return mainActivity;
-    }
-
     public ImageDownLoader getImageDownLoader() {
         return imageDownLoader;
     }
@@ -431,9 +516,18 @@ public class MainActivity extends AppCompatActivity implements HttpCallBackListe
         return super.onKeyDown(keyCode, event);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        memoryCache.restoreMaxSize();//回到前台时恢复在后台被缩小的缓存容量
+    }
+
     @Override
     protected void onDestroy() {
-        super.onDestroy();
+        super.onDestroy();//此时dispatcher已取消所有ImageView的加载
+        prefetcher.cancelAll();
+        memoryCache.unregister(this);
+        encodedCache.unregister(this);
         imageLoader.release();
         photoDBManager.closeDataBase();
     }
@@ -18,12 +18,17 @@ import androidx.recyclerview.widget.StaggeredGridLayoutManager;
 
 import com.wisstudio.devilwizard.photobrowserapp.R;
 import com.wisstudio.devilwizard.photobrowserapp.db.PhotoDataBaseManager;
+import com.wisstudio.devilwizard.photobrowserapp.util.LifecycleDispatcher;
 import com.wisstudio.devilwizard.photobrowserapp.util.MyApplication;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.MyImage;
+import com.wisstudio.devilwizard.photobrowserapp.util.image.display.BitmapDisplayer;
+import com.wisstudio.devilwizard.photobrowserapp.util.image.download.ImageDownLoader;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.load.ImageLoader;
 import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.Cancellable;
 import com.wisstudio.devilwizard.photobrowserapp.util.network.HttpCallBackListener;
 import com.wisstudio.devilwizard.photobrowserapp.util.network.HttpRequest;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.SingleFlight;
 import com.wisstudio.devilwizard.photobrowserapp.util.network.NetWorkState;
 
 import java.util.List;
@@ -68,16 +73,28 @@ public class MyAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private final List<MyImage> imageList;
     private final ImageLoader imageLoader;
     private final PhotoDataBaseManager photoDataBaseManager;
+    private final ImageDownLoader imageDownLoader;
+
+    /**
+     * 所在页面的结果分发器，查看大图的结果通过它显示，页面销毁时取消还未完成的请求
+     */
+    private final LifecycleDispatcher dispatcher;
 
     /**
      * 初始化{@link #imageList}, {@link #loadState}, {@link #imageLoader}, {@link #photoDataBaseManager}
      * @param imageList
+     * @param photoDataBaseManager 记录图片收藏状态的数据库
+     * @param imageDownLoader 保存图片到相册的下载器
+     * @param dispatcher 所在页面的结果分发器
      */
-    public MyAdapter(List<MyImage> imageList) {
+    public MyAdapter(List<MyImage> imageList, PhotoDataBaseManager photoDataBaseManager,
+                     ImageDownLoader imageDownLoader, LifecycleDispatcher dispatcher) {
         this.imageList = imageList;
         this.loadState = defaultLoadState;
         imageLoader = ImageLoader.getInstance();
-        photoDataBaseManager = MainActivity.photoDBManager;
+        this.photoDataBaseManager = photoDataBaseManager;
+        this.imageDownLoader = imageDownLoader;
+        this.dispatcher = dispatcher;
     }
 
     /**
@@ -87,6 +104,11 @@ public class MyAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
         private final ImageView imageView;
 
+        /**
+         * 当前绑定的图片的加载请求，已从内存缓存显示或无网络时为null
+         */
+        private Cancellable loadRequest;
+
         public ImageViewHolder(@NonNull View itemView) {
             super(itemView);
             imageView = itemView.findViewById(R.id.image);
@@ -157,9 +179,12 @@ public class MyAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         } else {
             MyImage image = imageList.get(position);
             MyLog.d(TAG, "onBindViewHolder: " + "position: " + position + "url: " + image.getUrl());
-            ImageView imageView = ((ImageViewHolder)holder).imageView;
+            ImageViewHolder imageHolder = (ImageViewHolder) holder;
+            cancelLoadRequest(imageHolder);//重新绑定时上一张图片不再需要
+            ImageView imageView = imageHolder.imageView;
             imageView.setImageResource(R.drawable.default_loading_picture);//未加载的图片默认用纯灰图片填充
-            //有时候会出现白图或黑图的情况，未知bug
+            //换成占位图后再释放旧图片的引用，旧图片只有在没有任何ImageView显示它时才会被复用解码，避免出现白图或黑图
+            BitmapDisplayer.releaseDisplayed(imageView);
             String imageUrl = image.getUrl();
             imageView.setTag(imageUrl);
 
@@ -167,16 +192,16 @@ public class MyAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             imageView.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    final Dialog dialog = new Dialog(MainActivity.getMainActivity(), R.style.fullScreenImageStyle);
-                    View dialogView = LayoutInflater.from(MainActivity.getMainActivity()).inflate(R.layout.enlarged_imageview_dialog, null);
+                    final Dialog dialog = new Dialog(v.getContext(), R.style.fullScreenImageStyle);//ImageView的Context即所在的页面
+                    View dialogView = LayoutInflater.from(v.getContext()).inflate(R.layout.enlarged_imageview_dialog, null);
                     ProgressBar dialogProgressBar = dialogView.findViewById(R.id.loadingIndicateBar);
                     ImageView enlargedImageView = dialogView.findViewById(R.id.enlargedImage);
                     dialog.setContentView(dialogView);
                     dialog.show();
-                    HttpRequest.loadBitmapFromWeb(imageUrl, new HttpCallBackListener<Bitmap>() {
+                    SingleFlight<String, Bitmap>.Subscription subscription = dispatcher.track(HttpRequest.loadBitmapFromWeb(imageUrl, new HttpCallBackListener<Bitmap>() {
                         @Override
                         public void onFinish(Bitmap response) {
-                            MainActivity.getMainActivity().runOnUiThread(() -> {
+                            dispatcher.post(() -> {
                                 dialogProgressBar.setVisibility(View.GONE);
                                 enlargedImageView.setImageBitmap(response);
                             });
@@ -186,6 +211,10 @@ public class MyAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
                         public void onError(Exception e) {
                             e.printStackTrace();
                         }
+                    }));
+                    dialog.setOnDismissListener(d -> {
+                        subscription.cancel();//关闭后不再显示，同一张图片的保存请求不受影响
+                        dispatcher.untrack(subscription);
                     });
                     dialogView.setOnClickListener(new View.OnClickListener() {
                         @Override
@@ -203,20 +232,19 @@ public class MyAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
                 public boolean onLongClick(View v) {
                     Vibrator vibrator = (Vibrator)(MyApplication.getContext().getSystemService(Context.VIBRATOR_SERVICE));
                     vibrator.vibrate(Vibrator.VIBRATION_EFFECT_SUPPORT_YES);//调用系统硬件级别的震动
-                    LongPressPopUpWindow popUpWindow = new LongPressPopUpWindow(MainActivity.getMainActivity(), LongPressPopUpWindow.IMAGEVIEW_POPUP_WINDOW);
+                    LongPressPopUpWindow popUpWindow = new LongPressPopUpWindow(v.getContext(), LongPressPopUpWindow.IMAGEVIEW_POPUP_WINDOW);
                     popUpWindow.showAsDropDown(v, 0, 0);
                     (popUpWindow.getPopUpView()).findViewById(R.id.click_to_download).setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View v) {
-                            MainActivity.getMainActivity().getImageDownLoader().saveImageToGallery(imageUrl);
+                            imageDownLoader.saveImageToGallery(imageUrl);
                             popUpWindow.dismiss();
                         }
                     });
                     (popUpWindow.getPopUpView()).findViewById(R.id.click_to_star).setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View v) {
-                            MainActivity.getMainActivity().runOnUiThread(() -> Toast.makeText(MyApplication.getContext(),
-                                "收藏成功", Toast.LENGTH_SHORT).show());
+                            Toast.makeText(MyApplication.getContext(), "收藏成功", Toast.LENGTH_SHORT).show();
                             photoDataBaseManager.setStarredState(imageUrl, PhotoDataBaseManager.STARRED_STATE);
                             popUpWindow.dismiss();
                         }
@@ -227,9 +255,9 @@ public class MyAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
             //加载图片的流程
             if (NetWorkState.isNetworkConnected(MyApplication.getContext()) && image != null) {//区分有网和无网的情况
-                imageLoader.loadBitmap(imageView, image);
+                imageHolder.loadRequest = imageLoader.loadBitmap(imageView, image);
             } else {
-                imageLoader.loadPhotoFromFileCache(imageUrl, imageView, photoDataBaseManager);
+                imageLoader.loadPhotoFromFileCache(imageUrl, imageView);
             }
         }
     }
@@ -240,6 +268,26 @@ public class MyAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         return imageList.size() + 1;
     }
 
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewRecycled(holder);
+        if (holder instanceof ImageViewHolder) {
+            //滑出屏幕后排队中的加载直接跳过，正在进行的下载在读取下一块数据前中止
+            cancelLoadRequest((ImageViewHolder) holder);
+            imageLoader.cancelLoad(((ImageViewHolder) holder).imageView);
+        }
+    }
+
+    /**
+     * 取消holder当前的加载请求，同一图片的其他ImageView不受影响
+     */
+    private void cancelLoadRequest(ImageViewHolder holder) {
+        if (holder.loadRequest != null) {
+            holder.loadRequest.cancel();
+            holder.loadRequest = null;
+        }
+    }
+
     @Override
     public void onViewAttachedToWindow(@NonNull RecyclerView.ViewHolder holder) {
         super.onViewAttachedToWindow(holder);
@@ -0,0 +1,212 @@
+package com.wisstudio.devilwizard.photobrowserapp.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.Cancellable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 绑定到一个{@link LifecycleOwner}（如Activity）的结果分发器，加载类通过它把结果送回UI线程，而不必持有Activity：
+ * 结果通过主线程的{@link Handler}分发，页面销毁后未执行和之后提交的结果都会被丢弃；
+ * 页面进入后台（ON_STOP）时通知各加载类减少工作，回到前台（ON_START）时恢复；
+ * 页面销毁（ON_DESTROY）时取消所有通过{@link #track(Cancellable)}登记的请求，并通知各加载类取消自己的工作
+ * 只能在UI线程中创建
+ *
+ * @author WizardK
+ * @date 2021-05-19
+ */
+public class LifecycleDispatcher implements LifecycleEventObserver {
+
+    private static final String TAG = "LifecycleDispatcher";
+
+    /**
+     * 随页面生命周期改变工作方式的加载类，回调都在UI线程中执行
+     */
+    public interface Callback {
+        /**
+         * 页面进入后台或回到前台时回调
+         *
+         * @param throttled 为true时应只完成已开始的工作，推迟耗时的工作（如下载），为false时恢复
+         */
+        void onThrottleChanged(boolean throttled);
+
+        /**
+         * 页面销毁时回调，应取消所有还未完成的工作
+         */
+        void onCancel();
+    }
+
+    /**
+     * 只分发本对象提交的结果，页面销毁时可以一次移除，不影响其他分发器
+     */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 进行中的请求，页面销毁时取消
+     */
+    private final Set<Cancellable> pending = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final List<Callback> callbacks = new CopyOnWriteArrayList<>();
+
+    private LifecycleOwner owner;
+    private volatile boolean throttled;
+    private volatile boolean destroyed;
+
+    /**
+     * 绑定到owner，owner已销毁时本对象也立即处于销毁状态
+     *
+     * @param owner 结果所属的页面
+     *
+     * @exception IllegalArgumentException
+     */
+    public LifecycleDispatcher(LifecycleOwner owner) {
+        if (owner == null) {
+            throw new IllegalArgumentException("owner must not be null!");
+        }
+        this.owner = owner;
+        Lifecycle.State state = owner.getLifecycle().getCurrentState();
+        if (state == Lifecycle.State.DESTROYED) {
+            this.owner = null;
+            this.destroyed = true;
+            return;
+        }
+        this.throttled = !state.isAtLeast(Lifecycle.State.STARTED);
+        owner.getLifecycle().addObserver(this);//添加时会依次补发已经过的事件
+    }
+
+    @Override
+    public void onStateChanged(LifecycleOwner source, Lifecycle.Event event) {
+        switch (event) {
+            case ON_START:
+                setThrottled(false);
+                break;
+
+            case ON_STOP:
+                setThrottled(true);
+                break;
+
+            case ON_DESTROY:
+                destroy();
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 注册随页面生命周期改变工作方式的加载类，页面已销毁时立即回调{@link Callback#onCancel()}
+     */
+    public void addCallback(Callback callback) {
+        if (destroyed) {
+            callback.onCancel();
+            return;
+        }
+        callbacks.add(callback);
+        if (throttled) {
+            callback.onThrottleChanged(true);
+        }
+    }
+
+    public void removeCallback(Callback callback) {
+        callbacks.remove(callback);
+    }
+
+    /**
+     * 在UI线程中执行action，可在任意线程调用；页面销毁后不再执行
+     *
+     * @param action 要在UI线程中执行的操作，如显示加载的结果
+     *
+     * @return 若已提交则返回true，页面已销毁则返回false
+     */
+    public boolean post(Runnable action) {
+        if (destroyed) {
+            return false;
+        }
+        return handler.post(() -> {
+            if (!destroyed) {//提交之后页面才销毁
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * 登记一个进行中的请求，页面销毁时取消；请求完成后应调用{@link #untrack(Cancellable)}
+     *
+     * @param request 要登记的请求，为null时忽略
+     *
+     * @return 返回request本身，页面已销毁时request已被取消
+     */
+    public <T extends Cancellable> T track(T request) {
+        if (request == null) {
+            return null;
+        }
+        pending.add(request);
+        if (destroyed && pending.remove(request)) {//登记时页面刚好销毁
+            request.cancel();
+        }
+        return request;
+    }
+
+    public void untrack(Cancellable request) {
+        if (request != null) {
+            pending.remove(request);
+        }
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    /**
+     * @return 返回登记的还未完成的请求数
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private void setThrottled(boolean throttled) {
+        if (this.throttled == throttled) {
+            return;
+        }
+        this.throttled = throttled;
+        MyLog.d(TAG, "setThrottled: " + throttled + ", pending requests: " + pending.size());
+        for (Callback callback : callbacks) {
+            callback.onThrottleChanged(throttled);
+        }
+    }
+
+    private void destroy() {
+        destroyed = true;
+        handler.removeCallbacksAndMessages(null);//未执行的结果中可能引用着页面的View
+        List<Cancellable> requests = new ArrayList<>(pending);
+        pending.clear();
+        MyLog.d(TAG, "destroy: cancel " + requests.size() + " pending requests");
+        for (Cancellable request : requests) {
+            request.cancel();
+        }
+        for (Callback callback : callbacks) {
+            callback.onCancel();
+        }
+        callbacks.clear();
+        if (owner != null) {
+            owner.getLifecycle().removeObserver(this);
+            owner = null;
+        }
+    }
+}
@@ -6,14 +6,26 @@ import android.widget.ImageView;
 
 import androidx.annotation.NonNull;
 
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapResource;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
 /**
  * 用于在Imageview显示图像
+ * 同时记录每个ImageView正在显示的{@link BitmapResource}，ImageView换图时释放旧图片的引用，
+ * 使其在不再被显示后才能回到复用池
  *
  * @author WizardK
  * @date 2021-04-14
  */
 public class BitmapDisplayer {
 
+    /**
+     * ImageView -> 其正在显示的图片资源，只在UI线程中访问；ImageView被回收时其引用随之丢弃，Bitmap交给GC而不进入复用池
+     */
+    private static final Map<ImageView, BitmapResource> displayedResources = new WeakHashMap<>();
+
     private final ImageView imageView;
 
     /**
@@ -31,7 +43,7 @@ public class BitmapDisplayer {
     }
 
     /**
-     * 设置imageview的bitmap
+     * 设置imageview的bitmap，该bitmap不受引用计数管理
      *
      * @param bitmap 要显示在imageview的bitmap
      *
@@ -42,9 +54,53 @@ public class BitmapDisplayer {
         if (Looper.myLooper() == Looper.getMainLooper()) {
             if (imageView != null) {
                 imageView.setImageBitmap(bitmap);
+                releaseDisplayed(imageView);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 设置imageview的bitmap，并接管调用者持有的resource引用，直到该ImageView换图时才释放
+     *
+     * @param resource 要显示在imageview的图片资源，调用者须已持有它的一个引用
+     *
+     * @return 若操作是在UI线程中完成则返回true，否则返回false即设置失败，此时引用仍归调用者所有
+     */
+    public boolean setBitmap(BitmapResource resource) {
+        return setBitmap(imageView, resource);
+    }
+
+    /**
+     * 与{@link #setBitmap(BitmapResource)}相同，但不需要为每次显示创建BitmapDisplayer，用于批量显示
+     *
+     * @param imageView 要显示图片的ImageView
+     * @param resource 要显示在imageview的图片资源，调用者须已持有它的一个引用
+     *
+     * @return 若操作是在UI线程中完成则返回true，否则返回false即设置失败，此时引用仍归调用者所有
+     */
+    public static boolean setBitmap(ImageView imageView, BitmapResource resource) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            imageView.setImageBitmap(resource.getBitmap());
+            BitmapResource previous = displayedResources.put(imageView, resource);
+            if (previous != null) {
+                previous.release();//先换图再释放，旧图片此时已不再被绘制
             }
             return true;
         }
         return false;
     }
+
+    /**
+     * 在imageView已换成其他图片（如占位图）后调用，释放它之前显示的图片资源的引用，只能在UI线程中调用
+     *
+     * @param imageView 已不再显示旧图片的ImageView
+     */
+    public static void releaseDisplayed(ImageView imageView) {
+        BitmapResource previous = displayedResources.remove(imageView);
+        if (previous != null) {
+            previous.release();
+        }
+    }
 }
@@ -0,0 +1,228 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.display;
+
+import android.os.Looper;
+import android.view.Choreographer;
+import android.widget.ImageView;
+
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapResource;
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把加载线程中完成的图片攒起来，在下一帧开始时通过{@link Choreographer}一次性显示，
+ * 而不是每张图片各自post一条消息，插在两帧之间打断绘制
+ * 显示前检查ImageView是否已被重新绑定到其他图片，是则直接释放引用；同一帧中同一ImageView的多个结果只显示最后一个
+ * 每帧最多用{@link #FRAME_BUDGET_NANOS}显示图片，剩下的留到下一帧
+ *
+ * @author WizardK
+ * @date 2021-05-19
+ */
+public class FrameBatchDisplayer {
+
+    private static final String TAG = "FrameBatchDisplayer";
+
+    /**
+     * 每帧用于显示图片的最长时间(以纳秒为单位)，约为60Hz下一帧的四分之一
+     */
+    private static final long FRAME_BUDGET_NANOS = 4_000_000L;
+
+    /**
+     * 判断ImageView是否仍绑定着某张图片
+     */
+    public interface BindingChecker {
+        /**
+         * @return 若imageView仍在等待url对应的图片则返回true
+         */
+        boolean isBoundTo(ImageView imageView, String url);
+    }
+
+    private final Choreographer choreographer;
+    private final BindingChecker bindingChecker;
+
+    /**
+     * 等待显示的图片，在本对象的锁内访问
+     */
+    private List<Pending> pending = new ArrayList<>();
+    private boolean frameScheduled;
+
+    private final AtomicLong appliedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong frameCount = new AtomicLong();
+    private volatile int lastFrameApplied;
+    private volatile int maxFrameApplied;
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            applyPending();
+        }
+    };
+
+    /**
+     * 只能在UI线程中创建，{@link Choreographer}属于创建它的线程
+     *
+     * @param bindingChecker 判断ImageView是否已被重新绑定
+     *
+     * @exception IllegalArgumentException
+     */
+    public FrameBatchDisplayer(BindingChecker bindingChecker) {
+        if (bindingChecker == null) {
+            throw new IllegalArgumentException("bindingChecker must not be null!");
+        }
+        this.choreographer = Choreographer.getInstance();
+        this.bindingChecker = bindingChecker;
+    }
+
+    /**
+     * 显示resource，并把调用者持有的引用交给{@link BitmapDisplayer}管理；在UI线程中调用时立即显示（如内存缓存命中），
+     * 否则在下一帧开始时显示
+     *
+     * @param imageView 要显示图片的ImageView
+     * @param url 图片的url，用于判断imageView是否已被重新绑定
+     * @param resource 要显示的图片资源，调用者须已持有它的一个引用
+     */
+    public void display(ImageView imageView, String url, BitmapResource resource) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            apply(new Pending(imageView, url, resource));
+            return;
+        }
+        boolean schedule;
+        synchronized (this) {
+            pending.add(new Pending(imageView, url, resource));
+            schedule = !frameScheduled;
+            frameScheduled = true;
+        }
+        if (schedule) {
+            choreographer.postFrameCallback(frameCallback);//可以在任意线程调用
+        }
+    }
+
+    /**
+     * 放弃所有还未显示的图片并释放引用，只能在UI线程中调用
+     */
+    public void clear() {
+        List<Pending> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            frameScheduled = false;
+        }
+        choreographer.removeFrameCallback(frameCallback);
+        for (Pending entry : batch) {
+            entry.resource.release();
+        }
+    }
+
+    /**
+     * @return 返回上一帧显示的图片数
+     */
+    public int getLastFrameAppliedCount() {
+        return lastFrameApplied;
+    }
+
+    /**
+     * @return 返回显示的统计，用于诊断
+     */
+    public String getStats() {
+        return "frames: " + frameCount.get() + ", applied: " + appliedCount.get() + ", dropped: " + droppedCount.get()
+                + ", last frame: " + lastFrameApplied + ", max per frame: " + maxFrameApplied;
+    }
+
+    private void applyPending() {
+        List<Pending> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            frameScheduled = false;
+        }
+        //同一ImageView在这一帧中只显示最后一个结果
+        Map<ImageView, Pending> latest = new IdentityHashMap<>();
+        List<Pending> ordered = new ArrayList<>(batch.size());
+        for (Pending entry : batch) {
+            Pending replaced = latest.put(entry.imageView, entry);
+            if (replaced != null) {
+                replaced.resource.release();
+                droppedCount.incrementAndGet();
+            }
+        }
+        for (Pending entry : batch) {
+            if (latest.get(entry.imageView) == entry) {
+                ordered.add(entry);
+            }
+        }
+
+        long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+        int applied = 0;
+        int index = 0;
+        for (; index < ordered.size(); index++) {
+            if (applied > 0 && System.nanoTime() > deadline) {
+                break;
+            }
+            if (apply(ordered.get(index))) {
+                applied++;
+            }
+        }
+        if (index < ordered.size()) {
+            deferToNextFrame(ordered.subList(index, ordered.size()));
+        }
+        frameCount.incrementAndGet();
+        lastFrameApplied = applied;
+        if (applied > maxFrameApplied) {
+            maxFrameApplied = applied;
+        }
+        MyLog.d(TAG, "doFrame: applied " + applied + " of " + batch.size());
+    }
+
+    /**
+     * 超出本帧时间的图片放到下一帧，排在之后完成的图片前面
+     */
+    private void deferToNextFrame(List<Pending> rest) {
+        boolean schedule;
+        synchronized (this) {
+            List<Pending> merged = new ArrayList<>(rest);
+            merged.addAll(pending);
+            pending = merged;
+            schedule = !frameScheduled;
+            frameScheduled = true;
+        }
+        if (schedule) {
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+
+    /**
+     * 只能在UI线程中调用
+     *
+     * @return 若图片已显示则返回true，imageView已被重新绑定时释放引用并返回false
+     */
+    private boolean apply(Pending entry) {
+        if (!bindingChecker.isBoundTo(entry.imageView, entry.url)
+                || !BitmapDisplayer.setBitmap(entry.imageView, entry.resource)) {
+            entry.resource.release();
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        appliedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 一张等待显示的图片
+     */
+    private static class Pending {
+        final ImageView imageView;
+        final String url;
+        final BitmapResource resource;
+
+        Pending(ImageView imageView, String url, BitmapResource resource) {
+            this.imageView = imageView;
+            this.url = url;
+            this.resource = resource;
+        }
+    }
+}
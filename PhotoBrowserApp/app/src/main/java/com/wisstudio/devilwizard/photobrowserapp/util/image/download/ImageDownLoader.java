@@ -7,10 +7,11 @@ import android.os.Environment;
 import android.provider.MediaStore;
 import android.widget.Toast;
 
-import com.wisstudio.devilwizard.photobrowserapp.ui.MainActivity;
+import com.wisstudio.devilwizard.photobrowserapp.util.LifecycleDispatcher;
 import com.wisstudio.devilwizard.photobrowserapp.util.MyApplication;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.load.ImageLoader;
 import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.CancellableHolder;
 import com.wisstudio.devilwizard.photobrowserapp.util.network.HttpCallBackListener;
 import com.wisstudio.devilwizard.photobrowserapp.util.network.HttpRequest;
 import com.wisstudio.devilwizard.photobrowserapp.util.network.NetWorkState;
@@ -36,10 +37,23 @@ public class ImageDownLoader {
 
     private final String savePath;
 
+    /**
+     * 所在页面的结果分发器，提示通过它显示，页面销毁时取消还未完成的保存
+     */
+    private final LifecycleDispatcher dispatcher;
+
     /**
      * 初始化图片储存目录
+     *
+     * @param dispatcher 所在页面的结果分发器
+     *
+     * @exception IllegalArgumentException
      */
-    public ImageDownLoader() {
+    public ImageDownLoader(LifecycleDispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher must not be null!");
+        }
+        this.dispatcher = dispatcher;
         //安卓9以后getExternalStorageDirectory已被弃用，无法在其下创建文件目录
         savePath = MyApplication.getContext().getExternalFilesDir(Environment.DIRECTORY_PICTURES).getAbsolutePath() + File.separator + SAVE_DIRECTORY_NAME;
         File file = new File(savePath);
@@ -57,11 +71,20 @@ public class ImageDownLoader {
      */
     public void saveImageToGallery(String url) {
         if (NetWorkState.isNetworkConnected(MyApplication.getContext())) {
-            MainActivity.getMainActivity().runOnUiThread(() -> Toast.makeText(MyApplication.getContext(),
+            dispatcher.post(() -> Toast.makeText(MyApplication.getContext(),
                     "图片已保存", Toast.LENGTH_SHORT).show());
-            HttpRequest.loadBitmapFromWeb(url, new HttpCallBackListener<Bitmap>() {
+            //先登记再发起：回调可能在loadBitmapFromWeb返回前就执行，此时也要能从分发器中移除
+            final CancellableHolder request = dispatcher.track(new CancellableHolder());
+            request.set(HttpRequest.loadBitmapFromWeb(url, new HttpCallBackListener<Bitmap>() {
                 @Override
                 public void onFinish(Bitmap response) {
+                    dispatcher.untrack(request);
+                    if (response == null) {
+                        MyLog.w(TAG, "saveImageToGallery: failed to decode " + url);
+                        dispatcher.post(() -> Toast.makeText(MyApplication.getContext(),
+                                "保存失败", Toast.LENGTH_SHORT).show());
+                        return;
+                    }
                     String fileName = ImageLoader.url2path(url) + ".jpg";
                     File file = new File(savePath, fileName);
                     MyLog.d(TAG, "onFinish: " + file.getAbsolutePath());
@@ -76,7 +99,9 @@ public class ImageDownLoader {
                         e.printStackTrace();
                     } finally {
                         try {
-                            fileOutputStream.close();
+                            if (fileOutputStream != null) {
+                                fileOutputStream.close();
+                            }
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
@@ -88,11 +113,12 @@ public class ImageDownLoader {
 
                 @Override
                 public void onError(Exception e) {
+                    dispatcher.untrack(request);
                     e.printStackTrace();
                 }
-            });
+            }));
         } else {
-            MainActivity.getMainActivity().runOnUiThread(() -> Toast.makeText(MyApplication.getContext(), "保存失败，当前无网络", Toast.LENGTH_LONG).show());
+            dispatcher.post(() -> Toast.makeText(MyApplication.getContext(), "保存失败，当前无网络", Toast.LENGTH_LONG).show());
         }
     }
 }
@@ -0,0 +1,66 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import android.graphics.Bitmap.Config;
+
+/**
+ * 决定图片解码时使用的储存格式{@link Config}
+ * picsum的图片都是不透明的JPEG，网格中的缩略图用不到透明通道，使用{@link Config#RGB_565}每个像素只占2字节，
+ * 同样大小的内存缓存能多放一倍的图片；点击查看原图时仍使用{@link Config#ARGB_8888}保证画质
+ *
+ * @author WizardK
+ * @date 2021-05-08
+ */
+public class DecodeConfigPolicy {
+
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    /**
+     * @return 返回网格缩略图请求的储存格式
+     */
+    public static Config forThumbnail() {
+        return Config.RGB_565;
+    }
+
+    /**
+     * @return 返回查看原图时的储存格式
+     */
+    public static Config forViewer() {
+        return Config.ARGB_8888;
+    }
+
+    /**
+     * 根据图片的实际格式修正请求的储存格式：只有确定图片不透明时才使用{@link Config#RGB_565}，
+     * 否则（如带透明通道的PNG，或无法得知格式时）退回{@link Config#ARGB_8888}，避免透明部分变黑
+     *
+     * @param requested 请求的储存格式，如{@link com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapKey#getConfig()}
+     * @param mimeType 图片的MIME类型，如{@link android.graphics.BitmapFactory.Options#outMimeType}或http响应的Content-Type
+     *
+     * @return 返回解码时应使用的储存格式
+     */
+    public static Config resolve(Config requested, String mimeType) {
+        return resolve(requested, isOpaque(mimeType));
+    }
+
+    /**
+     * 同{@link #resolve(Config, String)}，用于已经知道图片是否透明的情况，如WebP格式本身可能带透明通道，
+     * 但由不透明的缩略图编码而来的WebP在写入时就可以确定
+     *
+     * @param requested 请求的储存格式
+     * @param opaque 图片是否一定不透明
+     *
+     * @return 返回解码时应使用的储存格式
+     */
+    public static Config resolve(Config requested, boolean opaque) {
+        if (requested == Config.RGB_565 && !opaque) {
+            return Config.ARGB_8888;
+        }
+        return requested != null ? requested : Config.ARGB_8888;
+    }
+
+    /**
+     * 判断该MIME类型的图片是否一定不透明
+     */
+    public static boolean isOpaque(String mimeType) {
+        return mimeType != null && mimeType.toLowerCase().startsWith(MIME_TYPE_JPEG);//Content-Type可能带有参数
+    }
+}
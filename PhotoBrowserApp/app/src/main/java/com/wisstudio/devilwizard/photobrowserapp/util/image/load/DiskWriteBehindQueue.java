@@ -0,0 +1,179 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import com.wisstudio.devilwizard.photobrowserapp.cache.disk.FileCache;
+import com.wisstudio.devilwizard.photobrowserapp.cache.disk.ImageHeader;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapResource;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.EncodedMemoryCache;
+import com.wisstudio.devilwizard.photobrowserapp.db.PhotoDataBaseManager;
+import com.wisstudio.devilwizard.photobrowserapp.util.image.MyImage;
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从网络下载的图片先交给UI显示，再由本类在单独的后台线程中完成编码、写入文件缓存和插入数据库，
+ * 磁盘I/O和SQLite写入不再阻塞图片的显示
+ * 同一url已在队列中时不重复添加；队列满时由提交的加载线程自己执行写入，使下载速度不超过磁盘写入的速度
+ *
+ * @author WizardK
+ * @date 2021-05-13
+ */
+public class DiskWriteBehindQueue {
+
+    private static final String TAG = "DiskWriteBehindQueue";
+
+    /**
+     * 写入文件缓存的缩略图大小上限(以字节B为单位)
+     */
+    private static final int THUMBNAIL_TARGET_BYTES = 50 * 1024;
+
+    private final FileCache fileCache;
+    private final EncodedMemoryCache encodedCache;
+    private final PhotoDataBaseManager photoDataBaseManager;
+    private final ThumbnailEncoder thumbnailEncoder = new ThumbnailEncoder(THUMBNAIL_TARGET_BYTES);
+
+    /**
+     * 已提交但还未写完的url
+     */
+    private final Set<String> pendingUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ThreadPoolExecutor executorService;
+
+    /**
+     * @param fileCache 文件缓存实例
+     * @param encodedCache 压缩字节的内存缓存实例，编码后的字节同时放入其中
+     * @param photoDataBaseManager 写入成功后插入图片信息的数据库
+     * @param capacity 队列中最多等待的写入任务数
+     */
+    public DiskWriteBehindQueue(FileCache fileCache, EncodedMemoryCache encodedCache,
+                                PhotoDataBaseManager photoDataBaseManager, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must larger than 0");
+        }
+        this.fileCache = fileCache;
+        this.encodedCache = encodedCache;
+        this.photoDataBaseManager = photoDataBaseManager;
+        this.executorService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "DiskWriteBehind");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, (r, executor) -> {
+                    WriteTask task = (WriteTask) r;
+                    if (executor.isShutdown()) {
+                        task.discard();//已经flush，不再写入
+                    } else {
+                        MyLog.d(TAG, "enqueue: queue is full, write on caller " + task.image.getUrl());
+                        task.run();
+                    }
+                });
+    }
+
+    /**
+     * 提交一张刚下载的图片，稍后在后台编码并写入文件缓存和数据库
+     * 队列会为resource增加一个引用，写完后释放，期间bitmap不会被放回复用池
+     *
+     * @param image 描述图片信息的MyImage对象
+     * @param resource 已放入内存缓存的图片资源
+     *
+     * @return 若已提交则返回true；该url已在队列中，或resource已被释放时返回false
+     */
+    public boolean enqueue(MyImage image, BitmapResource resource) {
+        if (!pendingUrls.add(image.getUrl())) {
+            return false;//同一张图片只写一次
+        }
+        if (!resource.acquire()) {
+            pendingUrls.remove(image.getUrl());
+            return false;
+        }
+        executorService.execute(new WriteTask(image, resource));
+        return true;
+    }
+
+    /**
+     * @return 返回已提交但还未写完的图片数
+     */
+    public int getPendingCount() {
+        return pendingUrls.size();
+    }
+
+    /**
+     * 不再接受新的写入，并等待队列中已有的写入完成，应在清除文件缓存或关闭数据库之前调用
+     *
+     * @param timeoutMillis 最多等待的时间(以毫秒为单位)
+     *
+     * @return 若所有写入都已完成则返回true，超时则返回false
+     */
+    public boolean flush(long timeoutMillis) {
+        executorService.shutdown();
+        try {
+            boolean finished = executorService.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (!finished) {
+                MyLog.w(TAG, "flush: timeout, " + pendingUrls.size() + " writes still pending");
+            }
+            return finished;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 编码、写入文件缓存并插入数据库的任务
+     */
+    private class WriteTask implements Runnable {
+
+        private final MyImage image;
+        private final BitmapResource resource;
+
+        WriteTask(MyImage image, BitmapResource resource) {
+            this.image = image;
+            this.resource = resource;
+        }
+
+        @Override
+        public void run() {
+            try {
+                write();
+            } catch (RuntimeException e) {
+                MyLog.w(TAG, "write: failed " + image.getUrl() + ", " + e.getMessage());
+            } finally {
+                discard();
+            }
+        }
+
+        private void write() {
+            ThumbnailEncoder.Result encoded = thumbnailEncoder.encode(resource.getBitmap());//质量压缩到目标大小后缓存在本地
+            if (encoded == null) {
+                return;
+            }
+            String url = image.getUrl();
+            encodedCache.put(url, encoded.getData());//同时缓存在内存中的压缩字节层
+            //记录宽高和是否透明，读取时只需解码一遍，WebP也能以RGB_565解码
+            ImageHeader header = new ImageHeader(resource.getBitmap().getWidth(), resource.getBitmap().getHeight(),
+                    encoded.getMimeType(), !resource.getBitmap().hasAlpha());
+            if (fileCache.put(url, encoded.getData(), header)) {
+                //文件已完整写入并提交后才插入数据库，数据库中的记录不会指向不完整的文件
+                photoDataBaseManager.addOnePhoto(image.getAuthor(), url, image.getWidth(), image.getHeight(),
+                        fileCache.getFullCachePath(url));
+            }
+        }
+
+        /**
+         * 释放队列持有的引用
+         */
+        void discard() {
+            resource.release();
+            pendingUrls.remove(image.getUrl());
+        }
+    }
+}
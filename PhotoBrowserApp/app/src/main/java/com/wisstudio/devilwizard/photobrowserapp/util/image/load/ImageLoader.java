@@ -4,31 +4,40 @@ import android.graphics.Bitmap;
 import android.widget.ImageView;
 
 import com.wisstudio.devilwizard.photobrowserapp.cache.disk.FileCache;
+import com.wisstudio.devilwizard.photobrowserapp.cache.disk.ImageHeader;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapKey;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapPool;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapResource;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.EncodedMemoryCache;
 import com.wisstudio.devilwizard.photobrowserapp.cache.memory.MemoryCache;
 import com.wisstudio.devilwizard.photobrowserapp.db.PhotoDataBaseManager;
-import com.wisstudio.devilwizard.photobrowserapp.ui.MainActivity;
+import com.wisstudio.devilwizard.photobrowserapp.util.LifecycleDispatcher;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.MyImage;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.display.BitmapDisplayer;
+import com.wisstudio.devilwizard.photobrowserapp.util.image.display.FrameBatchDisplayer;
 import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.Cancellable;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.HttpCallBackListener;
 import com.wisstudio.devilwizard.photobrowserapp.util.network.HttpRequest;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.ImageUrlResolver;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.SingleFlight;
 
-import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 图片加载的核心类，图片显示的主要操作{@link #loadBitmap(ImageView, MyImage)},
- * {@link #loadPhotoFromFileCache(String, ImageView, PhotoDataBaseManager)}都在这里实现
+ * {@link #loadPhotoFromFileCache(String, ImageView)}都在这里实现
  * 本类使用了单例设计模式，防止ImageLoader的频繁创建，减少性能消耗
  *
  * @author WizardK
  * @date 2021-04-07
  */
-public class ImageLoader {
+public class ImageLoader implements ScrollPrefetcher.Loader {
 
     /**
      * 本类的唯一实例
@@ -37,11 +46,26 @@ public class ImageLoader {
 
     private static final String TAG = "ImageLoader";
 
+    /**
+     * 等待写入文件缓存的图片数上限，超过时由加载线程自己写入
+     */
+    private static final int WRITE_BEHIND_CAPACITY = 32;
+
+    /**
+     * 释放资源时等待后台写入完成的最长时间(以毫秒为单位)
+     */
+    private static final long WRITE_BEHIND_FLUSH_TIMEOUT = 2000;
+
     /**
      * 内存缓存实例
      */
     private final MemoryCache memoryCache;
 
+    /**
+     * 压缩字节的内存缓存实例，位于内存缓存和文件缓存之间
+     */
+    private final EncodedMemoryCache encodedCache;
+
     /**
      * 文件缓存实例
      */
@@ -50,7 +74,12 @@ public class ImageLoader {
     /**
      * 线程池管理器
      */
-    private final ExecutorService mExecutorService;
+    private final PhotoLoadThreadPoolExecutor mExecutorService;
+
+    /**
+     * 将下载的图片在后台写入文件缓存和数据库
+     */
+    private final DiskWriteBehindQueue writeBehindQueue;
 
     /**
      * 记录已经加载图片的ImageView
@@ -58,23 +87,102 @@ public class ImageLoader {
     private final Map<ImageView, String> mImageViews;
     
     /**
-     * 保存正在加载图片的url
+     * 正在进行的加载，同一版本的图片同时只加载一次，结果分发给所有等待的ImageView
+     */
+    private final SingleFlight<BitmapKey, BitmapResource> loadFlights = new SingleFlight<BitmapKey, BitmapResource>() {
+        @Override
+        protected void onDelivered(BitmapResource resource) {
+            if (resource != null) {
+                resource.release();
+            }
+        }
+    };
+
+    /**
+     * 开始执行前就已取消、直接跳过的加载数
+     */
+    private final AtomicLong skippedLoads = new AtomicLong();
+
+    /**
+     * 执行中被取消而中止的加载数
+     */
+    private final AtomicLong abortedLoads = new AtomicLong();
+
+    /**
+     * 加载完成时已没有ImageView在等待的加载数，这部分工作仍然白做了
      */
-    private final List<LoadPhotoTask> taskQueue;
+    private final AtomicLong unwantedLoads = new AtomicLong();
+
+    /**
+     * 每个ImageView当前等待的加载请求
+     */
+    private final Map<ImageView, SingleFlight<BitmapKey, BitmapResource>.Subscription> viewSubscriptions;
+
+    /**
+     * 在每帧开始时批量显示加载完成的图片
+     */
+    private final FrameBatchDisplayer frameDisplayer;
+
+    /**
+     * 还在线程池中排队的加载，开始执行时移除；排队时可根据ImageView是否在屏幕上修改优先级
+     */
+    private final Map<BitmapKey, PrioritizedTask> queuedLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 滑动时推迟下载的暂停开关
+     */
+    private final LoadPauseGate loadGate = new LoadPauseGate();
+
+    /**
+     * 因滑动暂停而推迟的加载阶段数
+     */
+    private final AtomicLong deferredLoads = new AtomicLong();
+
+    /**
+     * 绑定的页面的结果分发器，见{@link #bind(LifecycleDispatcher)}
+     */
+    private volatile LifecycleDispatcher dispatcher;
+
+    /**
+     * 页面进入后台时暂停下载，销毁时取消所有ImageView的加载
+     */
+    private final LifecycleDispatcher.Callback lifecycleCallback = new LifecycleDispatcher.Callback() {
+        @Override
+        public void onThrottleChanged(boolean throttled) {
+            if (throttled) {
+                loadGate.pause();
+            } else {
+                loadGate.resume();
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            cancelAll();
+        }
+    };
 
     /**
-     * 用于在{@link #getInstance(MemoryCache, FileCache, int)}中初始化ImageLoader
+     * 用于在{@link #getInstance(MemoryCache, EncodedMemoryCache, FileCache, PhotoDataBaseManager, int)}中初始化ImageLoader
      *
      * @param memoryCache 内存缓存实例
+     * @param encodedCache 压缩字节的内存缓存实例
      * @param fileCache 文件缓存实例
+     * @param photoDataBaseManager 记录已缓存图片信息的数据库
      * @param maxThreads 用于异步加载图片线程池的最大线程数
      */
-    private ImageLoader(MemoryCache memoryCache, FileCache fileCache, int maxThreads) {
+    private ImageLoader(MemoryCache memoryCache, EncodedMemoryCache encodedCache, FileCache fileCache,
+                        PhotoDataBaseManager photoDataBaseManager, int maxThreads) {
         this.fileCache = fileCache;
         this.memoryCache = memoryCache;
+        this.encodedCache = encodedCache;
         this.mImageViews = new ConcurrentHashMap<>(); //Collections.synchronizedMap(new WeakHashMap<>());
-        this.taskQueue = new ArrayList<>();
+        this.viewSubscriptions = new ConcurrentHashMap<>();
+        //在UI线程中创建；ImageView被回收后从mImageViews中移除，此时也不再显示
+        this.frameDisplayer = new FrameBatchDisplayer((imageView, url) -> url.equals(mImageViews.get(imageView)));
         mExecutorService = PhotoLoadThreadPoolExecutor.newFixedPhotoLoadPool(maxThreads);
+        this.writeBehindQueue = new DiskWriteBehindQueue(fileCache, encodedCache, photoDataBaseManager,
+                WRITE_BEHIND_CAPACITY);
     }
 
     /**
@@ -82,16 +190,19 @@ public class ImageLoader {
      * 该方法应该在第一次创建ImageLoader实例时调用，在这之后若需要获取实例应当调用{@link #getInstance()}
      *
      * @param memoryCache 内存缓存实例
+     * @param encodedCache 压缩字节的内存缓存实例
      * @param fileCache 文件缓存实例
+     * @param photoDataBaseManager 记录已缓存图片信息的数据库
      * @param maxThreads 用于异步加载图片线程池的最大线程数
      *
      * @return 返回创建的单例对象@see{@link #instance}
      */
-    public static ImageLoader getInstance(MemoryCache memoryCache, FileCache fileCache, int maxThreads) {
+    public static ImageLoader getInstance(MemoryCache memoryCache, EncodedMemoryCache encodedCache, FileCache fileCache,
+                                          PhotoDataBaseManager photoDataBaseManager, int maxThreads) {
         if (instance == null) {
             synchronized (ImageLoader.class) {
                 if (instance == null) {
-                    instance = new ImageLoader(memoryCache, fileCache, maxThreads);
+                    instance = new ImageLoader(memoryCache, encodedCache, fileCache, photoDataBaseManager, maxThreads);
                 }
             }
         }
@@ -101,7 +212,7 @@ public class ImageLoader {
     /**
      * 返回ImageLoader已创建的单例{@link #instance}
      *
-     * @return 返回调用 {@link #getInstance(MemoryCache, FileCache, int)}后创建的单例{@link #instance}
+     * @return 返回调用 {@link #getInstance(MemoryCache, EncodedMemoryCache, FileCache, PhotoDataBaseManager, int)}后创建的单例{@link #instance}
      *
      * @exception NullPointerException
      */
@@ -113,7 +224,7 @@ public class ImageLoader {
     }
 
     /**
-     * 将图片的url转为储存的目录名
+     * 将图片的url转为储存的目录名，目前只用于保存原图时的文件名；磁盘缓存的文件名见{@link com.wisstudio.devilwizard.photobrowserapp.cache.disk.DiskCacheKeyGenerator}
      * 比如url = https://picsum.photos/id/0/5616/3744, 则其储存的目录为“.../056163744”(将id后的数字拼接作为文件名)
      *
      * @param url 图片的url地址
@@ -127,20 +238,27 @@ public class ImageLoader {
     }
 
     /**
-     * 在设备处于无联网状态时，直接通过数据库从文件缓存中加载图片
+     * 在设备处于无联网状态时，直接从文件缓存中加载数据库中记录过的图片
      *
      * @param url 要加载的图片的网址
      * @param imageView 要加载的图片的{@link ImageView}
-     * @param manager
      *
-     * @return 返回文件缓存中图片的Bitmap
+     * @return 返回文件缓存中图片的Bitmap，若已不在缓存中则返回null
      */
-    public Bitmap loadPhotoFromFileCache(String url, ImageView imageView, PhotoDataBaseManager manager) {
-        String cachePath = manager.getPhotoCachePath(url);
-        Bitmap bitmap = fileCache.getBitmapFromFile(cachePath, memoryCache);
+    public Bitmap loadPhotoFromFileCache(String url, ImageView imageView) {
+        byte[] data = fileCache.read(url);
+        if (data == null) {
+            return null;
+        }
+        Bitmap bitmap = fileCache.getBitmapFromBytes(data, fileCache.getHeader(url), DecodeConfigPolicy.forThumbnail(), memoryCache);
         //是否需要优化此显示方案
         BitmapDisplayer displayer = new BitmapDisplayer(imageView);
-        MainActivity.getMainActivity().runOnUiThread(() -> displayer.setBitmap(bitmap));
+        LifecycleDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            dispatcher.post(() -> displayer.setBitmap(bitmap));
+        } else {
+            MyLog.w(TAG, "loadPhotoFromFileCache: not bound to any page, " + url + " is not displayed");
+        }
         return bitmap;
     }
 
@@ -151,50 +269,161 @@ public class ImageLoader {
      *
      * @param image 描述图片信息的MyImage对象
      *
-     * @return 先从一级内存缓存中取图片 {@link MemoryCache#get(String)}，若有则直接返回，
-     *         如果没有则异步从文件（二级缓存）中取{@link FileCache#getBitmapFromFile(String, MemoryCache)}，
-     *         如果没有再从网络端获取{@link HttpRequest#loadBitmapFromWeb(ImageView, MyImage, File)}，最终返回Bitmap对象
+     * @return 先从一级内存缓存中取与imageView大小相符的图片 {@link MemoryCache#get(BitmapKey)}，若有则直接返回，
+     *         如果没有则异步从内存缓存中更大的版本缩放{@link MemoryCache#getScaledFromLargerVariant(BitmapKey, int, int)}，
+     *         或从压缩字节缓存{@link EncodedMemoryCache#get(String)}、文件（二级缓存）{@link FileCache#getBitmapFromBytes(byte[], ImageHeader, Bitmap.Config, MemoryCache)}中解码，
+     *         如果都没有再从网络端获取（滑动期间推迟到停止后）{@link HttpRequest#loadBitmapFromWeb(BitmapKey, MyImage, SingleFlight.Call)}；
+     *         网络获取的图片先返回显示，写入文件缓存由{@link DiskWriteBehindQueue}在后台完成
+     *         返回本次加载的请求，ImageView不再需要这张图片时（如被回收）应调用{@link Cancellable#cancel()}，
+     *         排队中的加载会被跳过，正在进行的下载会中止；已从一级缓存显示时返回null
      *
-     * @see #enQueueLoadPhoto(ImageView, MyImage)
+     * @see #enQueueLoadPhoto(ImageView, MyImage, BitmapKey, int)
      *
      */
-    public Bitmap loadBitmap(ImageView imageView, MyImage image) {
+    public Cancellable loadBitmap(ImageView imageView, MyImage image) {
         //mImageViews可能为空
         if (mImageViews == null) {
             MyLog.d(TAG, "loadBitmap: " + "mImageViews is null !");
         }
         if (imageView != null) {
             mImageViews.put(imageView, image.getUrl());//先将ImageView记录到Map中,表示该imageView已经执行过图片加载了
+            cancelPrevious(imageView);
         }
 
-        Bitmap bitmap = memoryCache.get(image.getUrl());//先从一级缓存中获取图片
-        if (bitmap == null) {
-            enQueueLoadPhoto(imageView, image);//再从二级缓存或网络中获取
-        } else {
-            BitmapDisplayer displayer = new BitmapDisplayer(imageView);
-            MainActivity.getMainActivity().runOnUiThread(() -> displayer.setBitmap(bitmap));
+        BitmapKey key = BitmapKey.of(image.getUrl(), imageView, DecodeConfigPolicy.forThumbnail());
+        BitmapResource resource = memoryCache.get(key);//先从一级缓存中获取图片
+        if (resource == null) {
+            return enQueueLoadPhoto(imageView, image, key, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE);//再从二级缓存或网络中获取
         }
-        return bitmap;//有则从一级缓存中返回
+        display(imageView, image.getUrl(), resource);//有则从一级缓存中直接显示
+        return null;
     }
 
     /**
-     * 从文件缓存{@link FileCache}或网络端{@link HttpRequest}获取图片
-     *
-     * @param imageView 要加载图片的ImageView对象
+     * 从内存缓存中更大的版本、压缩字节缓存{@link EncodedMemoryCache}或文件缓存{@link FileCache}获取图片，
+     * 从文件读出的压缩字节会放入压缩字节缓存，下次解码不必再读磁盘；滑动暂停期间也会执行
      *
      * @param image 描述图片信息的MyImage对象
      *
+     * @param key 目标版本在内存缓存中的键
+     *
+     * @return 返回已放入内存缓存的图片资源（已为调用者增加了一个引用），缓存中没有则返回null
      */
-    public Bitmap getBitmapByUrl(ImageView imageView, MyImage image) {
-        File file = fileCache.getFile(image.getUrl());//获得缓存图片文件
-        if (file.exists()) {//如果已经加载过，才读文件，否则从网络请求
-            MyLog.d(TAG, "getBitmapByUrl: 缓存已存在");
-            Bitmap bitmap = fileCache.getBitmapFromFile(file.getAbsolutePath(), memoryCache);//获得文件的Bitmap信息
-            if (bitmap != null) {
-                return bitmap;
+    public BitmapResource getBitmapFromCache(MyImage image, BitmapKey key) {
+        //按照网络解码时相同的版本和采样率算出目标版本的大小，再尝试从已缓存的更大版本缩放得到
+        int[] decodedSize = getDecodedSize(image, key.getWidth(), key.getHeight());
+        BitmapResource scaled = memoryCache.getScaledFromLargerVariant(key, decodedSize[0], decodedSize[1]);
+        if (scaled != null) {
+            return scaled;
+        }
+
+        Bitmap bitmap = null;
+        byte[] encoded = encodedCache.get(image.getUrl());
+        if (encoded == null && fileCache.contains(image.getUrl())) {//内存中没有时才读文件缓存，都没有再从网络请求
+            encoded = fileCache.read(image.getUrl());
+            if (encoded != null) {
+                MyLog.d(TAG, "getBitmapFromCache: 缓存已存在");
+                encodedCache.put(image.getUrl(), encoded);
+            }
+        }
+        if (encoded != null) {
+            //写入时记录的宽高能直接确定inBitmap，只需解码一遍
+            bitmap = fileCache.getBitmapFromBytes(encoded, fileCache.getHeader(image.getUrl()), key.getConfig(), memoryCache);
+            if (bitmap == null) {//文件已损坏，删除后重新下载
+                encodedCache.remove(image.getUrl());
+                fileCache.remove(image.getUrl());
             }
         }
-        return HttpRequest.loadBitmapFromWeb(imageView, image, file);//从网络获得图片
+        if (bitmap != null) {
+            return memoryCache.put(key, bitmap);// 将图片放入到一级缓存中
+        }
+        return null;
+    }
+
+    /**
+     * 从网络端{@link HttpRequest}获取图片，是加载中最耗时的阶段，滑动暂停期间会被推迟
+     *
+     * @param image 描述图片信息的MyImage对象
+     *
+     * @param key 目标版本在内存缓存中的键
+     *
+     * @param call 本次加载的请求，所有调用者都取消后中止下载
+     *
+     * @return 返回已放入内存缓存的图片资源（已为调用者增加了一个引用），加载失败或被取消则返回null
+     */
+    public BitmapResource getBitmapFromWeb(MyImage image, BitmapKey key, SingleFlight<?, ?>.Call call) {
+        Bitmap bitmap = HttpRequest.loadBitmapFromWeb(key, image, call);//从网络获得图片
+        if (bitmap == null) {
+            return null;
+        }
+        BitmapResource resource = memoryCache.put(key, bitmap);
+        writeBehindQueue.enqueue(image, resource);//编码和写入文件缓存不阻塞显示
+        return resource;
+    }
+
+    /**
+     * 以最低的优先级把图片加载到内存缓存，需要下载的同时写入文件缓存；之后显示它的ImageView大小相同时可直接从内存缓存显示，
+     * 预加载还未完成时显示它的加载会加入同一次加载并提高其优先级
+     *
+     * @param image 要预加载的图片
+     *
+     * @param width 显示的宽(以pixel为单位)，应与显示它的ImageView相同
+     *
+     * @param height 显示的高(以pixel为单位)，应与显示它的ImageView相同
+     *
+     * @param onDone 加载结束（成功或失败）时在加载线程中被回调，取消后不会回调
+     *
+     * @return 返回本次预加载的请求，图片已在内存缓存中时返回null
+     */
+    @Override
+    public Cancellable prefetch(MyImage image, int width, int height, Runnable onDone) {
+        BitmapKey key = new BitmapKey(image.getUrl(), width, height, DecodeConfigPolicy.forThumbnail());
+        BitmapResource cached = memoryCache.get(key);
+        if (cached != null) {
+            cached.release();
+            return null;
+        }
+        LoadPhotoTask loadTask = new LoadPhotoTask(image, key);
+        return loadFlights.join(key, new HttpCallBackListener<BitmapResource>() {
+            @Override
+            public void onFinish(BitmapResource resource) {
+                onDone.run();//图片已在内存缓存中，本次加载的引用在分发后释放
+            }
+
+            @Override
+            public void onError(Exception e) {
+                onDone.run();
+            }
+        }, command -> loadTask.submit(command, PhotoLoadThreadPoolExecutor.PRIORITY_PREFETCH), loadTask);
+    }
+
+    /**
+     * 按网络解码时相同的采样率估算图片解码后的大小
+     *
+     * @param image 描述图片信息的MyImage对象
+     *
+     * @param width 显示的宽(以pixel为单位)
+     *
+     * @param height 显示的高(以pixel为单位)
+     *
+     * @return 返回图片解码后占用的内存(以字节B为单位)
+     */
+    @Override
+    public long estimateDecodedBytes(MyImage image, int width, int height) {
+        int[] decodedSize = getDecodedSize(image, width, height);
+        return (long) decodedSize[0] * decodedSize[1] * BitmapPool.getBytesPerPixel(DecodeConfigPolicy.forThumbnail());
+    }
+
+    /**
+     * 按网络加载时下载的版本{@link ImageUrlResolver#resolve(MyImage, int, int)}和采样率计算解码后的宽高
+     *
+     * @return 返回解码后的宽和高(以pixel为单位)
+     */
+    private static int[] getDecodedSize(MyImage image, int width, int height) {
+        ImageUrlResolver.Variant variant = ImageUrlResolver.resolve(image, width, height);
+        int sampleSize = BitmapPool.getActualSampleSize(
+                HttpRequest.calcuSampleSize(variant.getWidth(), variant.getHeight(), width, height));
+        return new int[]{(variant.getWidth() + sampleSize - 1) / sampleSize, (variant.getHeight() + sampleSize - 1) / sampleSize};
     }
 
     /**
@@ -212,130 +441,327 @@ public class ImageLoader {
     }
 
     /**
-     * 将任务task从队列中移除
+     * 绑定到显示图片的页面：页面进入后台时暂停下载，回到前台时恢复，销毁时取消所有ImageView的加载；
+     * 重新绑定时解除与之前页面的绑定，页面重建后不会再持有旧页面
      *
-     * @param task 要从队列{@link #taskQueue}中移除的任务
+     * @param dispatcher 页面的结果分发器，在UI线程中调用
      */
-    public void removeTask(LoadPhotoTask task) {
-        synchronized (taskQueue) {
-            taskQueue.remove(task);
+    public void bind(LifecycleDispatcher dispatcher) {
+        LifecycleDispatcher previous = this.dispatcher;
+        if (previous != null) {
+            previous.removeCallback(lifecycleCallback);
+        }
+        this.dispatcher = dispatcher;
+        if (dispatcher != null) {
+            dispatcher.addCallback(lifecycleCallback);
         }
     }
 
     /**
-     * 暂停图片的加载
+     * 暂停图片的下载，缓存命中的图片仍会显示，见{@link LoadPauseGate}
      */
     public void pause() {
-        PhotoLoadThreadPoolExecutor.pause();
+        loadGate.pause();
     }
 
     /**
-     * 恢复图片加载
+     * 恢复图片加载，暂停期间推迟的下载重新进入线程池排队
      */
     public void resume() {
-        PhotoLoadThreadPoolExecutor.resume();
+        loadGate.resume();
+    }
+
+    /**
+     * @return 返回正在进行的加载数，包括还在排队的
+     */
+    public int getInFlightLoadCount() {
+        return loadFlights.getInFlightCount();
+    }
+
+    /**
+     * @return 返回线程池中排队等待的加载数
+     */
+    public int getQueuedLoadCount() {
+        return loadFlights.getQueuedCount();
+    }
+
+    /**
+     * 会遍历所有正在进行的加载，只用于诊断
+     *
+     * @return 返回排队最久的加载已等待的时间(以毫秒为单位)
+     */
+    public long getOldestQueuedLoadMillis() {
+        return loadFlights.getOldestQueuedMillis();
+    }
+
+    /**
+     * 修改imageView正在排队的加载的优先级，如图片滑入或滑出屏幕时；已开始执行或已完成的加载不受影响
+     *
+     * @param imageView 等待加载的ImageView
+     *
+     * @param priority 新的优先级，见{@link PhotoLoadThreadPoolExecutor#PRIORITY_VISIBLE}等
+     */
+    public void setLoadPriority(ImageView imageView, int priority) {
+        SingleFlight<BitmapKey, BitmapResource>.Subscription subscription = viewSubscriptions.get(imageView);
+        if (subscription == null) {
+            return;
+        }
+        PrioritizedTask queued = queuedLoads.get(subscription.getKey());
+        if (queued != null) {
+            queued.setPriority(priority);
+            loadGate.release(queued);//滑动暂停期间暂存的预加载滑入屏幕
+        }
+    }
+
+    /**
+     * 在图片加载线程池中按优先级执行任务，如查看大图时的下载
+     *
+     * @param command 要执行的任务
+     *
+     * @param priority 任务的优先级
+     */
+    public void execute(Runnable command, int priority) {
+        mExecutorService.execute(command, priority);
+    }
+
+    /**
+     * 取消imageView正在等待的加载，如RecyclerView回收了它所在的ViewHolder时
+     */
+    public void cancelLoad(ImageView imageView) {
+        cancelPrevious(imageView);
+        mImageViews.remove(imageView);
+    }
+
+    /**
+     * 取消所有ImageView正在等待的加载并丢弃还未显示的图片，如页面销毁时；预加载和查看大图的请求由各自的调用者取消
+     */
+    public void cancelAll() {
+        for (SingleFlight<BitmapKey, BitmapResource>.Subscription subscription : viewSubscriptions.values()) {
+            subscription.cancel();
+        }
+        viewSubscriptions.clear();
+        mImageViews.clear();
+        frameDisplayer.clear();
+        loadGate.resume();//暂停期间推迟的加载重新排队后会因已取消而直接跳过
+    }
+
+    /**
+     * @return 返回取消节省和浪费的工作量统计，用于诊断
+     */
+    public String getCancellationStats() {
+        return "skipped before start: " + skippedLoads.get() + ", aborted: " + abortedLoads.get()
+                + ", finished unwanted: " + unwantedLoads.get() + ", download bytes saved: " + HttpRequest.getBytesNotDownloaded();
+    }
+
+    /**
+     * @return 返回按帧批量显示的统计，用于诊断
+     */
+    public String getDisplayStats() {
+        return frameDisplayer.getStats();
+    }
+
+    /**
+     * @return 返回上一帧批量显示的图片数
+     */
+    public int getLastFrameDisplayedCount() {
+        return frameDisplayer.getLastFrameAppliedCount();
+    }
+
+    /**
+     * @return 返回因滑动暂停而推迟过的加载阶段数，以及当前等待恢复的加载数
+     */
+    public String getPauseStats() {
+        return "deferred: " + deferredLoads.get() + ", waiting for resume: " + loadGate.getDeferredCount();
     }
 
     public MemoryCache getMemoryCache() {
         return memoryCache;
     }
 
+    public EncodedMemoryCache getEncodedCache() {
+        return encodedCache;
+    }
+
     public FileCache getFileCache() {
         return fileCache;
     }
 
     /**
-     * 释放资源
+     * 释放资源，之后的{@link #getInstance()}不再返回本对象，页面重建时会创建新的实例
      */
     public void release() {
+        synchronized (ImageLoader.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        bind(null);
+        loadGate.resume();//推迟的加载重新提交后才能随线程池一起结束，否则其调用者永远等不到回调
+        mExecutorService.shutdown();
+        frameDisplayer.clear();
+        writeBehindQueue.flush(WRITE_BEHIND_FLUSH_TIMEOUT);//写完之后才清除文件缓存，之后数据库也会被关闭
         memoryCache.clearCache();
+        encodedCache.clear();
         fileCache.clear();
         mImageViews.clear();
-        taskQueue.clear();
-        mExecutorService.shutdown();
+        viewSubscriptions.clear();
+    }
+
+    /**
+     * 将resource显示到imageView上，并把调用者持有的引用交给{@link BitmapDisplayer}管理；加载线程中完成的图片攒到下一帧一起显示，
+     * 若imageView届时已被复用于其他图片则直接释放引用，见{@link FrameBatchDisplayer}
+     */
+    private void display(ImageView imageView, String url, BitmapResource resource) {
+        frameDisplayer.display(imageView, url, resource);
     }
 
     /**
-     * 将图片加入加载队列{@link #taskQueue}，然后通过线程池{@link #mExecutorService}执行加载
+     * 为imageView请求key对应的图片：同一版本正在加载时加入该次加载，否则通过线程池{@link #mExecutorService}发起新的加载，
+     * 加载完成后分别显示到每个仍在等待的ImageView上
      *
      * @param imageView 要加载图片的ImageView对象
      *
      * @param image 描述图片信息的MyImage对象
      *
+     * @param key 目标版本在内存缓存中的键
+     *
+     * @param priority 加载的优先级，加入已在排队的加载时只会提高它的优先级
+     *
+     * @return 返回imageView对本次加载的订阅
      */
-    private void enQueueLoadPhoto(ImageView imageView, MyImage image) {
-        //如果任务已经存在，则不重新添加
-        if (isTaskExisted(image.getUrl())) {
-            return;
+    private Cancellable enQueueLoadPhoto(ImageView imageView, MyImage image, BitmapKey key, int priority) {
+        String url = image.getUrl();
+        LoadPhotoTask loadTask = new LoadPhotoTask(image, key);
+        //加载可能在join返回前就已完成，且imageView此时可能已被复用并订阅了新的加载，只移除本次的订阅
+        AtomicReference<SingleFlight<BitmapKey, BitmapResource>.Subscription> own = new AtomicReference<>();
+        AtomicBoolean finished = new AtomicBoolean();
+        SingleFlight<BitmapKey, BitmapResource>.Subscription subscription = loadFlights.join(key,
+                new HttpCallBackListener<BitmapResource>() {
+                    @Override
+                    public void onFinish(BitmapResource resource) {
+                        if (imageView == null) {
+                            return;
+                        }
+                        finished.set(true);
+                        viewSubscriptions.remove(imageView, own.get());//own还未赋值时返回false
+                        //每个ImageView各持有一个引用，请求本身的引用在分发后释放
+                        if (resource != null && !isImageViewReused(imageView, url) && resource.acquire()) {
+                            display(imageView, url, resource);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        MyLog.w(TAG, "enQueueLoadPhoto: load " + key + " failed, " + e);
+                    }
+                }, command -> loadTask.submit(command, priority), loadTask);
+        PrioritizedTask queued = queuedLoads.get(key);
+        if (queued != null) {
+            queued.raisePriority(priority);
+            loadGate.release(queued);//加入的是滑动暂停期间暂存的预加载时，不必等到停止滑动
         }
-        LoadPhotoTask task = new LoadPhotoTask(imageView, image);
-        synchronized (taskQueue) {//加锁，防止重复添加
-            taskQueue.add(task);//将任务添加到队列中
-            MyLog.d(TAG, "enQueueLoadPhoto: task added " + task.url + ", total task : " + taskQueue.size());
+        own.set(subscription);
+        if (imageView != null) {
+            viewSubscriptions.put(imageView, subscription);
+            if (finished.get()) {
+                viewSubscriptions.remove(imageView, subscription);
+            }
         }
-
-        mExecutorService.execute(task);//向线程池中提交任务
+        MyLog.d(TAG, "enQueueLoadPhoto: " + key + ", in flight: " + loadFlights.getInFlightCount()
+                + ", queued: " + loadFlights.getQueuedCount());
+        return subscription;
     }
 
     /**
-     * 判断任务队列{@link #taskQueue}中是否已经存在网址为url的{@link LoadPhotoTask}任务
-     *
-     * @param url 要判断的任务的{@link LoadPhotoTask#url}
-     *
-     * @return 若任务已存在则返回true，否则返回false
+     * 取消imageView之前的加载请求，imageView被复用于其他图片时调用；同一图片的其他ImageView不受影响
      */
-    private boolean isTaskExisted(String url) {
-        if(url == null) {
-            return false;
+    private void cancelPrevious(ImageView imageView) {
+        SingleFlight<BitmapKey, BitmapResource>.Subscription previous = viewSubscriptions.remove(imageView);
+        if (previous != null) {
+            previous.cancel();
         }
-        synchronized (taskQueue) {
-            int size = taskQueue.size();
-            for(int i=0; i<size; i++) {
-                LoadPhotoTask task = taskQueue.get(i);
-                if(task != null && task.getUrl().equals(url)) {
-                    return true;
-                }
-            }
-        }
-        return false;
     }
 
     /**
-     * 加载图片的任务类
+     * 加载图片的任务类，同一版本的图片同时只有一个任务在执行
      */
-    class LoadPhotoTask implements Runnable{
+    class LoadPhotoTask implements SingleFlight.Fetcher<BitmapResource> {
 
         private static final String TAG = "LoadPhotoTask";
-        private final ImageView imageView;
         private final MyImage image;
-        private final String url;
+        private final BitmapKey key;
+
+        /**
+         * 在线程池中排队的任务，推迟后重新提交的也是同一个任务，排队时修改的优先级不会丢失
+         */
+        private volatile PrioritizedTask task;
 
-        LoadPhotoTask(ImageView imageView, MyImage image) {
-            this.imageView = imageView;
+        LoadPhotoTask(MyImage image, BitmapKey key) {
             this.image = image;
-            this.url = image.getUrl();
+            this.key = key;
+        }
+
+        /**
+         * 以priority的优先级把请求提交到线程池；请求因取消提前结束后又被重新提交时沿用原来的任务，已提高的优先级不会丢失
+         *
+         * @param command 要执行的请求
+         * @param priority 请求的优先级
+         */
+        void submit(Runnable command, int priority) {
+            if (task == null) {
+                task = new PrioritizedTask(command, priority);
+            } else {
+                task.raisePriority(priority);
+            }
+            resubmit();
         }
 
+        private void resubmit() {
+            queuedLoads.put(key, task);//先记录再提交，任务开始时才能找到并移除
+            try {
+                mExecutorService.execute(task);
+            } catch (RuntimeException e) {
+                queuedLoads.remove(key, task);
+                throw e;
+            }
+        }
+
+        /**
+         * @return 返回已放入内存缓存的图片资源，其引用属于本次请求，分发后由{@link #loadFlights}释放；推迟时返回null
+         */
         @Override
-        public void run() {
-            if (isImageViewReused(imageView, url)) {//判断ImageView是否已经被复用
-                MyLog.d(TAG, " imageViewReused !");
-                removeTask(this);//如果已经被复用则删除任务
-                return;
+        public BitmapResource fetch(SingleFlight<?, BitmapResource>.Call call) {
+            queuedLoads.remove(key);//同一版本同时只有一次加载，不会移除之后的加载
+            MyLog.d(TAG, "fetch: " + key + " queued " + call.getQueuedMillis() + "ms");
+            if (call.isCancelled()) {//等待的ImageView都已被回收或复用
+                skippedLoads.incrementAndGet();
+                return null;
             }
-            Bitmap bmp = getBitmapByUrl(imageView, image);//从缓存文件或者网络端获取图片
-            if (bmp != null) {
-                ImageLoader.getInstance().getMemoryCache().put(url, bmp);// 将图片放入到一级缓存中
+            BitmapResource resource = getBitmapFromCache(image, key);//缓存命中很快，滑动时也照常显示，包括预加载
+            if (resource == null) {
+                if (loadGate.shouldDefer(task.getPriority(), true)) {
+                    return defer(call);
+                }
+                resource = getBitmapFromWeb(image, key, call);
             }
-            if (!isImageViewReused(imageView, url)) {//若ImageView未加载图片则在ui线程中显示图片
-                BitmapDisplayer displayer = new BitmapDisplayer(imageView);
-                MainActivity.getMainActivity().runOnUiThread(() -> displayer.setBitmap(bmp));
+            if (call.isCancelled()) {
+                if (resource == null) {
+                    abortedLoads.incrementAndGet();
+                } else {
+                    unwantedLoads.incrementAndGet();//已加载完才取消，图片仍留在缓存中
+                }
             }
-            removeTask(this);//加载完后从队列中移除任务
+            return resource;
         }
 
-        public String getUrl() {
-            return url;
+        /**
+         * 释放当前线程，恢复后重新排队；期间仍可修改优先级或被取消
+         */
+        private BitmapResource defer(SingleFlight<?, BitmapResource>.Call call) {
+            deferredLoads.incrementAndGet();
+            queuedLoads.put(key, task);
+            call.defer(command -> loadGate.defer(task, this::resubmit));
+            return null;
         }
     }
 }
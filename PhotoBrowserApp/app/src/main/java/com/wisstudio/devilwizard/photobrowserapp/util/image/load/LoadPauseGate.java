@@ -0,0 +1,161 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 滑动时暂停耗时的加载阶段：暂停期间内存和文件缓存的命中照常显示，需要下载和完整解码的加载被暂存起来，
+ * 执行它的线程立即去执行下一个任务，不会阻塞等待；恢复时暂存的加载重新提交到线程池
+ * 查看大图的请求不受暂停影响，预加载的请求与其他请求一样只推迟下载，见{@link #shouldDefer(int, boolean)}；
+ * 暂存的预加载被显示它的加载加入、优先级提高后立即重新提交，见{@link #release(PrioritizedTask)}
+ * 每个{@link ImageLoader}各有一个实例
+ *
+ * @author WizardK
+ * @date 2021-05-17
+ */
+public class LoadPauseGate {
+
+    private static final String TAG = "LoadPauseGate";
+
+    private boolean paused;
+
+    /**
+     * 暂停期间暂存的加载，恢复时按当时的优先级依次重新提交：空闲的工作线程会立即取走最先提交的任务，
+     * 来不及经过线程池的优先级队列排序，因此提交前先排好序
+     */
+    private final List<Deferred> deferred = new ArrayList<>();
+
+    /**
+     * 恢复时的提交顺序，与{@link PhotoLoadPriorityQueue}相同：优先级高的先提交，同一优先级中最近请求的先提交
+     */
+    private static final Comparator<Deferred> RESUME_ORDER = (a, b) -> {
+        if (a.task.getPriority() != b.task.getPriority()) {
+            return Integer.compare(a.task.getPriority(), b.task.getPriority());
+        }
+        return Long.compare(b.task.getSequence(), a.task.getSequence());
+    };
+
+    /**
+     * 一个暂存的加载
+     */
+    private static class Deferred {
+        final PrioritizedTask task;
+        final Runnable resubmit;
+
+        Deferred(PrioritizedTask task, Runnable resubmit) {
+            this.task = task;
+            this.resubmit = resubmit;
+        }
+    }
+
+    /**
+     * 暂停，之后{@link #shouldDefer(int, boolean)}对耗时的阶段返回true
+     */
+    public synchronized void pause() {
+        if (!paused) {
+            MyLog.d(TAG, "pause: ");
+        }
+        paused = true;
+    }
+
+    /**
+     * 恢复，并执行暂停期间暂存的所有重新提交操作
+     */
+    public void resume() {
+        List<Deferred> resubmits;
+        synchronized (this) {
+            if (!paused) {
+                return;
+            }
+            paused = false;
+            resubmits = new ArrayList<>(deferred);
+            deferred.clear();
+        }
+        MyLog.d(TAG, "resume: resubmit " + resubmits.size() + " deferred loads");
+        Collections.sort(resubmits, RESUME_ORDER);//暂存期间优先级仍可能被修改，恢复时才排序
+        for (Deferred entry : resubmits) {
+            try {
+                entry.resubmit.run();
+            } catch (RejectedExecutionException e) {
+                MyLog.w(TAG, "resume: loader already released, " + e);
+            }
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * 判断当前是否应推迟某个加载阶段
+     *
+     * @param priority 加载的优先级，见{@link PhotoLoadThreadPoolExecutor#PRIORITY_VIEWER}等
+     * @param expensive 该阶段是否耗时，如下载和完整解码；缓存命中的阶段不耗时
+     *
+     * @return 暂停期间，除查看大图外的耗时阶段返回true；预加载在滑动时发起，读取缓存的阶段也照常执行
+     */
+    public synchronized boolean shouldDefer(int priority, boolean expensive) {
+        return paused && expensive && priority != PhotoLoadThreadPoolExecutor.PRIORITY_VIEWER;
+    }
+
+    /**
+     * 暂停期间暂存resubmit，恢复时执行；未暂停时立即在当前线程执行
+     *
+     * @param task 被推迟的任务，恢复时按它当时的优先级排序
+     * @param resubmit 重新提交task的操作，应当很快返回，不能在其中执行加载本身
+     */
+    public void defer(PrioritizedTask task, Runnable resubmit) {
+        synchronized (this) {
+            if (paused) {
+                deferred.add(new Deferred(task, resubmit));
+                return;
+            }
+        }
+        resubmit.run();//在检查之后刚好恢复
+    }
+
+    /**
+     * 暂存的任务优先级已高于预加载时（如预测的图片滑入屏幕，显示它的加载加入了这次预加载并提高了优先级），
+     * 立即执行它的重新提交操作，不等恢复：期间已写入缓存的图片马上显示，仍需下载时会再次被暂存
+     *
+     * @param task 优先级刚被修改的任务
+     *
+     * @return 若task在暂存中并已重新提交则返回true
+     */
+    public boolean release(PrioritizedTask task) {
+        if (task.getPriority() >= PhotoLoadThreadPoolExecutor.PRIORITY_PREFETCH) {
+            return false;
+        }
+        Deferred released = null;
+        synchronized (this) {
+            for (int i = 0; i < deferred.size(); i++) {
+                if (deferred.get(i).task == task) {
+                    released = deferred.remove(i);
+                    break;
+                }
+            }
+        }
+        if (released == null) {
+            return false;
+        }
+        MyLog.d(TAG, "release: resubmit deferred load at priority " + task.getPriority());
+        try {
+            released.resubmit.run();
+        } catch (RejectedExecutionException e) {
+            MyLog.w(TAG, "release: loader already released, " + e);
+        }
+        return true;
+    }
+
+    /**
+     * @return 返回暂存等待恢复的加载数
+     */
+    public synchronized int getDeferredCount() {
+        return deferred.size();
+    }
+}
@@ -0,0 +1,299 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 图片加载线程池的任务队列，按优先级出队：优先级高的先执行，同一优先级中最近请求的先执行（后进先出），
+ * 快速滑动后屏幕上的图片不必等滑过的图片加载完
+ * 任务每等待{@link #agingMillis}毫秒提升一级优先级（最高提升到{@link PhotoLoadThreadPoolExecutor#PRIORITY_VISIBLE}），
+ * 等待超过{@link #agingMillis}的任务在同一优先级中排在新任务之前且先来先执行，因此任何任务的等待时间都有上限；
+ * 由于优先级在排队时可以修改且会随时间变化，出队时遍历所有任务选出当前最优先的一个，
+ * 排队的任务通常只有几十个，遍历的开销远小于一次加载
+ * 不是{@link PrioritizedTask}的任务按{@link PhotoLoadThreadPoolExecutor#PRIORITY_VISIBLE}处理
+ *
+ * @author WizardK
+ * @date 2021-05-16
+ */
+public class PhotoLoadPriorityQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * 默认每等待多长时间提升一级优先级(以毫秒为单位)
+     */
+    public static final long DEFAULT_AGING_MILLIS = 1500;
+
+    private final long agingMillis;
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    public PhotoLoadPriorityQueue() {
+        this(DEFAULT_AGING_MILLIS);
+    }
+
+    /**
+     * @param agingMillis 每等待多长时间提升一级优先级(以毫秒为单位)
+     *
+     * @exception IllegalArgumentException
+     */
+    public PhotoLoadPriorityQueue(long agingMillis) {
+        if (agingMillis <= 0) {
+            throw new IllegalArgumentException("agingMillis must larger than 0");
+        }
+        this.agingMillis = agingMillis;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        if (task instanceof PrioritizedTask) {
+            ((PrioritizedTask) task).markQueued();
+        }
+        lock.lock();
+        try {
+            tasks.add(task);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);//无界队列，不会阻塞
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (tasks.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (tasks.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            int index = indexOfNext();
+            return index < 0 ? null : tasks.get(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return tasks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            return tasks.remove(o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("cannot drain to itself");
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && !tasks.isEmpty()) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 返回排队任务的快照，不按出队顺序；通过迭代器删除会从队列中移除对应的任务
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<>(tasks);
+        } finally {
+            lock.unlock();
+        }
+        return new Iterator<Runnable>() {
+            private int cursor;
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < snapshot.size();
+            }
+
+            @Override
+            public Runnable next() {
+                last = snapshot.get(cursor++);
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                PhotoLoadPriorityQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    /**
+     * 计算任务当前的有效优先级，等待越久数值越小
+     *
+     * @param task 排队的任务
+     * @param now 当前时间，{@link System#nanoTime()}
+     *
+     * @return 返回任务当前的有效优先级
+     */
+    int effectivePriority(Runnable task, long now) {
+        if (!(task instanceof PrioritizedTask)) {
+            return PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE;
+        }
+        int priority = ((PrioritizedTask) task).getPriority();
+        if (priority <= PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE) {
+            return priority;
+        }
+        long promoted = priority - waitedMillis(task, now) / agingMillis;
+        return (int) Math.max(PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE, promoted);//不会超过查看大图的请求
+    }
+
+    private boolean isAged(Runnable task, long now) {
+        return task instanceof PrioritizedTask
+                && ((PrioritizedTask) task).getPriority() != PhotoLoadThreadPoolExecutor.PRIORITY_VIEWER
+                && waitedMillis(task, now) >= agingMillis;
+    }
+
+    private static long waitedMillis(Runnable task, long now) {
+        return TimeUnit.NANOSECONDS.toMillis(now - ((PrioritizedTask) task).getQueuedAt());
+    }
+
+    /**
+     * 需在锁内调用
+     */
+    private Runnable dequeue() {
+        int index = indexOfNext();
+        if (index < 0) {
+            return null;
+        }
+        //用最后一个元素填补空位，顺序由优先级决定，不依赖在列表中的位置
+        Runnable next = tasks.get(index);
+        Runnable last = tasks.remove(tasks.size() - 1);
+        if (index < tasks.size()) {
+            tasks.set(index, last);
+        }
+        return next;
+    }
+
+    /**
+     * 需在锁内调用
+     *
+     * @return 返回当前最应该执行的任务的下标，队列为空时返回-1
+     */
+    private int indexOfNext() {
+        long now = System.nanoTime();
+        int best = -1;
+        int bestPriority = Integer.MAX_VALUE;
+        boolean bestAged = false;
+        long bestOrder = Long.MAX_VALUE;
+        for (int i = 0; i < tasks.size(); i++) {
+            Runnable task = tasks.get(i);
+            int priority = effectivePriority(task, now);
+            if (priority > bestPriority) {
+                continue;
+            }
+            boolean aged = isAged(task, now);
+            //等待过久的任务按入队时间先来先执行，其余按请求序号后来先执行，两者都是越小越优先
+            long order;
+            if (aged) {
+                order = ((PrioritizedTask) task).getQueuedAt();
+            } else {
+                order = task instanceof PrioritizedTask ? -((PrioritizedTask) task).getSequence() : 0;
+            }
+            if (priority < bestPriority || (aged && !bestAged) || (aged == bestAged && order < bestOrder)) {
+                best = i;
+                bestPriority = priority;
+                bestAged = aged;
+                bestOrder = order;
+            }
+        }
+        return best;
+    }
+}
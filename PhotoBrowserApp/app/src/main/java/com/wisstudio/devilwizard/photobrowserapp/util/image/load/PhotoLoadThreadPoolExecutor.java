@@ -1,16 +1,12 @@
 package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
 
-import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
-
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * 自定义的图片加载线程池，添加了暂停和恢复当前执行任务的功能
+ * 自定义的图片加载线程池，排队的任务按优先级执行，见{@link PhotoLoadPriorityQueue}
+ * 滑动时的暂停由{@link LoadPauseGate}在任务内部处理，线程池本身不会阻塞工作线程
  *
  * @author WizardK
  * @date 2021-04-12
@@ -18,16 +14,34 @@ import java.util.concurrent.locks.ReentrantLock;
 public class PhotoLoadThreadPoolExecutor extends ThreadPoolExecutor {
 
     private static final String TAG = "PhotoLoadThreadPool";
-    private static boolean isPause = false;
-    private static final ReentrantLock lock = new ReentrantLock();
-    private static final Condition condition = lock.newCondition();
+
+    /**
+     * 查看大图和保存原图的请求，优先级最高
+     */
+    public static final int PRIORITY_VIEWER = 0;
+
+    /**
+     * 屏幕上正在显示的图片
+     */
+    public static final int PRIORITY_VISIBLE = 1;
+
+    /**
+     * 已经布局但还在屏幕外、即将滑入的图片
+     */
+    public static final int PRIORITY_NEAR_VISIBLE = 2;
+
+    /**
+     * 预加载的图片，优先级最低
+     */
+    public static final int PRIORITY_PREFETCH = 3;
+
 
     public PhotoLoadThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, BlockingQueue<Runnable> workQueue) {
         super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue);
     }
 
     /**
-     * 创建一个用于加载图片的固定大小的线程池效果与{@code Executors.newFixedThreadPool(int)}相同
+     * 创建一个用于加载图片的固定大小的线程池，效果与{@code Executors.newFixedThreadPool(int)}相同，但排队的任务按优先级执行
      *
      * @param nThreads 创建的线程池大小
      *
@@ -42,45 +56,20 @@ public class PhotoLoadThreadPoolExecutor extends ThreadPoolExecutor {
             throw new IllegalArgumentException("the pool size must larger than 0 ");
         }
         return new PhotoLoadThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>());
-    }
-
-    /**
-     * 暂停线程池中的任务
-     */
-    public static void pause() {
-        lock.lock();
-        MyLog.d(TAG, "pause: ");
-        isPause = true;
-        lock.unlock();
+                new PhotoLoadPriorityQueue());
     }
 
     /**
-     * 继续线程池中的任务
+     * 按任务的优先级执行，不是{@link PrioritizedTask}的任务按{@link #PRIORITY_VISIBLE}执行
+     *
+     * @param command 要执行的任务
+     * @param priority 任务的优先级
+     *
+     * @return 返回提交的任务，排队时可通过{@link PrioritizedTask#setPriority(int)}修改优先级
      */
-    public static void resume() {
-        lock.lock();
-        MyLog.d(TAG, "resume: ");
-        isPause = false;
-        condition.signalAll();
-        lock.unlock();
-    }
-
-    @Override
-    protected void beforeExecute(Thread t, Runnable r) {
-        super.beforeExecute(t, r);
-        lock.lock();
-        try {
-            while (isPause){
-                long ms = 10L;
-                MyLog.d(TAG, "beforeExecute: " + "pausing, " + t.getName());
-                Thread.sleep(ms);
-                condition.await();
-            }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            lock.unlock();
-        }
+    public PrioritizedTask execute(Runnable command, int priority) {
+        PrioritizedTask task = new PrioritizedTask(command, priority);
+        execute(task);
+        return task;
     }
 }
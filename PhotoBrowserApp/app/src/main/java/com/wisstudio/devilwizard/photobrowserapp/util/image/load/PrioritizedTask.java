@@ -0,0 +1,94 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带优先级的加载任务，在{@link PhotoLoadPriorityQueue}中排队时优先级仍可修改，出队时按当时的优先级选择
+ * 优先级取值见{@link PhotoLoadThreadPoolExecutor#PRIORITY_VIEWER}等，数值越小越先执行
+ *
+ * @author WizardK
+ * @date 2021-05-16
+ */
+public class PrioritizedTask implements Runnable {
+
+    /**
+     * 请求的序号，同一优先级中序号大的（最近请求的）先执行
+     */
+    private static final AtomicLong sequencer = new AtomicLong();
+
+    private final Runnable task;
+    private volatile int priority;
+    private volatile long sequence;
+
+    /**
+     * 进入队列的时间，{@link System#nanoTime()}，用于计算等待时间使任务逐渐提升优先级
+     */
+    private volatile long queuedAt;
+
+    /**
+     * @param task 要执行的任务
+     * @param priority 任务的优先级
+     *
+     * @exception IllegalArgumentException
+     */
+    public PrioritizedTask(Runnable task, int priority) {
+        if (task == null) {
+            throw new IllegalArgumentException("task must not be null");
+        }
+        this.task = task;
+        this.priority = checkPriority(priority);
+        this.sequence = sequencer.incrementAndGet();
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * 修改排队中任务的优先级，如图片从屏幕外滑入屏幕时；优先级提高时视为重新请求，在同一优先级中排到最前
+     *
+     * @param priority 新的优先级
+     */
+    public void setPriority(int priority) {
+        int previous = this.priority;
+        this.priority = checkPriority(priority);
+        if (priority < previous) {
+            sequence = sequencer.incrementAndGet();
+        }
+    }
+
+    /**
+     * 只在新的优先级更高时修改，多个ImageView等待同一个任务时不会被其中较低的请求降低
+     *
+     * @param priority 新的优先级
+     */
+    public void raisePriority(int priority) {
+        if (priority < this.priority) {
+            setPriority(priority);
+        }
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    void markQueued() {
+        queuedAt = System.nanoTime();
+    }
+
+    @Override
+    public void run() {
+        task.run();
+    }
+
+    private static int checkPriority(int priority) {
+        if (priority < PhotoLoadThreadPoolExecutor.PRIORITY_VIEWER || priority > PhotoLoadThreadPoolExecutor.PRIORITY_PREFETCH) {
+            throw new IllegalArgumentException("unknown priority: " + priority);
+        }
+        return priority;
+    }
+}
@@ -0,0 +1,323 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.image.MyImage;
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.Cancellable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 根据滑动的方向和速度预加载即将滑入屏幕的图片：速度越快预加载得越远，结果放入内存缓存，下载的图片同时写入文件缓存
+ * 预加载以最低的优先级{@link PhotoLoadThreadPoolExecutor#PRIORITY_PREFETCH}执行，且不超过两项预算：
+ * 同时进行的预加载数（网络预算）和预加载窗口内图片解码后的总大小（内存预算）
+ * 滑动方向反转时取消所有进行中的预加载；预加载的图片滑入屏幕后，显示它的加载会直接加入同一次加载
+ * 一次预加载完成后在当前窗口内继续发起下一个，直到预算用完或窗口内都已发起
+ * 应在UI线程中调用{@link #onScrolled(int, int, int, long)}等方法，加载完成的回调可以在任意线程
+ *
+ * @author WizardK
+ * @date 2021-05-18
+ */
+public class ScrollPrefetcher {
+
+    private static final String TAG = "ScrollPrefetcher";
+
+    /**
+     * 按当前速度预测多长时间内会滑入屏幕的图片(以毫秒为单位)
+     */
+    private static final long LOOKAHEAD_MILLIS = 500;
+
+    /**
+     * 速度很慢时也至少预加载的图片数
+     */
+    private static final int MIN_AHEAD = 2;
+
+    /**
+     * 新测得的速度所占的权重，用于平滑每帧滑动距离的抖动
+     */
+    private static final float VELOCITY_SMOOTHING = 0.5f;
+
+    /**
+     * 执行预加载的加载器，由{@link ImageLoader}实现
+     */
+    public interface Loader {
+        /**
+         * 预加载一张图片
+         *
+         * @param image 要预加载的图片
+         * @param width 显示的宽(以pixel为单位)
+         * @param height 显示的高(以pixel为单位)
+         * @param onDone 加载结束（成功或失败）时被回调，取消后不会回调
+         *
+         * @return 返回本次预加载的请求，图片已在内存缓存中时返回null
+         */
+        Cancellable prefetch(MyImage image, int width, int height, Runnable onDone);
+
+        /**
+         * @return 返回图片按该大小解码后占用的内存(以字节B为单位)
+         */
+        long estimateDecodedBytes(MyImage image, int width, int height);
+    }
+
+    private final Loader loader;
+    private final int maxAhead;
+    private final int maxInFlight;
+    private final long memoryBudget;
+
+    /**
+     * 当前预加载窗口内已发起的预加载，key为图片的位置
+     */
+    private final Map<Integer, Prefetch> prefetches = new HashMap<>();
+
+    private List<MyImage> images;
+    private int cellWidth;
+    private int cellHeight;
+
+    private int lastFirst = -1;
+    private long lastTime;
+
+    /**
+     * 平滑后的滑动速度(以每秒滑过的图片数为单位)
+     */
+    private float velocity;
+
+    /**
+     * 当前预加载的方向，1为向下，-1为向上，0为还未确定
+     */
+    private int direction;
+
+    /**
+     * 当前的预加载窗口，包括两端的位置
+     */
+    private int windowFrom;
+    private int windowTo = -1;
+
+    private int inFlight;
+    private long committedBytes;
+
+    private long issuedCount;
+    private long cancelledCount;
+
+    /**
+     * @param loader 执行预加载的加载器
+     * @param maxAhead 最多预加载到屏幕外第几张图片
+     * @param maxInFlight 同时进行的预加载数上限，即网络预算
+     * @param memoryBudget 预加载窗口内图片解码后的总大小上限(以字节B为单位)，即内存预算
+     *
+     * @exception IllegalArgumentException
+     */
+    public ScrollPrefetcher(Loader loader, int maxAhead, int maxInFlight, long memoryBudget) {
+        if (loader == null || maxAhead <= 0 || maxInFlight <= 0 || memoryBudget <= 0) {
+            throw new IllegalArgumentException("loader must not be null and budgets must larger than 0");
+        }
+        this.loader = loader;
+        this.maxAhead = maxAhead;
+        this.maxInFlight = maxInFlight;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * 设置要预加载的图片列表，列表中的位置与RecyclerView中的位置相同
+     */
+    public synchronized void setImages(List<MyImage> images) {
+        this.images = images;
+    }
+
+    /**
+     * 设置格子的大小，应与屏幕上ImageView的大小相同，这样预加载的图片与显示时的{@link com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapKey}一致
+     *
+     * @param width 格子中ImageView的宽(以pixel为单位)
+     * @param height 格子中ImageView的高(以pixel为单位)
+     */
+    public synchronized void setCellSize(int width, int height) {
+        this.cellWidth = width;
+        this.cellHeight = height;
+    }
+
+    /**
+     * 每次滑动时调用，更新速度和方向并发起新的预加载
+     *
+     * @param firstVisible 屏幕上第一张图片的位置
+     * @param lastVisible 屏幕上最后一张图片的位置
+     * @param dy 本次滑动的距离，正数表示向下滑动（内容向上移动）
+     * @param uptimeMillis 当前时间(以毫秒为单位)，如{@link android.os.SystemClock#uptimeMillis()}
+     */
+    public void onScrolled(int firstVisible, int lastVisible, int dy, long uptimeMillis) {
+        if (firstVisible < 0 || lastVisible < firstVisible) {
+            return;
+        }
+        updateVelocity(firstVisible, uptimeMillis);
+        int newDirection = Integer.signum(dy);
+        if (newDirection != 0 && newDirection != direction) {
+            if (direction != 0) {
+                MyLog.d(TAG, "onScrolled: direction reversed, cancel " + inFlight + " prefetches");
+            }
+            cancelAll();//反向后原来方向上的图片近期不会显示
+            direction = newDirection;
+        }
+        if (direction == 0) {
+            return;
+        }
+        int ahead = Math.max(MIN_AHEAD, Math.min(maxAhead, (int) Math.ceil(velocity * LOOKAHEAD_MILLIS / 1000f)));
+        int from = direction > 0 ? lastVisible + 1 : firstVisible - ahead;
+        int to = direction > 0 ? lastVisible + ahead : firstVisible - 1;
+        synchronized (this) {
+            windowFrom = from;
+            windowTo = to;
+            dropOutside();
+            issue();
+        }
+    }
+
+    /**
+     * 取消所有进行中的预加载，如滑动方向反转或离开页面时
+     */
+    public synchronized void cancelAll() {
+        for (Prefetch prefetch : prefetches.values()) {
+            cancel(prefetch);
+        }
+        prefetches.clear();
+        committedBytes = 0;
+        windowTo = windowFrom - 1;//清空窗口，下次滑动时重新计算
+    }
+
+    /**
+     * @return 返回平滑后的滑动速度(以每秒滑过的图片数为单位)
+     */
+    public float getVelocity() {
+        return velocity;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * @return 返回预加载窗口内图片解码后的总大小(以字节B为单位)
+     */
+    public synchronized long getCommittedBytes() {
+        return committedBytes;
+    }
+
+    /**
+     * @return 返回预加载的统计，用于诊断
+     */
+    public synchronized String getStats() {
+        return "issued: " + issuedCount + ", cancelled: " + cancelledCount + ", in flight: " + inFlight
+                + ", window: " + prefetches.size() + ", committed: " + committedBytes / 1024 + "KB";
+    }
+
+    private void updateVelocity(int firstVisible, long uptimeMillis) {
+        if (lastFirst >= 0 && uptimeMillis > lastTime) {
+            float instant = Math.abs(firstVisible - lastFirst) * 1000f / (uptimeMillis - lastTime);
+            velocity = velocity * (1 - VELOCITY_SMOOTHING) + instant * VELOCITY_SMOOTHING;
+        }
+        lastFirst = firstVisible;
+        lastTime = uptimeMillis;
+    }
+
+    /**
+     * 移除窗口外的预加载：已滑入屏幕的交给显示它的加载，已滑过的取消；需在锁内调用
+     */
+    private void dropOutside() {
+        Iterator<Map.Entry<Integer, Prefetch>> iterator = prefetches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Prefetch> entry = iterator.next();
+            int position = entry.getKey();
+            if (position < windowFrom || position > windowTo) {
+                cancel(entry.getValue());//显示它的加载已加入同一次加载时，取消预加载的等待不会中止加载
+                committedBytes -= entry.getValue().bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 从离屏幕最近的位置开始，在预算内发起预加载；需在锁内调用
+     */
+    private void issue() {
+        List<MyImage> images = this.images;
+        if (images == null || cellWidth <= 0 || cellHeight <= 0) {
+            return;
+        }
+        for (int i = 0; i <= windowTo - windowFrom; i++) {
+            int position = direction > 0 ? windowFrom + i : windowTo - i;
+            if (position < 0 || position >= images.size() || prefetches.containsKey(position)) {
+                continue;
+            }
+            if (inFlight >= maxInFlight) {
+                return;//网络预算用完，等已发起的完成后下次滑动再继续
+            }
+            MyImage image = images.get(position);
+            long bytes = loader.estimateDecodedBytes(image, cellWidth, cellHeight);
+            if (committedBytes + bytes > memoryBudget) {
+                return;
+            }
+            Prefetch prefetch = new Prefetch(bytes);
+            prefetches.put(position, prefetch);
+            committedBytes += bytes;
+            inFlight++;
+            issuedCount++;
+            Cancellable handle = loader.prefetch(image, cellWidth, cellHeight, () -> onDone(prefetch));
+            if (handle == null) {
+                finish(prefetch);//已在内存缓存中
+            } else {
+                prefetch.handle = handle;
+            }
+        }
+    }
+
+    private synchronized void onDone(Prefetch prefetch) {
+        if (finish(prefetch)) {
+            issue();//腾出了网络预算，继续预加载窗口内剩下的图片
+        }
+    }
+
+    /**
+     * 需在锁内调用
+     *
+     * @return 若本次才结束则返回true，已结束或已取消时返回false
+     */
+    private boolean finish(Prefetch prefetch) {
+        if (prefetch.done) {
+            return false;
+        }
+        prefetch.done = true;
+        inFlight--;
+        return true;
+    }
+
+    /**
+     * 需在锁内调用
+     */
+    private void cancel(Prefetch prefetch) {
+        if (prefetch.done) {
+            return;
+        }
+        prefetch.done = true;
+        inFlight--;
+        cancelledCount++;
+        if (prefetch.handle != null) {
+            prefetch.handle.cancel();
+        }
+    }
+
+    /**
+     * 一次预加载
+     */
+    private static class Prefetch {
+        final long bytes;
+        Cancellable handle;
+
+        /**
+         * 已完成或已取消，不再占用网络预算
+         */
+        boolean done;
+
+        Prefetch(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
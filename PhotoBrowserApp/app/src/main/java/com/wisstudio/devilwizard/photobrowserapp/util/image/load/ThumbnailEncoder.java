@@ -0,0 +1,235 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 将缩略图压缩到不超过目标字节数的编码器，用于写入文件缓存
+ * 先用上一张图片最终采用的质量试编码一次（同一个网格中的缩略图大小和内容相近，通常一次就合适），
+ * 再在剩下的质量区间内二分查找，每张图片最多编码{@link #MAX_ATTEMPTS}次；输出缓冲区按线程复用，不会每次都重新分配
+ * API 30及以上使用{@link Bitmap.CompressFormat#WEBP_LOSSY}，同样质量下比JPEG小约三成，否则使用JPEG
+ *
+ * @author WizardK
+ * @date 2021-05-12
+ */
+public class ThumbnailEncoder {
+
+    private static final String TAG = "ThumbnailEncoder";
+
+    public static final String MIME_TYPE_JPEG = "image/jpeg";
+    public static final String MIME_TYPE_WEBP = "image/webp";
+
+    /**
+     * 每张图片最多的编码次数
+     */
+    public static final int MAX_ATTEMPTS = 4;
+
+    private static final int MIN_QUALITY = 20;
+    private static final int MAX_QUALITY = 90;
+    private static final int INITIAL_QUALITY = 70;
+
+    /**
+     * 二分查找时质量的精度，区间小于此值时不再继续
+     */
+    private static final int QUALITY_STEP = 5;
+
+    /**
+     * 每个加载线程复用两个缓冲区：当前尝试的结果和目前最好的结果
+     */
+    private final ThreadLocal<ByteArrayOutputStream[]> buffers = new ThreadLocal<ByteArrayOutputStream[]>() {
+        @Override
+        protected ByteArrayOutputStream[] initialValue() {
+            //reset()后继续使用原来的数组，只有超出时才会扩容
+            return new ByteArrayOutputStream[] {
+                    new ByteArrayOutputStream(targetBytes + targetBytes / 2),
+                    new ByteArrayOutputStream(targetBytes + targetBytes / 2)
+            };
+        }
+    };
+
+    private final int targetBytes;
+    private final Bitmap.CompressFormat format;
+    private final String mimeType;
+
+    /**
+     * 上一张图片最终采用的质量，作为下一张图片的第一次尝试
+     */
+    private final AtomicInteger predictedQuality = new AtomicInteger(INITIAL_QUALITY);
+
+    private final AtomicLong encodeCount = new AtomicLong();
+    private final AtomicLong attemptCount = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+
+    /**
+     * @param targetBytes 压缩后的目标字节数(以字节B为单位)
+     */
+    public ThumbnailEncoder(int targetBytes) {
+        if (targetBytes <= 0) {
+            throw new IllegalArgumentException("targetBytes must larger than 0");
+        }
+        this.targetBytes = targetBytes;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            format = Bitmap.CompressFormat.WEBP_LOSSY;//API 30才有，不能在低版本上引用
+            mimeType = MIME_TYPE_WEBP;
+        } else {
+            format = Bitmap.CompressFormat.JPEG;
+            mimeType = MIME_TYPE_JPEG;
+        }
+    }
+
+    /**
+     * 编码bitmap，得到不超过目标字节数的质量最高的结果；若最低质量仍然超出，则返回最低质量的结果
+     *
+     * @param bitmap 待编码的图片
+     *
+     * @return 返回编码结果，编码失败则返回null
+     */
+    public Result encode(Bitmap bitmap) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream[] pair = buffers.get();
+        ByteArrayOutputStream current = pair[0];
+        ByteArrayOutputStream best = pair[1];
+        int bestQuality = -1;//不超出目标的最高质量
+        int low = MIN_QUALITY;
+        int high = MAX_QUALITY;
+        int quality = Math.max(MIN_QUALITY, Math.min(MAX_QUALITY, predictedQuality.get()));
+        int attempts = 0;
+
+        while (true) {
+            current.reset();
+            if (!bitmap.compress(format, quality, current)) {
+                return null;
+            }
+            attempts++;
+            if (current.size() <= targetBytes) {
+                bestQuality = quality;
+                ByteArrayOutputStream swap = best;//保留这次的结果，下次写入另一个缓冲区
+                best = current;
+                current = swap;
+                low = quality + QUALITY_STEP;
+            } else {
+                high = quality - QUALITY_STEP;
+            }
+            if (attempts == MAX_ATTEMPTS || low > high) {
+                break;
+            }
+            if (bestQuality < 0 && attempts == MAX_ATTEMPTS - 1) {
+                quality = MIN_QUALITY;//最后一次直接用最低质量，保证结果尽量接近目标
+            } else {
+                quality = (low + high) / 2;
+            }
+        }
+        pair[0] = current;
+        pair[1] = best;
+
+        ByteArrayOutputStream result = bestQuality >= 0 ? best : current;
+        int resultQuality = bestQuality >= 0 ? bestQuality : quality;
+        predictedQuality.set(resultQuality);
+
+        byte[] data = result.toByteArray();
+        long nanos = System.nanoTime() - start;
+        long raw = (long) bitmap.getWidth() * bitmap.getHeight() * 4;//按ARGB_8888计算原始大小，不同储存格式之间可以比较
+        encodeCount.incrementAndGet();
+        attemptCount.addAndGet(attempts);
+        encodeNanos.addAndGet(nanos);
+        rawBytes.addAndGet(raw);
+        encodedBytes.addAndGet(data.length);
+        Result encoded = new Result(data, mimeType, resultQuality, attempts, nanos, (float) raw / data.length);
+        MyLog.d(TAG, "encode: " + encoded);
+        return encoded;
+    }
+
+    /**
+     * @return 返回编码输出的MIME类型
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return 返回目前为止平均每张图片的编码耗时(以毫秒为单位)
+     */
+    public float getAverageEncodeMillis() {
+        long count = encodeCount.get();
+        return count == 0 ? 0 : encodeNanos.get() / 1e6f / count;
+    }
+
+    /**
+     * @return 返回目前为止平均每张图片的编码次数
+     */
+    public float getAverageAttempts() {
+        long count = encodeCount.get();
+        return count == 0 ? 0 : (float) attemptCount.get() / count;
+    }
+
+    /**
+     * @return 返回目前为止总的压缩比（原始像素字节数 / 编码后字节数）
+     */
+    public float getCompressionRatio() {
+        long encoded = encodedBytes.get();
+        return encoded == 0 ? 0 : (float) rawBytes.get() / encoded;
+    }
+
+    /**
+     * 一次编码的结果
+     */
+    public static final class Result {
+
+        private final byte[] data;
+        private final String mimeType;
+        private final int quality;
+        private final int attempts;
+        private final long encodeNanos;
+        private final float compressionRatio;
+
+        Result(byte[] data, String mimeType, int quality, int attempts, long encodeNanos, float compressionRatio) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.quality = quality;
+            this.attempts = attempts;
+            this.encodeNanos = encodeNanos;
+            this.compressionRatio = compressionRatio;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public int getQuality() {
+            return quality;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getEncodeNanos() {
+            return encodeNanos;
+        }
+
+        /**
+         * @return 返回原始像素字节数与编码后字节数之比
+         */
+        public float getCompressionRatio() {
+            return compressionRatio;
+        }
+
+        @Override
+        public String toString() {
+            return data.length / 1024 + "KB " + mimeType + " q" + quality + ", " + attempts + " attempts, "
+                    + encodeNanos / 1000000 + "ms, ratio " + compressionRatio;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.network;
+
+/**
+ * 可以取消的请求，如{@link SingleFlight.Subscription}
+ *
+ * @author WizardK
+ * @date 2021-05-15
+ */
+public interface Cancellable {
+
+    /**
+     * 取消请求，之后不会再收到回调；可以重复调用
+     */
+    void cancel();
+
+    boolean isCancelled();
+}
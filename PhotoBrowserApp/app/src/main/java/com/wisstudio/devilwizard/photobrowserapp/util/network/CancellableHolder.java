@@ -0,0 +1,55 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.network;
+
+/**
+ * 请求的占位：先把本对象登记到{@link com.wisstudio.devilwizard.photobrowserapp.util.LifecycleDispatcher}，
+ * 再发起请求并通过{@link #set(Cancellable)}设置；请求的回调在发起时就可能执行（如命中正在进行的请求或立即失败），
+ * 此时回调中仍能通过本对象移除登记，不会在分发器中留下已结束的请求
+ * 设置之前已被取消时，设置的请求会立即被取消
+ *
+ * @author WizardK
+ * @date 2021-05-19
+ */
+public class CancellableHolder implements Cancellable {
+
+    private Cancellable request;
+    private boolean cancelled;
+
+    /**
+     * 设置实际发起的请求
+     *
+     * @param request 发起的请求，为null时忽略
+     */
+    public void set(Cancellable request) {
+        if (request == null) {
+            return;
+        }
+        boolean cancelNow;
+        synchronized (this) {
+            this.request = request;
+            cancelNow = cancelled;
+        }
+        if (cancelNow) {
+            request.cancel();//页面在发起请求前已销毁
+        }
+    }
+
+    @Override
+    public void cancel() {
+        Cancellable current;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            current = request;
+        }
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,81 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.network;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * 每次读取前检查请求是否已被取消的输入流，取消后抛出{@link InterruptedIOException}，
+ * 使正在进行的下载和解码在读完下一块数据前结束，而不是读完整张图片
+ *
+ * @author WizardK
+ * @date 2021-05-15
+ */
+public class CancellableInputStream extends FilterInputStream {
+
+    private final SingleFlight<?, ?>.Call call;
+    private long bytesRead;
+    private volatile boolean aborted;
+
+    /**
+     * @param in 被包装的输入流，如网络连接的输入流
+     * @param call 读取所属的请求，所有调用者都取消后停止读取
+     */
+    public CancellableInputStream(InputStream in, SingleFlight<?, ?>.Call call) {
+        super(in);
+        this.call = call;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCancelled();
+        int b = super.read();
+        if (b != -1) {
+            bytesRead++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkCancelled();
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            bytesRead += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkCancelled();
+        long skipped = super.skip(n);
+        bytesRead += skipped;
+        return skipped;
+    }
+
+    /**
+     * BitmapFactory在native层读取时会吞掉读取抛出的异常，并可能返回只解码了一部分的图片，
+     * 因此解码结束后必须检查此方法，被取消过的结果不能使用
+     *
+     * @return 若读取因请求被取消而中止过则返回true
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * @return 返回已经读取的字节数
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (call.isCancelled()) {
+            aborted = true;
+            throw new InterruptedIOException("cancelled: " + call.getKey() + " after " + bytesRead + " bytes");
+        }
+    }
+}
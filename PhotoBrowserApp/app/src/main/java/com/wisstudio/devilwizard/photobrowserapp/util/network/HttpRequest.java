@@ -2,30 +2,26 @@ package com.wisstudio.devilwizard.photobrowserapp.util.network;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.widget.ImageView;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
-import com.wisstudio.devilwizard.photobrowserapp.db.PhotoDataBaseManager;
-import com.wisstudio.devilwizard.photobrowserapp.ui.MainActivity;
+import com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapKey;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.MyImage;
+import com.wisstudio.devilwizard.photobrowserapp.util.image.load.DecodeConfigPolicy;
 import com.wisstudio.devilwizard.photobrowserapp.util.image.load.ImageLoader;
+import com.wisstudio.devilwizard.photobrowserapp.util.image.load.PhotoLoadThreadPoolExecutor;
 import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -39,7 +35,32 @@ public class HttpRequest {
 
     private static final String TAG = "HttpRequest";
 
-    private static final PhotoDataBaseManager photoDataBaseManager = MainActivity.photoDBManager;
+    /**
+     * 原图的请求，查看大图和保存到相册同时请求同一张图片时只下载一次
+     */
+    private static final SingleFlight<String, Bitmap> originalFlights = new SingleFlight<>();
+
+    /**
+     * 因请求被取消而中止的下载数
+     */
+    private static final AtomicLong abortedDownloads = new AtomicLong();
+
+    /**
+     * 中止的下载中没有读取的字节数，即取消节省的流量；不知道Content-Length时不计入
+     */
+    private static final AtomicLong bytesNotDownloaded = new AtomicLong();
+
+    /**
+     * 下载完成的服务端缩放版本的张数和字节数，见{@link ImageUrlResolver}
+     */
+    private static final AtomicLong resizedDownloads = new AtomicLong();
+    private static final AtomicLong resizedBytes = new AtomicLong();
+
+    /**
+     * 下载完成的原图的张数和字节数，包括查看大图、保存到相册和无法缩放的缩略图
+     */
+    private static final AtomicLong originalDownloads = new AtomicLong();
+    private static final AtomicLong originalBytes = new AtomicLong();
 
     /**
      * 开启子线程来获取包含若干个图片信息的json文件
@@ -97,35 +118,41 @@ public class HttpRequest {
     }
 
     /**
-     * 加载图片的原始bitmap，即加载原图
+     * 开启子线程加载图片的原始bitmap，即加载原图；同一张图片正在加载时不再重复下载，加载完成后一起回调
      *
      * @param url 要保存的图片的下载地址
      *
-     * @param listener 回调监听器
+     * @param listener 回调监听器，返回图片的原始bitmap(不经过压缩，相当于是原图)，多个调用者共享同一个bitmap，不能修改或回收
      *
-     * @return 返回图片的原始bitmap(不经过压缩，相当于是原图)
+     * @return 返回本次请求的订阅，不再需要结果时（如关闭了大图）可调用{@link SingleFlight.Subscription#cancel()}
      *
      * @exception
      */
-    public static void loadBitmapFromWeb(String url, HttpCallBackListener<Bitmap> listener) {
-        new Thread(() -> {
+    public static SingleFlight<String, Bitmap>.Subscription loadBitmapFromWeb(String url, HttpCallBackListener<Bitmap> listener) {
+        //在图片加载线程池中以最高优先级执行，排在所有缩略图之前
+        return originalFlights.join(url, listener,
+                command -> ImageLoader.getInstance().execute(command, PhotoLoadThreadPoolExecutor.PRIORITY_VIEWER), call -> {
             HttpURLConnection conn = null;
             InputStream is = null;
             try {
-                Bitmap bitmap = null;
                 URL imageUrl = new URL(url);
                 conn = (HttpURLConnection) imageUrl.openConnection();
                 conn.setConnectTimeout(4000);
                 conn.setReadTimeout(4000);
-                is = conn.getInputStream();
-                bitmap = BitmapFactory.decodeStream(is);
-                listener.onFinish(bitmap);
-            } catch (MalformedURLException e) {
-                e.printStackTrace();
-                listener.onError(e);
+                CancellableInputStream cis = new CancellableInputStream(conn.getInputStream(), call);
+                is = cis;
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = DecodeConfigPolicy.forViewer();//原图需要完整的画质
+                Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
+                if (cis.isAborted()) {
+                    recordAbort(conn, cis);
+                    throw new InterruptedIOException("cancelled: " + url);//此时已没有调用者在等待
+                }
+                recordTransfer(conn, cis, false);
+                return bitmap;
             } catch (IOException e) {
                 e.printStackTrace();
-                listener.onError(e);
+                throw e;
             } finally {
                 if (is != null) {
                     try {
@@ -138,31 +165,42 @@ public class HttpRequest {
                     conn.disconnect();
                 }
             }
-        }).start();
+        });
     }
 
     /**
-     * 从网络获取图片，将其压缩并缓存在指定的文件中
+     * 从网络获取图片并按目标版本的大小解码，不写入文件缓存；picsum的图片直接请求服务端缩放到格子大小的版本，见{@link ImageUrlResolver}
      *
-     * @param imageView 要加载图片的ImageView对象
+     * @param key 目标版本在内存缓存中的键，其宽高和储存格式决定了解码的采样率和格式
      *
      * @param image 描述图片信息的MyImage对象
      *
-     * @param file 缓存文件
+     * @param call 本次加载的请求，所有调用者都取消后在读取下一块数据前中止下载
      *
-     * @return 返回缓存后的Bitmap对象
+     * @return 返回解码后的Bitmap对象，失败或被取消则返回null
      */
-    public static Bitmap loadBitmapFromWeb(ImageView imageView, MyImage image, File file) {
+    public static Bitmap loadBitmapFromWeb(BitmapKey key, MyImage image, SingleFlight<?, ?>.Call call) {
         HttpURLConnection conn = null;
         InputStream is = null;
         try {
             Bitmap bitmap = null;
-            URL imageUrl = new URL(image.getUrl());
+            ImageUrlResolver.Variant variant = ImageUrlResolver.resolve(image, key.getWidth(), key.getHeight());
+            URL imageUrl = new URL(variant.getUrl());
             conn = (HttpURLConnection) imageUrl.openConnection();
             conn.setConnectTimeout(4000);
             conn.setReadTimeout(4000);
-            is = conn.getInputStream();
-            bitmap = cacheToLocal(is, file, imageView, image);//将图片缓存至本地
+            CancellableInputStream cis = new CancellableInputStream(conn.getInputStream(), call);
+            is = cis;
+            bitmap = decodeSampled(is, conn.getContentType(), key, variant);
+            if (cis.isAborted()) {
+                recordAbort(conn, cis);
+                if (bitmap != null) {
+                    //可能只解码了一部分，不能显示和缓存，直接放回复用池
+                    ImageLoader.getInstance().getMemoryCache().getBitmapPool().put(bitmap);
+                }
+                return null;
+            }
+            recordTransfer(conn, cis, variant.isResized());
             MyLog.d(TAG, "loadBitmapFromWeb: url: " + imageUrl);
             return bitmap;
         } catch (Exception e) {
@@ -183,110 +221,137 @@ public class HttpRequest {
     }
 
     /**
-     * 将图片压缩并以二进制形式缓存在本地，同时返回采样后的Bitmap，以及将图片信息插入数据库
+     * 按目标版本的大小采样解码图片，编码和写入文件缓存由{@link com.wisstudio.devilwizard.photobrowserapp.util.image.load.DiskWriteBehindQueue}在后台完成
      *
      * @param is 读取图片的输入流
      *
-     * @param file 缓存目的路径的File对象
+     * @param contentType http响应的Content-Type，用于判断图片是否不透明
      *
-     * @param imageView 要加载图片的ImageView对象
-     *
-     * @param image 描述图片信息的MyImage对象
+     * @param key 目标版本在内存缓存中的键
      *
-     * @return 返回采样后的Bitmap
+     * @param variant 实际下载的版本，采样率按它的宽高计算
      *
-     * @exception  FileNotFoundException
+     * @return 返回采样后的Bitmap，解码失败则返回null
      */
-    private static Bitmap cacheToLocal(InputStream is, File file, ImageView imageView, MyImage image) {
+    private static Bitmap decodeSampled(InputStream is, String contentType, BitmapKey key, ImageUrlResolver.Variant variant) {
 
         BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = calcuSampleSize(image, imageView.getWidth(), imageView.getHeight());
-        Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);//减少采样率，相当于是内存占用压缩
-        byte[] bitmapBytes = qualityCompress(bitmap);//质量压缩后缓存在本地
-        FileOutputStream os = null;
-        try {
-            os = new FileOutputStream(file);
-            byteToFile(bitmapBytes, os);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (os !=null) {
-                    os.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        options.inSampleSize = calcuSampleSize(variant.getWidth(), variant.getHeight(), key.getWidth(), key.getHeight());
+        options.inPreferredConfig = DecodeConfigPolicy.resolve(key.getConfig(), contentType);
+        addInBitmapOptions(options, variant.getWidth(), variant.getHeight());
+        return BitmapFactory.decodeStream(is, null, options);//减少采样率，相当于是内存占用压缩
+    }
 
-        photoDataBaseManager.addOnePhoto(image.getAuthor(), image.getUrl(), image.getWidth(), image.getHeight(),
-                ImageLoader.getInstance().getFileCache().getFullCachePath(image.getUrl()));//将图片信息插入数据库
+    /**
+     * @return 返回因请求被取消而中止的下载数
+     */
+    public static long getAbortedDownloads() {
+        return abortedDownloads.get();
+    }
 
-        return bitmap;
+    /**
+     * @return 返回取消下载节省的字节数(以字节B为单位)
+     */
+    public static long getBytesNotDownloaded() {
+        return bytesNotDownloaded.get();
     }
 
     /**
-     * 将byte流储存在输出流中
-     *
-     * @param bytes 待储存的byte数组
-     *
-     * @param os 储存的输出流
-     *
-     * @exception
+     * @return 返回每张图片平均下载的字节数，分别统计服务端缩放的版本（改写后）和原图（改写前），用于诊断
      */
-    private static void byteToFile(byte[] bytes, OutputStream os){
-        try {
-            os.write(bytes);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public static String getTransferStats() {
+        return "resized: " + resizedDownloads.get() + " images, " + average(resizedBytes, resizedDownloads) / 1024
+                + "KB per image; original: " + originalDownloads.get() + " images, "
+                + average(originalBytes, originalDownloads) / 1024 + "KB per image";
+    }
+
+    private static long average(AtomicLong bytes, AtomicLong count) {
+        long n = count.get();
+        return n == 0 ? 0 : bytes.get() / n;
+    }
+
+    /**
+     * 记录一次完成的下载，解码器不一定读到流的末尾，知道Content-Length时以它为准
+     */
+    private static void recordTransfer(HttpURLConnection conn, CancellableInputStream cis, boolean resized) {
+        long bytes = Math.max(conn.getContentLength(), cis.getBytesRead());
+        if (resized) {
+            resizedDownloads.incrementAndGet();
+            resizedBytes.addAndGet(bytes);
+        } else {
+            originalDownloads.incrementAndGet();
+            originalBytes.addAndGet(bytes);
+        }
+    }
+
+    private static void recordAbort(HttpURLConnection conn, CancellableInputStream cis) {
+        abortedDownloads.incrementAndGet();
+        int contentLength = conn.getContentLength();
+        if (contentLength > 0) {
+            bytesNotDownloaded.addAndGet(Math.max(0, contentLength - cis.getBytesRead()));
         }
+        MyLog.d(TAG, "loadBitmapFromWeb: cancelled after " + cis.getBytesRead() + " of " + contentLength + " bytes");
     }
 
     /**
-     * 压缩图片质量，减少空间占用
+     * 网络流只能读取一次，无法像{@link com.wisstudio.devilwizard.photobrowserapp.cache.disk.FileCache}那样先解析一遍边界，
+     * 因此直接用下载版本已知的宽高来估算解码后的大小，并从复用池中寻找合适的{@link BitmapFactory.Options#inBitmap}
      *
-     * @param bitmap 待压缩的图片的Bitmap对象
+     * @param options 已设置好inSampleSize的解码参数
      *
-     * @return byte[]
+     * @param width 下载的图片的宽(以pixel为单位)，未知时小于等于0
      *
-     * @exception
+     * @param height 下载的图片的高(以pixel为单位)，未知时小于等于0
      */
-    private static byte[] qualityCompress(Bitmap bitmap){
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        //质量压缩方法，这里100表示不压缩，把压缩后的数据存放到baos中
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 50, baos);
-        int options = 100;
-        //循环判断如果压缩后图片是否大于50kb,大于继续压缩
-        while ( baos.toByteArray().length / 1024 > 50 && options > 0) {
-            //清空baos
-            baos.reset();
-            bitmap.compress(Bitmap.CompressFormat.JPEG, options, baos);
-            options -= 10;//每次都减少10
+    private static void addInBitmapOptions(BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        options.outWidth = width;
+        options.outHeight = height;
+        Bitmap inBitmap = ImageLoader.getInstance().getMemoryCache().getBitmapPool().get(options);
+        if (inBitmap != null) {
+            options.inBitmap = inBitmap;
         }
-        return baos.toByteArray();
     }
 
     /**
      * 计算合适的采样比例
      *
      * @param image 待采样图片的MyImage对象
-     * @param reqWidth 压缩后的宽度(以pixel为单位)
-     * @param reqHeight 压缩后的高度(以pixel为单位)
+     * @param reqWidth 压缩后的宽度(以pixel为单位)，小于等于0表示不限制宽度
+     * @param reqHeight 压缩后的高度(以pixel为单位)，小于等于0表示不限制高度
      *
      * @return 返回合适大小的inSampleSize
      *
      */
-    private static int calcuSampleSize(MyImage image, int reqWidth, int reqHeight) {
-        //图片的原始宽高
-        final int originalWidth = image.getWidth();
-        final int originalHeight = image.getHeight();
+    public static int calcuSampleSize(MyImage image, int reqWidth, int reqHeight) {
+        return calcuSampleSize(image.getWidth(), image.getHeight(), reqWidth, reqHeight);
+    }
+
+    /**
+     * 计算合适的采样比例，如按服务端缩放后的大小{@link ImageUrlResolver.Variant}计算
+     *
+     * @param originalWidth 待采样图片的宽(以pixel为单位)
+     * @param originalHeight 待采样图片的高(以pixel为单位)
+     * @param reqWidth 压缩后的宽度(以pixel为单位)，小于等于0表示不限制宽度
+     * @param reqHeight 压缩后的高度(以pixel为单位)，小于等于0表示不限制高度
+     *
+     * @return 返回合适大小的inSampleSize
+     */
+    public static int calcuSampleSize(int originalWidth, int originalHeight, int reqWidth, int reqHeight) {
         int sampleSize = 1;
-        if (originalWidth > reqWidth || originalHeight > reqHeight) {
-            int heightRatio = Math.round((float) originalHeight / (float) reqHeight);
-            int widthRatio = Math.round((float) originalWidth / (float) reqWidth);
+        if (reqWidth <= 0 && reqHeight <= 0) {
+            return sampleSize;
+        }
+        if ((reqWidth > 0 && originalWidth > reqWidth) || (reqHeight > 0 && originalHeight > reqHeight)) {
+            //不限制的那一边不参与比较
+            int heightRatio = reqHeight > 0 ? Math.round((float) originalHeight / (float) reqHeight) : Integer.MAX_VALUE;
+            int widthRatio = reqWidth > 0 ? Math.round((float) originalWidth / (float) reqWidth) : Integer.MAX_VALUE;
             // 选择宽和高中最小的比率作为sampleSize的值，这样可以保证最终图片的宽和高
             // 一定都会大于等于目标的宽和高。
-            sampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
+            sampleSize = Math.max(1, heightRatio < widthRatio ? heightRatio : widthRatio);
         }
         MyLog.d(TAG, "reqWidth: " + reqWidth + "reqHeight: " + reqHeight);
         MyLog.d(TAG, "calcuSampleSize: sampleSize" + sampleSize);
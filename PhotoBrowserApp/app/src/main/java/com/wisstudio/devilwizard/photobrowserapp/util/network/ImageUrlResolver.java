@@ -0,0 +1,115 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.network;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.image.MyImage;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 把缩略图的请求改写为服务端缩放后的版本：picsum支持/id/{id}/{w}/{h}，按格子的大小请求，
+ * 不必下载动辄5000×3000的原图再在本地采样，节省流量、下载时间和解码的CPU
+ * 请求的宽度向上取到{@link #WIDTH_BUCKETS}中的一档，格子大小略有变化（如旋转屏幕后）时仍请求同一个地址，
+ * 服务端和本地的缓存依然有效；高度按原图的宽高比算出，服务端不会裁剪，缩放后的图片在两个方向上都能铺满格子（centerCrop）
+ * 原图只在查看大图和保存到相册时下载，见{@link HttpRequest#loadBitmapFromWeb(String, HttpCallBackListener)}
+ *
+ * @author WizardK
+ * @date 2021-05-19
+ */
+public class ImageUrlResolver {
+
+    /**
+     * 请求的宽度档位(以pixel为单位)，从小到大
+     */
+    static final int[] WIDTH_BUCKETS = {240, 320, 480, 640, 960, 1280, 1920};
+
+    /**
+     * picsum原图的地址，如https://picsum.photos/id/0/5616/3744，第一组为去掉宽高后的部分
+     */
+    private static final Pattern PICSUM_URL = Pattern.compile("^(https?://[^/]*picsum\\.photos/id/[^/]+)/\\d+/\\d+/?$");
+
+    /**
+     * 实际请求的图片版本
+     */
+    public static class Variant {
+        private final String url;
+        private final int width;
+        private final int height;
+        private final boolean resized;
+
+        Variant(String url, int width, int height, boolean resized) {
+            this.url = url;
+            this.width = width;
+            this.height = height;
+            this.resized = resized;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return 返回服务端返回的图片的宽(以pixel为单位)
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return 返回服务端返回的图片的高(以pixel为单位)
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return 若请求的是服务端缩放后的版本则返回true，请求原图时返回false
+         */
+        public boolean isResized() {
+            return resized;
+        }
+    }
+
+    private ImageUrlResolver() {
+    }
+
+    /**
+     * 根据显示的大小选择要请求的版本
+     *
+     * @param image 描述图片信息的MyImage对象
+     * @param reqWidth 显示的宽(以pixel为单位)，小于等于0表示不限制宽度
+     * @param reqHeight 显示的高(以pixel为单位)，小于等于0表示不限制高度
+     *
+     * @return 返回要请求的版本；不是picsum的地址、不知道原图大小、不限制大小或需要的宽度超过最大一档时返回原图
+     */
+    public static Variant resolve(MyImage image, int reqWidth, int reqHeight) {
+        Variant original = new Variant(image.getUrl(), image.getWidth(), image.getHeight(), false);
+        if (image.getUrl() == null || image.getWidth() <= 0 || image.getHeight() <= 0 || (reqWidth <= 0 && reqHeight <= 0)) {
+            return original;
+        }
+        Matcher matcher = PICSUM_URL.matcher(image.getUrl());
+        if (!matcher.matches()) {
+            return original;
+        }
+        //缩放后两个方向都不小于格子，不限制的那一边不参与比较
+        double scale = Math.max(reqWidth > 0 ? (double) reqWidth / image.getWidth() : 0,
+                reqHeight > 0 ? (double) reqHeight / image.getHeight() : 0);
+        int width = bucket((int) Math.ceil(image.getWidth() * scale));
+        if (width <= 0 || width >= image.getWidth()) {
+            return original;//缩放不会更小
+        }
+        int height = (int) Math.ceil((double) width * image.getHeight() / image.getWidth());
+        return new Variant(matcher.group(1) + "/" + width + "/" + height, width, height, true);
+    }
+
+    /**
+     * @return 返回不小于width的最小一档，超过最大一档时返回-1
+     */
+    private static int bucket(int width) {
+        for (int bucket : WIDTH_BUCKETS) {
+            if (bucket >= width) {
+                return bucket;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,382 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.network;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.logutil.MyLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 合并对同一资源的并发请求：同一个key正在请求时，后来的调用者不再发起新的请求，而是加入正在进行的那一次，
+ * 请求结束后把同一个结果分发给所有仍在等待的调用者
+ * 每个调用者可以通过{@link Subscription#cancel()}单独取消，不影响其他调用者；所有调用者都取消后，
+ * 请求可通过{@link Call#isCancelled()}得知并提前结束
+ * 请求执行时可以通过{@link Call#defer(Executor)}暂不结束，稍后重新执行，如滑动时推迟下载
+ * 请求因所有调用者都已取消而提前结束时，若结束前又有新的调用者加入，请求会重新执行，而不是把null分发给新的调用者
+ * 加入、查找和移除请求都是常数时间，且只锁住同一个key的请求，不同图片的请求之间不会互相等待
+ *
+ * @param <K> 请求的key，如图片的url或{@link com.wisstudio.devilwizard.photobrowserapp.cache.memory.BitmapKey}
+ * @param <V> 请求的结果
+ *
+ * @author WizardK
+ * @date 2021-05-14
+ */
+public class SingleFlight<K, V> {
+
+    private static final String TAG = "SingleFlight";
+
+    /**
+     * 正在进行的请求，请求结束、开始分发结果前移除
+     */
+    private final ConcurrentHashMap<K, Call> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 已提交但还未开始执行的请求数
+     */
+    private final AtomicInteger queuedCount = new AtomicInteger();
+
+    /**
+     * 执行一次请求
+     */
+    public interface Fetcher<V> {
+        /**
+         * @param call 本次请求，可用{@link Call#isCancelled()}判断是否还有调用者在等待
+         *
+         * @return 返回请求的结果
+         */
+        V fetch(SingleFlight<?, V>.Call call) throws Exception;
+    }
+
+    /**
+     * 请求key对应的资源；若该key已在请求中则加入该请求，否则在executor中执行fetcher发起新的请求
+     *
+     * @param key 请求的key
+     * @param consumer 请求结束后被回调的监听器，在执行请求的线程中回调
+     * @param executor 执行新请求的线程池
+     * @param fetcher 执行请求的方法，加入已有的请求时不会被调用
+     *
+     * @return 返回本调用者的订阅，可用于单独取消
+     */
+    public Subscription join(K key, HttpCallBackListener<V> consumer, Executor executor, Fetcher<V> fetcher) {
+        Subscription subscription = new Subscription(key, consumer);
+        while (true) {
+            Call call = calls.get(key);
+            if (call == null) {
+                Call created = new Call(key, fetcher, executor);
+                created.add(subscription);
+                call = calls.putIfAbsent(key, created);
+                if (call == null) {
+                    queuedCount.incrementAndGet();
+                    try {
+                        executor.execute(created);
+                    } catch (RejectedExecutionException e) {
+                        calls.remove(key, created);
+                        queuedCount.decrementAndGet();
+                        throw e;
+                    }
+                    return subscription;
+                }
+            }
+            int consumers = call.add(subscription);
+            if (consumers > 0) {
+                MyLog.d(TAG, "join: " + key + " is already in flight, " + consumers + " consumers");
+                return subscription;
+            }
+            calls.remove(key, call);//请求刚好结束，不再接受新的调用者，重新发起
+        }
+    }
+
+    /**
+     * @return 返回key是否正在请求中
+     */
+    public boolean isInFlight(K key) {
+        return calls.containsKey(key);
+    }
+
+    /**
+     * @return 返回正在进行的请求数，包括还在排队的
+     */
+    public int getInFlightCount() {
+        return calls.size();
+    }
+
+    /**
+     * @return 返回已提交但还未开始执行的请求数，即排队的深度
+     */
+    public int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /**
+     * 遍历所有请求，只用于诊断，不应在每次请求时调用
+     *
+     * @return 返回还在排队的请求中等待最久的时间(以毫秒为单位)，没有排队的请求时返回0
+     */
+    public long getOldestQueuedMillis() {
+        long now = System.nanoTime();
+        long oldest = 0;
+        for (Call call : calls.values()) {
+            if (call.startedAt == 0) {
+                oldest = Math.max(oldest, now - call.queuedAt);
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(oldest);
+    }
+
+    /**
+     * 结果分发给所有调用者之后被调用，如释放请求本身持有的引用
+     *
+     * @param result 请求的结果，请求失败时为null
+     */
+    protected void onDelivered(V result) {
+    }
+
+    /**
+     * 一个调用者对请求的订阅
+     */
+    public class Subscription implements Cancellable {
+
+        private final K key;
+        private final HttpCallBackListener<V> consumer;
+        private volatile boolean cancelled;
+
+        /**
+         * 所加入的请求，加入时设置
+         */
+        private Call call;
+
+        Subscription(K key, HttpCallBackListener<V> consumer) {
+            this.key = key;
+            this.consumer = consumer;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * 取消本调用者的等待，之后不会再收到回调；其他调用者不受影响，所有调用者都取消后请求会被标记为已取消
+         */
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            Call joined;
+            synchronized (this) {
+                joined = call;
+            }
+            if (joined != null) {
+                joined.updateCancelled();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * 对同一个key的一次请求
+     */
+    public class Call implements Runnable {
+
+        private final K key;
+        private final Fetcher<V> fetcher;
+
+        /**
+         * 发起请求的线程池，请求因取消提前结束后又有调用者加入时重新提交到这里
+         */
+        private final Executor executor;
+
+        /**
+         * 本次执行期间所有调用者是否曾都取消过，在本对象的锁内读写；为true时fetch可能已提前结束并返回null
+         */
+        private boolean abandoned;
+
+        /**
+         * 在本对象的锁内添加，{@link #closed}之后不会再改变
+         */
+        private final List<Subscription> subscriptions = new ArrayList<>();
+
+        /**
+         * 请求已结束，开始分发结果，不再接受新的调用者
+         */
+        private boolean closed;
+
+        /**
+         * 提交的时间，{@link System#nanoTime()}
+         */
+        private final long queuedAt = System.nanoTime();
+
+        /**
+         * 开始执行的时间，还未开始时为0
+         */
+        private volatile long startedAt;
+
+        /**
+         * 本次执行结束后重新提交到的线程池，为null时正常结束并分发结果
+         */
+        private volatile Executor deferredTo;
+
+        /**
+         * 所有调用者是否都已取消，调用者加入或取消时更新，读取时不加锁，可在每次读取网络数据前检查
+         */
+        private volatile boolean cancelled;
+
+        Call(K key, Fetcher<V> fetcher, Executor executor) {
+            this.key = key;
+            this.fetcher = fetcher;
+            this.executor = executor;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * @return 返回开始执行前排队等待的时间(以毫秒为单位)，还未开始时返回至今的等待时间
+         */
+        public long getQueuedMillis() {
+            long end = startedAt != 0 ? startedAt : System.nanoTime();
+            return TimeUnit.NANOSECONDS.toMillis(end - queuedAt);
+        }
+
+        /**
+         * @return 若所有调用者都已取消则返回true，此时请求可以提前结束
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void updateCancelled() {
+            for (Subscription subscription : subscriptions) {
+                if (!subscription.cancelled) {
+                    cancelled = false;
+                    return;
+                }
+            }
+            cancelled = true;
+            abandoned = true;
+        }
+
+        /**
+         * 在{@link Fetcher#fetch(Call)}中调用：本次执行返回后不结束请求也不分发结果，而是把请求重新提交到executor，
+         * 之后再次执行fetch；期间加入的调用者仍会合并到本次请求。调用后fetch应返回null，返回值会被忽略
+         *
+         * @param executor 重新提交请求的线程池，可以先暂存，稍后再真正执行
+         */
+        public void defer(Executor executor) {
+            deferredTo = executor;
+        }
+
+        /**
+         * @return 返回加入后的调用者数，请求已结束时返回0
+         */
+        private synchronized int add(Subscription subscription) {
+            if (closed) {
+                return 0;
+            }
+            subscriptions.add(subscription);
+            synchronized (subscription) {
+                subscription.call = this;
+            }
+            updateCancelled();//已加入的调用者都取消后又有新的调用者加入，请求继续
+            return subscriptions.size();
+        }
+
+        private synchronized void close() {
+            closed = true;
+        }
+
+        /**
+         * 结束请求，不再接受新的调用者；但若本次执行期间所有调用者都取消过、fetch没有结果，且之后又有调用者加入，
+         * 则不结束，以便重新执行
+         *
+         * @return 已结束则返回true，需要重新执行则返回false
+         */
+        private synchronized boolean closeUnlessRevived(V result) {
+            if (result == null && abandoned && !cancelled) {
+                abandoned = false;
+                return false;
+            }
+            closed = true;
+            return true;
+        }
+
+        private synchronized void beginRun() {
+            abandoned = cancelled;
+        }
+
+        /**
+         * @return 重新提交成功则返回true
+         */
+        private boolean resubmit(Executor executor) {
+            startedAt = 0;
+            queuedCount.incrementAndGet();
+            try {
+                executor.execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                queuedCount.decrementAndGet();
+                return false;
+            }
+        }
+
+        @Override
+        public void run() {
+            startedAt = System.nanoTime();
+            queuedCount.decrementAndGet();
+            beginRun();
+            V result = null;
+            Exception error = null;
+            try {
+                result = fetcher.fetch(this);
+            } catch (Exception e) {
+                error = e;
+            }
+            Executor retry = deferredTo;
+            if (retry != null) {
+                deferredTo = null;
+                if (error == null && resubmit(retry)) {
+                    return;
+                }
+                error = error != null ? error : new RejectedExecutionException("cannot resubmit " + key);
+                result = null;
+                close();
+            } else if (!closeUnlessRevived(result)) {
+                MyLog.d(TAG, "run: " + key + " was cancelled and joined again, resubmit");
+                if (resubmit(executor)) {
+                    return;
+                }
+                close();
+                error = error != null ? error : new RejectedExecutionException("cannot resubmit " + key);
+            }
+            calls.remove(key, this);//移除后新的调用者会发起新的请求
+            try {
+                for (Subscription subscription : subscriptions) {
+                    if (subscription.cancelled) {
+                        continue;
+                    }
+                    try {
+                        if (error != null) {
+                            subscription.consumer.onError(error);
+                        } else {
+                            subscription.consumer.onFinish(result);
+                        }
+                    } catch (RuntimeException e) {
+                        MyLog.w(TAG, "run: consumer of " + key + " failed, " + e);//不影响其他调用者
+                    }
+                }
+            } finally {
+                onDelivered(result);
+            }
+        }
+    }
+}
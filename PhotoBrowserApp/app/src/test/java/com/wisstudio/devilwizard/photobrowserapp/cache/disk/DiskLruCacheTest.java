@@ -0,0 +1,297 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link DiskLruCache}的日志回放、崩溃恢复和淘汰测试
+ *
+ * @author WizardK
+ * @date 2021-05-09
+ */
+public class DiskLruCacheTest {
+
+    private static final int APP_VERSION = 1;
+
+    private File directory;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("DiskLruCacheTest").toFile();
+        cache = DiskLruCache.open(directory, APP_VERSION, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void committedEntriesSurviveReopen() throws IOException {
+        write("a", 10);
+        write("b", 20);
+        cache.close();
+
+        cache = DiskLruCache.open(directory, APP_VERSION, Long.MAX_VALUE);
+        assertEquals(30, cache.size());
+        assertEquals(10, cache.get("a").length());
+        assertEquals(2, cache.entryCount());
+    }
+
+    @Test
+    public void uncommittedEditIsInvisibleAndDiscardedOnReopen() throws IOException {
+        DiskLruCache.Editor editor = cache.edit("a");
+        OutputStream os = editor.newOutputStream();
+        os.write(new byte[10]);
+        os.close();
+        assertNull(cache.get("a"));
+        assertNull(cache.edit("a"));//同一个key正在写入时不能再次编辑
+
+        //模拟写入过程中进程被杀：不提交直接重新打开
+        cache = DiskLruCache.open(directory, APP_VERSION, Long.MAX_VALUE);
+        assertNull(cache.get("a"));
+        assertFalse(new File(directory, "a" + DiskLruCache.TEMP_SUFFIX).exists());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void abortKeepsPreviousValue() throws IOException {
+        write("a", 10);
+        DiskLruCache.Editor editor = cache.edit("a");
+        OutputStream os = editor.newOutputStream();
+        os.write(new byte[99]);
+        os.close();
+        editor.abort();
+        assertEquals(10, cache.get("a").length());
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void corruptJournalIsRebuiltFromDirectory() throws IOException {
+        write("a", 10);
+        write("b", 20);
+        cache.close();
+        new File(directory, "c" + DiskLruCache.TEMP_SUFFIX).createNewFile();//崩溃残留的临时文件
+        OutputStream os = new FileOutputStream(new File(directory, DiskLruCache.JOURNAL_FILE));
+        os.write("garbage\n".getBytes());
+        os.close();
+
+        cache = DiskLruCache.open(directory, APP_VERSION, Long.MAX_VALUE);
+        assertEquals(30, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertFalse(new File(directory, "c" + DiskLruCache.TEMP_SUFFIX).exists());
+    }
+
+    @Test
+    public void tornLastLineKeepsParsedEntriesAndMetadata() throws Exception {
+        DiskLruCache.Editor editor = cache.edit("a");
+        editor.setMetadata("640,427,image/jpeg");
+        OutputStream entry = editor.newOutputStream();
+        entry.write(new byte[10]);
+        entry.close();
+        editor.commit();
+        write("b", 20);
+        cache.get("a");//a变为最近访问
+        cache.close();
+        //模拟追加记录时进程被杀，最后一行没有写完
+        OutputStream os = new FileOutputStream(new File(directory, DiskLruCache.JOURNAL_FILE), true);
+        os.write("CLEAN c 1".getBytes());
+        os.close();
+
+        cache = DiskLruCache.open(directory, APP_VERSION, 20);//打开时超出容量，应按日志中的访问顺序淘汰b
+        assertEquals("640,427,image/jpeg", cache.getMetadata("a"));//没有退回到根据目录重建
+        long deadline = System.currentTimeMillis() + 2000;
+        while (cache.size() > 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        write("c", 5);
+        cache.close();
+
+        cache = DiskLruCache.open(directory, APP_VERSION, Long.MAX_VALUE);//日志已被重写，追加的记录完整
+        assertEquals(15, cache.size());
+        assertEquals("640,427,image/jpeg", cache.getMetadata("a"));
+    }
+
+    @Test
+    public void readsAreFlushedToJournal() throws IOException {
+        write("a", 10);
+        write("b", 10);
+        cache.get("a");
+
+        //不关闭缓存，直接读取日志，相当于此时进程被杀
+        String journal = new String(Files.readAllBytes(new File(directory, DiskLruCache.JOURNAL_FILE).toPath()));
+        assertTrue(journal.endsWith("READ a\n"));
+    }
+
+    @Test
+    public void removalsAreFlushedToJournal() throws IOException {
+        write("a", 10);
+        write("b", 10);
+        assertTrue(cache.remove("a"));
+
+        String journal = new String(Files.readAllBytes(new File(directory, DiskLruCache.JOURNAL_FILE).toPath()));
+        assertTrue(journal.endsWith("REMOVE a\n"));
+    }
+
+    @Test
+    public void entriesWithMissingFilesAreDroppedOnReopen() throws IOException {
+        write("a", 10);
+        write("b", 20);
+        File a = cache.get("a");
+        cache.close();
+        //模拟删除文件后、REMOVE记录写入日志前进程被杀
+        assertTrue(a.delete());
+
+        cache = DiskLruCache.open(directory, APP_VERSION, Long.MAX_VALUE);
+        assertNull(cache.get("a"));
+        assertEquals(20, cache.size());
+        assertEquals(1, cache.entryCount());
+        String journal = new String(Files.readAllBytes(new File(directory, DiskLruCache.JOURNAL_FILE).toPath()));
+        assertFalse(journal.contains("CLEAN a"));//日志已重写
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedInBackground() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(directory, APP_VERSION, 30);
+        write("a", 10);
+        write("b", 10);
+        write("c", 10);
+        cache.get("a");//a变为最近访问
+        write("d", 10);
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (cache.size() > 30 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(30, cache.size());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertFalse(new File(directory, "b").exists());
+    }
+
+    @Test
+    public void removalListenerSeesEvictionsAndEntriesMatch() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(directory, APP_VERSION, 20);
+        final Set<String> removed = Collections.synchronizedSet(new HashSet<String>());
+        cache.setRemovalListener(removed::add);
+        write("a", 10);
+        write("b", 10);
+        write("c", 10);//超出容量，后台淘汰a
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!removed.contains("a") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        cache.remove("b");
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), removed);
+        Map<String, Long> entries = cache.entries();
+        assertEquals(1, entries.size());
+        assertEquals(Long.valueOf(10), entries.get("c"));
+    }
+
+    @Test
+    public void accessOrderSurvivesReopen() throws Exception {
+        write("a", 10);
+        write("b", 10);
+        cache.get("a");
+        cache.close();
+
+        cache = DiskLruCache.open(directory, APP_VERSION, 10);//打开时超出容量，应淘汰最久未访问的b
+        long deadline = System.currentTimeMillis() + 2000;
+        while (cache.size() > 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void shardedEntriesAreRebuiltFromSubdirectories() throws IOException {
+        cache.close();
+        cache = DiskLruCache.open(directory, APP_VERSION, Long.MAX_VALUE, 2);
+        write("3fa9", 10);
+        assertTrue(new File(directory, "3/f/3fa9").exists());
+        cache.close();
+        new File(directory, "misplaced").createNewFile();//不在对应子目录中的文件
+
+        //改变版本让缓存根据目录重建
+        cache = DiskLruCache.open(directory, APP_VERSION + 1, Long.MAX_VALUE, 2);
+        assertEquals(10, cache.size());
+        assertEquals(new File(directory, "3/f/3fa9"), cache.get("3fa9"));
+        assertFalse(new File(directory, "misplaced").exists());
+    }
+
+    @Test
+    public void metadataIsCommittedWithEntryAndSurvivesReopen() throws IOException {
+        DiskLruCache.Editor editor = cache.edit("a");
+        editor.setMetadata("640,427,image/jpeg");
+        editor.newOutputStream().close();
+        assertNull(cache.getMetadata("a"));//提交前不可见
+        editor.commit();
+        assertEquals("640,427,image/jpeg", cache.getMetadata("a"));
+        cache.close();
+
+        cache = DiskLruCache.open(directory, APP_VERSION, Long.MAX_VALUE);
+        assertEquals("640,427,image/jpeg", cache.getMetadata("a"));
+        write("a", 10);//重新写入且没有元数据
+        assertNull(cache.getMetadata("a"));
+    }
+
+    @Test
+    public void sweepKeepsTempFilesOfEditsInProgress() throws IOException {
+        DiskLruCache.Editor editor = cache.edit("a");
+        editor.newOutputStream().close();
+        File orphan = new File(directory, "b" + DiskLruCache.TEMP_SUFFIX);
+        orphan.createNewFile();
+
+        assertEquals(1, cache.deleteOrphanedTempFiles());
+        assertFalse(orphan.exists());
+        assertTrue(editor.getFile().exists());
+        editor.commit();
+        assertNotNull(cache.get("a"));
+    }
+
+    private void write(String key, int length) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        OutputStream os = editor.newOutputStream();
+        os.write(new byte[length]);
+        os.close();
+        editor.commit();
+        assertTrue(editor.getFile().getParentFile().exists());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
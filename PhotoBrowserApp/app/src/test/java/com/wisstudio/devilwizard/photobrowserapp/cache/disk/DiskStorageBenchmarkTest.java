@@ -0,0 +1,120 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 对比每张图片一个文件的{@link FileStorage}与段文件的{@link PackFileStorage}的随机读取吞吐量
+ * 图片大小与压缩后的缩略图相同（约50KB），线程数与MainActivity中的加载线程池相同（2N+1）
+ * 吞吐量取决于文件系统和机器的负载，测试只检查两者都能正确读取，并在断言信息中给出两者的吞吐量，不比较快慢
+ *
+ * @author WizardK
+ * @date 2021-05-11
+ */
+public class DiskStorageBenchmarkTest {
+
+    private static final int THREADS = 2 * Runtime.getRuntime().availableProcessors() + 1;
+    private static final int ENTRIES = 500;
+    private static final int ENTRY_SIZE = 50 * 1024;
+
+    private static final long WARM_UP_MILLIS = 200;
+    private static final long MEASURE_MILLIS = 1000;
+
+    @Test
+    public void readThroughputOfPerFileAndPackStorage() throws Exception {
+        File perFileDir = Files.createTempDirectory("FileStorageBenchmark").toFile();
+        File packDir = Files.createTempDirectory("PackFileStorageBenchmark").toFile();
+        DiskStorage perFile = new FileStorage(perFileDir, 1, Long.MAX_VALUE);
+        DiskStorage pack = new PackFileStorage(packDir, Long.MAX_VALUE);
+        try {
+            String[] keys = new String[ENTRIES];
+            for (int i = 0; i < ENTRIES; i++) {
+                keys[i] = DiskCacheKeyGenerator.digest("https://picsum.photos/id/" + i + "/300/200");
+                perFile.write(keys[i], data(i), null);
+                pack.write(keys[i], data(i), null);
+            }
+            assertArrayEquals(data(7), perFile.read(keys[7]));
+            assertArrayEquals(data(7), pack.read(keys[7]));
+
+            run(perFile, keys, WARM_UP_MILLIS);
+            run(pack, keys, WARM_UP_MILLIS);
+            long perFileReads = run(perFile, keys, MEASURE_MILLIS);
+            long packReads = run(pack, keys, MEASURE_MILLIS);
+
+            String report = THREADS + " threads: per-file " + perFileReads + " reads/s, pack " + packReads + " reads/s";
+            assertTrue(report, perFileReads > 0 && packReads > 0);
+            assertEquals(report, perFile.size(), pack.size());
+        } finally {
+            perFile.close();
+            pack.close();
+            deleteRecursively(perFileDir);
+            deleteRecursively(packDir);
+        }
+    }
+
+    /**
+     * 所有线程同时随机读取duration毫秒
+     *
+     * @return 返回总读取次数
+     */
+    private static long run(final DiskStorage storage, final String[] keys, long duration) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long count = 0;
+                    while (!stop.get()) {
+                        if (storage.read(keys[random.nextInt(keys.length)]) == null) {
+                            errors.incrementAndGet();
+                        }
+                        count++;
+                    }
+                    reads.addAndGet(count);
+                } catch (InterruptedException | IOException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        Thread.sleep(duration);
+        stop.set(true);
+        done.await();
+        assertEquals(0, errors.get());
+        return reads.get() * 1000 / duration;
+    }
+
+    private static byte[] data(int seed) {
+        byte[] data = new byte[ENTRY_SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,142 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.disk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PackFileStorage}的重启恢复、删除、截断和压缩测试
+ *
+ * @author WizardK
+ * @date 2021-05-11
+ */
+public class PackFileStorageTest {
+
+    private static final int DATA_SIZE = 512 * 1024;
+
+    private File directory;
+    private PackFileStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("PackFileStorageTest").toFile();
+        storage = new PackFileStorage(directory, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        storage.close();
+        File[] files = directory.listFiles();
+        for (File file : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void entriesAndRemovalsSurviveReopen() throws IOException {
+        storage.write("a", data(1), "640,427,image/jpeg");
+        storage.write("b", data(2), null);
+        storage.write("a", data(3), null);//覆盖
+        storage.remove("b");
+        storage.close();
+
+        storage = new PackFileStorage(directory, Long.MAX_VALUE);
+        assertArrayEquals(data(3), storage.read("a"));
+        assertNull(storage.getMetadata("a"));
+        assertNull(storage.read("b"));
+        assertEquals(DATA_SIZE, storage.size());
+    }
+
+    @Test
+    public void truncatedTailIsDiscarded() throws IOException {
+        storage.write("a", data(1), "meta");
+        storage.write("b", data(2), null);
+        storage.close();
+        File segment = directory.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(raf.length() - 100);//模拟写入b时被杀
+        raf.close();
+
+        storage = new PackFileStorage(directory, Long.MAX_VALUE);
+        assertArrayEquals(data(1), storage.read("a"));
+        assertEquals("meta", storage.getMetadata("a"));
+        assertNull(storage.read("b"));
+        storage.write("c", data(3), null);//截断后可以继续追加
+        assertArrayEquals(data(3), storage.read("c"));
+    }
+
+    @Test
+    public void corruptDataIsDetectedByCrc() throws IOException {
+        storage.write("a", data(1), null);
+        storage.close();
+        File segment = directory.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(raf.length() - 1);
+        raf.write(0x5a);
+        raf.close();
+
+        storage = new PackFileStorage(directory, Long.MAX_VALUE);
+        assertNull(storage.read("a"));
+        assertFalse(storage.keys().contains("a"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        storage.close();
+        storage = new PackFileStorage(directory, 2 * DATA_SIZE);
+        storage.write("a", data(1), null);
+        storage.write("b", data(2), null);
+        storage.read("a");
+        storage.write("c", data(3), null);
+        assertNull(storage.read("b"));
+        assertArrayEquals(data(1), storage.read("a"));
+        assertEquals(2 * DATA_SIZE, storage.size());
+    }
+
+    @Test
+    public void compactionRemovesSegmentsFullOfDeadEntries() throws Exception {
+        int perSegment = PackFileStorage.MAX_SEGMENT_SIZE / DATA_SIZE;
+        for (int i = 0; i < perSegment * 3; i++) {
+            storage.write("k" + i, data(i), null);
+        }
+        assertTrue(storage.segmentCount() >= 3);
+        int firstSegment = storage.segmentIds().get(0);
+        for (int i = 1; i < perSegment; i++) {//第一个段中只留下k0
+            storage.remove("k" + i);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (storage.segmentIds().contains(firstSegment) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(storage.segmentIds().contains(firstSegment));
+        assertArrayEquals(data(0), storage.read("k0"));
+        storage.close();
+
+        //压缩后重新打开，被删除的条目不能复活
+        storage = new PackFileStorage(directory, Long.MAX_VALUE);
+        assertArrayEquals(data(0), storage.read("k0"));
+        assertNull(storage.read("k1"));
+        assertEquals((perSegment * 2 + 1) * (long) DATA_SIZE, storage.size());
+    }
+
+    private static byte[] data(int seed) {
+        byte[] data = new byte[DATA_SIZE];
+        Arrays.fill(data, (byte) seed);
+        data[0] = (byte) (seed >> 8);
+        return data;
+    }
+}
@@ -0,0 +1,204 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用模拟的滑动轨迹回放对比{@link LruPolicy}和{@link TinyLfuPolicy}的命中率
+ * 轨迹按RecyclerView的行为生成：每次滑动只有新进入屏幕的item才会触发onBindViewHolder去请求图片，
+ * 每张缩略图的权重（KB）按固定种子随机生成，与瀑布流中高度不一的图片相近
+ *
+ * @author WizardK
+ * @date 2021-05-05
+ */
+public class EvictionPolicyTraceTest {
+
+    /**
+     * 瀑布流的列数
+     */
+    private static final int SPAN_COUNT = 2;
+
+    /**
+     * 一屏可见的item数
+     */
+    private static final int SCREEN_ITEMS = 8;
+
+    private static final int FEED_SIZE = 600;
+
+    /**
+     * 缓存容量(KB)，约可容纳30张缩略图
+     */
+    private static final long CACHE_SIZE_KB = 16 * 1024;
+
+    /**
+     * 与MemoryCache中使用TinyLFU时的窗口比例一致
+     */
+    private static final float WINDOW_RATIO = 0.5f;
+
+    /**
+     * 与MemoryCache中估计频率统计表大小时使用的条目大小一致
+     */
+    private static final int EXPECTED_ENTRY_KB = 32;
+
+    private final int[] weights = createWeights();
+
+    @Test
+    public void flingToBottomAndBack_tinyLfuKeepsRevisitedThumbnails() {
+        ScrollTrace warmUp = new ScrollTrace();
+        //在顶部的几屏内来回浏览，然后一次快速滑到底部
+        for (int round = 0; round < 6; round++) {
+            warmUp.scrollTo(16);
+            warmUp.scrollTo(0);
+        }
+        warmUp.scrollTo(FEED_SIZE - SCREEN_ITEMS);
+
+        //双击标题栏回到顶部，继续浏览之前看过的图片
+        ScrollTrace comeBack = new ScrollTrace();
+        comeBack.jumpTo(0);
+        comeBack.scrollTo(16);
+        comeBack.scrollTo(0);
+
+        double lru = replay(newLru(), warmUp.requests, comeBack.requests);
+        double tinyLfu = replay(newTinyLfu(), warmUp.requests, comeBack.requests);
+        assertTrue("W-TinyLFU should keep revisited thumbnails through a fling", tinyLfu >= lru + 0.15);
+    }
+
+    @Test
+    public void repeatedFlings_tinyLfuKeepsRevisitedThumbnails() {
+        ScrollTrace trace = new ScrollTrace();
+        //用户多次回到顶部查看同一批图片，中间穿插快速滑动浏览新图片
+        for (int fling = 1; fling <= 4; fling++) {
+            for (int round = 0; round < 3; round++) {
+                trace.scrollTo(16);
+                trace.scrollTo(0);
+            }
+            trace.scrollTo(fling * FEED_SIZE / 4 - SCREEN_ITEMS);
+            trace.jumpTo(0);
+        }
+
+        double lru = replay(newLru(), new ArrayList<Integer>(), trace.requests);
+        double tinyLfu = replay(newTinyLfu(), new ArrayList<Integer>(), trace.requests);
+        assertTrue("W-TinyLFU should beat LRU with repeated flings", tinyLfu > lru);
+    }
+
+    @Test
+    public void scrollDownAndBackUp_tinyLfuStaysCloseToLru() {
+        ScrollTrace trace = new ScrollTrace();
+        //逐步向下浏览，每走一段就稍微往回滑一点，这是LRU最擅长的最近性模式
+        for (int top = 0; top < FEED_SIZE - 40; top += 20) {
+            trace.scrollTo(top + 20);
+            trace.scrollTo(top + 10);
+        }
+
+        double lru = replay(newLru(), new ArrayList<Integer>(), trace.requests);
+        double tinyLfu = replay(newTinyLfu(), new ArrayList<Integer>(), trace.requests);
+        assertTrue("W-TinyLFU should not lose much on recency-friendly traces", tinyLfu >= lru * 0.75);
+    }
+
+    @Test
+    public void weightedCapacityIsRespected() {
+        EvictionPolicy<Integer, Integer> policy = newTinyLfu();
+        ScrollTrace trace = new ScrollTrace();
+        trace.scrollTo(FEED_SIZE - SCREEN_ITEMS);
+        for (int position : trace.requests) {
+            if (policy.get(position) == null) {
+                policy.put(position, position);
+            }
+            assertTrue(policy.size() <= CACHE_SIZE_KB);
+        }
+        policy.evictAll();
+        assertEquals(0, policy.size());
+    }
+
+    private EvictionPolicy<Integer, Integer> newLru() {
+        return new LruPolicy<>(CACHE_SIZE_KB, new TraceWeigher(), null);
+    }
+
+    private EvictionPolicy<Integer, Integer> newTinyLfu() {
+        return new TinyLfuPolicy<>(CACHE_SIZE_KB, WINDOW_RATIO, (int) (CACHE_SIZE_KB / EXPECTED_ENTRY_KB),
+                new TraceWeigher(), null);
+    }
+
+    /**
+     * 回放轨迹，与ImageLoader的流程相同：先get，未命中则加载后put
+     *
+     * @param warmUp 只用于预热缓存、不计入命中率的请求
+     * @param measured 计入命中率的请求
+     *
+     * @return 返回measured部分的命中率
+     */
+    private static double replay(EvictionPolicy<Integer, Integer> policy, List<Integer> warmUp, List<Integer> measured) {
+        for (int position : warmUp) {
+            if (policy.get(position) == null) {
+                policy.put(position, position);
+            }
+        }
+        int hits = 0;
+        for (int position : measured) {
+            if (policy.get(position) == null) {
+                policy.put(position, position);
+            } else {
+                hits++;
+            }
+        }
+        return (double) hits / measured.size();
+    }
+
+    private static int[] createWeights() {
+        Random random = new Random(20210505L);
+        int[] weights = new int[FEED_SIZE];
+        for (int i = 0; i < FEED_SIZE; i++) {
+            weights[i] = 300 + random.nextInt(600);//300KB~900KB
+        }
+        return weights;
+    }
+
+    private class TraceWeigher implements EvictionPolicy.Weigher<Integer, Integer> {
+        @Override
+        public int weigh(Integer key, Integer value) {
+            return weights[key];
+        }
+    }
+
+    /**
+     * 按RecyclerView的绑定规则生成图片请求序列
+     */
+    private static class ScrollTrace {
+        final List<Integer> requests = new ArrayList<>();
+        private int top = -1;
+
+        /**
+         * 一行一行地滑动到top位置，每出现新的一行就请求该行的图片
+         */
+        void scrollTo(int target) {
+            if (top < 0) {
+                jumpTo(target);
+                return;
+            }
+            while (top != target) {
+                int step = target > top ? SPAN_COUNT : -SPAN_COUNT;
+                top += step;
+                int firstNew = step > 0 ? top + SCREEN_ITEMS - SPAN_COUNT : top;
+                for (int i = 0; i < SPAN_COUNT; i++) {
+                    requests.add(firstNew + i);
+                }
+            }
+        }
+
+        /**
+         * 直接跳转到top位置（如双击标题栏回到顶部），整屏的图片都需要重新请求
+         */
+        void jumpTo(int target) {
+            top = target;
+            for (int i = 0; i < SCREEN_ITEMS; i++) {
+                requests.add(top + i);
+            }
+        }
+    }
+}
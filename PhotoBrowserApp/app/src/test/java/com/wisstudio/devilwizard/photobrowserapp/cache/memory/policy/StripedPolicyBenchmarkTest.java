@@ -0,0 +1,194 @@
+package com.wisstudio.devilwizard.photobrowserapp.cache.memory.policy;
+
+import androidx.collection.LruCache;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在多线程下对比{@link StripedPolicy}与原来单锁的内存缓存的吞吐量：原来的MemoryCache用一个{@link LruCache}按KB计算权重，
+ * 放入前先get检查是否已存在，这里按同样的方式封装（androidx的LruCache与android.util.LruCache的实现相同，可在JVM上运行）
+ * 线程数与MainActivity中的加载线程池相同（2N+1），每个线程按ImageLoader的流程先get，未命中再放入
+ * 分段能否更快取决于核数，测试只检查两者都能正常运行，并在断言信息中给出两者的吞吐量
+ *
+ * @author WizardK
+ * @date 2021-05-06
+ */
+public class StripedPolicyBenchmarkTest {
+
+    private static final int THREADS = 2 * Runtime.getRuntime().availableProcessors() + 1;
+
+    /**
+     * 缓存容量(KB)，与缩略图的权重配合约可容纳250张图片
+     */
+    private static final long CACHE_SIZE_KB = 64 * 1024;
+
+    /**
+     * 图片总数，大于缓存能容纳的数量，使put和淘汰也参与竞争
+     */
+    private static final int KEY_SPACE = 400;
+
+    private static final long WARM_UP_MILLIS = 200;
+    private static final long MEASURE_MILLIS = 500;
+
+    private static final EvictionPolicy.Weigher<Integer, Integer> WEIGHER = new EvictionPolicy.Weigher<Integer, Integer>() {
+        @Override
+        public int weigh(Integer key, Integer value) {
+            return 128 + (key % 8) * 64;//128KB~576KB
+        }
+    };
+
+    /**
+     * 基准测试中对缓存的访问
+     */
+    private interface Cache {
+        Integer get(Integer key);
+
+        /**
+         * 未命中后放入
+         */
+        void add(Integer key, Integer value);
+
+        long size();
+    }
+
+    @Test
+    public void stripedThroughputComparedWithSingleLock() throws InterruptedException {
+        final LruCache<Integer, Integer> lruCache = new LruCache<Integer, Integer>((int) CACHE_SIZE_KB) {
+            @Override
+            protected int sizeOf(Integer key, Integer value) {
+                return WEIGHER.weigh(key, value);
+            }
+        };
+        Cache single = new Cache() {
+            @Override
+            public Integer get(Integer key) {
+                return lruCache.get(key);
+            }
+
+            @Override
+            public void add(Integer key, Integer value) {
+                if (lruCache.get(key) == null) {//与原来的MemoryCache.put相同
+                    lruCache.put(key, value);
+                }
+            }
+
+            @Override
+            public long size() {
+                return lruCache.size();
+            }
+        };
+        final StripedPolicy<Integer, Integer> policy = new StripedPolicy<>(CACHE_SIZE_KB, THREADS + 1, WEIGHER, null);
+        Cache striped = new Cache() {
+            @Override
+            public Integer get(Integer key) {
+                return policy.get(key);
+            }
+
+            @Override
+            public void add(Integer key, Integer value) {
+                policy.putIfAbsent(key, value);
+            }
+
+            @Override
+            public long size() {
+                return policy.size();
+            }
+        };
+
+        run(single, WARM_UP_MILLIS);
+        run(striped, WARM_UP_MILLIS);
+        long singleOps = run(single, MEASURE_MILLIS);
+        long stripedOps = run(striped, MEASURE_MILLIS);
+
+        String report = THREADS + " threads, " + policy.segmentCount() + " segments: single lock LruCache "
+                + singleOps + " ops/s, striped " + stripedOps + " ops/s";
+        assertTrue(report, singleOps > 0 && stripedOps > 0);
+        assertTrue(report, single.size() <= CACHE_SIZE_KB);
+        assertTrue(report, striped.size() <= CACHE_SIZE_KB);
+    }
+
+    @Test
+    public void globalBudgetIsSharedBySegments() {
+        final AtomicLong removedWeight = new AtomicLong();
+        EvictionPolicy.RemovalListener<Integer, Integer> listener = new EvictionPolicy.RemovalListener<Integer, Integer>() {
+            @Override
+            public void onEntryRemoved(boolean evicted, Integer key, Integer oldValue, Integer newValue) {
+                removedWeight.addAndGet(WEIGHER.weigh(key, oldValue));
+            }
+        };
+        StripedPolicy<Integer, Integer> policy = new StripedPolicy<>(4096, 8, WEIGHER, listener);
+        long addedWeight = 0;
+        for (int key = 0; key < KEY_SPACE; key++) {
+            assertNull(policy.putIfAbsent(key, key));
+            addedWeight += WEIGHER.weigh(key, key);
+            assertTrue(policy.size() <= 4096);
+            assertTrue(policy.containsKey(key));//淘汰时不会动刚放入的条目
+        }
+        assertTrue(!policy.containsKey(0));//各段最旧的条目先被淘汰
+        assertEquals(addedWeight - removedWeight.get(), policy.size());
+
+        //已存在的key不会被替换
+        Integer last = KEY_SPACE - 1;
+        assertEquals(last, policy.putIfAbsent(last, -1));
+        assertEquals(last, policy.get(last));
+
+        policy.resize(1024);
+        assertTrue(policy.size() <= 1024);
+        policy.evictAll();
+        assertEquals(0, policy.size());
+        assertEquals(addedWeight, removedWeight.get());
+    }
+
+    /**
+     * 用{@link #THREADS}个线程同时访问cache
+     *
+     * @return 返回每秒所有线程完成的操作数
+     */
+    private static long run(final Cache cache, long durationMillis)
+            throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            final long seed = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    long count = 0;
+                    try {
+                        start.await();
+                        while (!stop.get()) {
+                            //一半的请求落在屏幕附近的少量图片上，其余分散在整个列表中
+                            int key = random.nextBoolean() ? random.nextInt(32) : random.nextInt(KEY_SPACE);
+                            if (cache.get(key) == null) {
+                                cache.add(key, key);
+                            }
+                            count++;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        operations.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        Thread.sleep(durationMillis);
+        stop.set(true);
+        done.await();
+        return operations.get() * 1000 / durationMillis;
+    }
+}
@@ -0,0 +1,192 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.network.HttpCallBackListener;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.SingleFlight;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LoadPauseGate}与{@link PhotoLoadThreadPoolExecutor}、{@link SingleFlight}配合的测试，按{@link ImageLoader}中的流程模拟加载：
+ * 滑动期间缓存命中照常完成且不占住线程，停止滑动后屏幕上的图片不必等滑过的图片下载完（首帧时间）；
+ * 滑动时发起的预加载照常读取缓存，被显示它的加载加入后不必等到停止滑动
+ *
+ * @author WizardK
+ * @date 2021-05-17
+ */
+public class LoadPauseGateTest {
+
+    /**
+     * 模拟一次下载的耗时(以毫秒为单位)
+     */
+    private static final long NETWORK_MILLIS = 100;
+
+    /**
+     * 滑动期间滑过的、需要下载的图片数
+     */
+    private static final int SCROLLED_PAST = 20;
+
+    private static final int THREADS = 2;
+
+    private PhotoLoadThreadPoolExecutor pool;
+    private LoadPauseGate gate;
+    private SingleFlight<String, String> flights;
+
+    /**
+     * 模拟缓存中已有的图片
+     */
+    private final Set<String> cachedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * 排队或暂存中的任务，与{@link ImageLoader}中的queuedLoads相同，加入已有的加载时用于提高优先级
+     */
+    private final Map<String, PrioritizedTask> queuedLoads = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() {
+        pool = PhotoLoadThreadPoolExecutor.newFixedPhotoLoadPool(THREADS);
+        gate = new LoadPauseGate();
+        flights = new SingleFlight<>();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        gate.resume();
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cacheHitsKeepFlowingWhilePausedWithoutParkingThreads() throws InterruptedException {
+        gate.pause();
+        CountDownLatch downloads = new CountDownLatch(SCROLLED_PAST);
+        for (int i = 0; i < SCROLLED_PAST; i++) {
+            load("net" + i, false, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE, downloads);
+        }
+        CountDownLatch hits = new CountDownLatch(4);
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            load("hit" + i, true, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE, hits);
+        }
+
+        assertTrue(hits.await(NETWORK_MILLIS, TimeUnit.MILLISECONDS));//没有被暂停的下载挡住
+        assertTrue(elapsedMillis(start) < NETWORK_MILLIS);
+        waitUntilIdle();
+        assertEquals(SCROLLED_PAST, gate.getDeferredCount());
+        assertEquals(SCROLLED_PAST, downloads.getCount());
+
+        gate.resume();
+        assertTrue(downloads.await(SCROLLED_PAST * NETWORK_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void visibleImageIsFirstPixelAfterFlingStops() throws InterruptedException {
+        gate.pause();
+        CountDownLatch scrolledPast = new CountDownLatch(SCROLLED_PAST);
+        for (int i = 0; i < SCROLLED_PAST; i++) {
+            load("past" + i, false, PhotoLoadThreadPoolExecutor.PRIORITY_NEAR_VISIBLE, scrolledPast);
+        }
+        CountDownLatch firstPixel = new CountDownLatch(1);
+        load("onScreen", false, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE, firstPixel);
+        waitUntilIdle();
+
+        long flingStopped = System.nanoTime();
+        gate.resume();
+        assertTrue(firstPixel.await(10, TimeUnit.SECONDS));
+        long timeToFirstPixel = elapsedMillis(flingStopped);
+
+        //屏幕上的图片最先下载，只需一次下载的时间，而不是等滑过的图片先下载完
+        assertTrue(timeToFirstPixel < 2 * NETWORK_MILLIS);
+        assertTrue(scrolledPast.getCount() > 0);
+    }
+
+    @Test
+    public void prefetchReadsCacheWhilePausedAndIsReleasedOnceVisible() throws InterruptedException {
+        gate.pause();//预加载在滑动时发起
+        CountDownLatch prefetchedHit = new CountDownLatch(1);
+        load("hit", true, PhotoLoadThreadPoolExecutor.PRIORITY_PREFETCH, prefetchedHit);
+        CountDownLatch prefetchedMiss = new CountDownLatch(1);
+        load("ahead", false, PhotoLoadThreadPoolExecutor.PRIORITY_PREFETCH, prefetchedMiss);
+        assertTrue(prefetchedHit.await(NETWORK_MILLIS, TimeUnit.MILLISECONDS));//缓存命中不等停止滑动
+        waitUntilIdle();
+        assertEquals(1, gate.getDeferredCount());//只有下载被推迟
+
+        //期间图片已写入缓存（如其他页面下载过），预测的格子滑入屏幕，显示它的加载加入暂存的预加载
+        cachedKeys.add("ahead");
+        CountDownLatch visible = new CountDownLatch(1);
+        long start = System.nanoTime();
+        load("ahead", false, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE, visible);
+
+        assertTrue(visible.await(NETWORK_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(elapsedMillis(start) < NETWORK_MILLIS);
+        assertEquals(0, prefetchedMiss.getCount());
+        assertTrue(gate.isPaused());
+        assertEquals(0, gate.getDeferredCount());
+    }
+
+    /**
+     * 按{@link ImageLoader}中LoadPhotoTask的流程加载：缓存命中立即返回，需要下载时若已暂停则推迟；
+     * 加入已有的加载时提高它的优先级，并从暂存中放出
+     */
+    private void load(String key, boolean cached, int priority, CountDownLatch done) {
+        if (cached) {
+            cachedKeys.add(key);
+        }
+        flights.join(key, new HttpCallBackListener<String>() {
+            @Override
+            public void onFinish(String response) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        }, command -> {
+            PrioritizedTask task = new PrioritizedTask(command, priority);
+            queuedLoads.put(key, task);
+            pool.execute(task);
+        }, call -> {
+            PrioritizedTask task = queuedLoads.get(key);
+            if (cachedKeys.contains(key)) {
+                queuedLoads.remove(key, task);
+                return key;
+            }
+            if (gate.shouldDefer(task.getPriority(), true)) {
+                call.defer(command -> gate.defer(task, () -> pool.execute(task)));
+                return null;
+            }
+            queuedLoads.remove(key, task);
+            Thread.sleep(NETWORK_MILLIS);
+            return key;
+        });
+        PrioritizedTask queued = queuedLoads.get(key);
+        if (queued != null) {
+            queued.raisePriority(priority);
+            gate.release(queued);
+        }
+    }
+
+    private void waitUntilIdle() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((pool.getActiveCount() > 0 || !pool.getQueue().isEmpty()) && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, pool.getActiveCount());//推迟的加载不会占住工作线程
+        assertEquals(0, pool.getQueue().size());
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
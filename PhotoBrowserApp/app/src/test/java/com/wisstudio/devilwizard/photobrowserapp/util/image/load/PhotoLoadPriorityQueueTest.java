@@ -0,0 +1,85 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * {@link PhotoLoadPriorityQueue}的出队顺序测试：按优先级、同一优先级后进先出、排队时修改优先级以及等待过久的任务不被饿死
+ *
+ * @author WizardK
+ * @date 2021-05-16
+ */
+public class PhotoLoadPriorityQueueTest {
+
+    private static final Runnable NOTHING = () -> {
+    };
+
+    @Test
+    public void higherTierFirstAndNewestFirstWithinTier() {
+        PhotoLoadPriorityQueue queue = new PhotoLoadPriorityQueue(60_000);
+        PrioritizedTask prefetch = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_PREFETCH);
+        PrioritizedTask oldVisible = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE);
+        PrioritizedTask nearVisible = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_NEAR_VISIBLE);
+        PrioritizedTask newVisible = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE);
+        PrioritizedTask viewer = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_VIEWER);
+
+        assertEquals(order(viewer, newVisible, oldVisible, nearVisible, prefetch), drain(queue));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void priorityChangedWhileQueuedTakesEffect() {
+        PhotoLoadPriorityQueue queue = new PhotoLoadPriorityQueue(60_000);
+        PrioritizedTask scrolledIn = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_NEAR_VISIBLE);
+        PrioritizedTask scrolledOut = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE);
+        PrioritizedTask visible = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE);
+
+        scrolledIn.setPriority(PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE);//滑入屏幕，视为最新的请求
+        scrolledOut.setPriority(PhotoLoadThreadPoolExecutor.PRIORITY_NEAR_VISIBLE);
+        visible.raisePriority(PhotoLoadThreadPoolExecutor.PRIORITY_PREFETCH);//不会被降低
+
+        assertEquals(order(scrolledIn, visible, scrolledOut), drain(queue));
+    }
+
+    @Test
+    public void agedTaskIsNotStarvedByNewerVisibleTasks() throws InterruptedException {
+        PhotoLoadPriorityQueue queue = new PhotoLoadPriorityQueue(20);
+        PrioritizedTask prefetch = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_PREFETCH);
+        Thread.sleep(80);//等待超过两级的提升时间
+        PrioritizedTask visible = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_VISIBLE);
+        PrioritizedTask viewer = offer(queue, PhotoLoadThreadPoolExecutor.PRIORITY_VIEWER);
+
+        assertSame(viewer, queue.poll());//提升后也不会超过查看大图的请求
+        assertSame(prefetch, queue.poll());
+        assertSame(visible, queue.poll());
+    }
+
+    private static PrioritizedTask offer(PhotoLoadPriorityQueue queue, int priority) {
+        PrioritizedTask task = new PrioritizedTask(NOTHING, priority);
+        queue.offer(task);
+        return task;
+    }
+
+    private static List<Runnable> order(Runnable... tasks) {
+        List<Runnable> order = new ArrayList<>();
+        for (Runnable task : tasks) {
+            order.add(task);
+        }
+        return order;
+    }
+
+    private static List<Runnable> drain(PhotoLoadPriorityQueue queue) {
+        List<Runnable> drained = new ArrayList<>();
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+            drained.add(task);
+        }
+        return drained;
+    }
+}
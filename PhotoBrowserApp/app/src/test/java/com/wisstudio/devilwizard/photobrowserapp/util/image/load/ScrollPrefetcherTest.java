@@ -0,0 +1,164 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.image.load;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.image.MyImage;
+import com.wisstudio.devilwizard.photobrowserapp.util.network.Cancellable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ScrollPrefetcher}的预测、预算和反向取消测试，用记录请求的假加载器代替{@link ImageLoader}
+ *
+ * @author WizardK
+ * @date 2021-05-18
+ */
+public class ScrollPrefetcherTest {
+
+    private static final long IMAGE_BYTES = 100 * 1024;
+
+    private final List<MyImage> images = new ArrayList<>();
+
+    /**
+     * 已发起的预加载，按发起顺序
+     */
+    private final Map<String, FakeRequest> requests = new LinkedHashMap<>();
+
+    private final ScrollPrefetcher.Loader loader = new ScrollPrefetcher.Loader() {
+        @Override
+        public Cancellable prefetch(MyImage image, int width, int height, Runnable onDone) {
+            FakeRequest request = new FakeRequest(onDone);
+            requests.remove(image.getUrl());//重新发起的排到最后
+            requests.put(image.getUrl(), request);
+            return request;
+        }
+
+        @Override
+        public long estimateDecodedBytes(MyImage image, int width, int height) {
+            return IMAGE_BYTES;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < 200; i++) {
+            images.add(new MyImage("author", 1000, 1000, "url" + i));
+        }
+    }
+
+    @Test
+    public void fasterScrollPrefetchesFurtherAhead() {
+        ScrollPrefetcher slow = newPrefetcher(20, 100, 100 * IMAGE_BYTES);
+        scroll(slow, 10, 1, 1000);//每秒滑过1张
+        assertEquals(2, live().size());//最少预加载的张数
+
+        requests.clear();
+        ScrollPrefetcher fast = newPrefetcher(12, 100, 100 * IMAGE_BYTES);
+        scroll(fast, 10, 4, 100);//每秒滑过40张
+        List<String> ahead = live();
+        assertEquals(12, ahead.size());//不超过最大预加载距离
+        assertEquals("url" + (10 + 4 * 4 + 5 + 1), ahead.get(0));//从屏幕下方最近的位置开始
+    }
+
+    @Test
+    public void staysWithinNetworkAndMemoryBudgets() {
+        ScrollPrefetcher prefetcher = newPrefetcher(20, 3, 5 * IMAGE_BYTES);
+        prefetcher.onScrolled(10, 15, 50, 0);
+        prefetcher.onScrolled(14, 19, 50, 100);
+        List<String> issued = live();
+        assertEquals(3, issued.size());
+        assertEquals(3, prefetcher.getInFlightCount());
+
+        int issuedBefore = requests.size();
+        finish(issued.get(0));//完成一个后继续发起下一个
+        assertEquals(issuedBefore + 1, requests.size());
+        finish(issued.get(1));
+        finish(issued.get(2));
+        assertEquals(issuedBefore + 2, requests.size());//内存预算只够窗口内的5张
+        assertEquals(2, live().size());
+        assertEquals(2, prefetcher.getInFlightCount());
+        assertEquals(5 * IMAGE_BYTES, prefetcher.getCommittedBytes());
+    }
+
+    @Test
+    public void reversingDirectionCancelsOutstandingPrefetches() {
+        ScrollPrefetcher prefetcher = newPrefetcher(20, 4, 100 * IMAGE_BYTES);
+        scroll(prefetcher, 50, 4, 100);
+        List<String> downward = live();
+        assertEquals(4, downward.size());
+
+        prefetcher.onScrolled(66, 71, -30, 1000);//向上滑
+        for (String url : downward) {
+            assertTrue(requests.get(url).cancelled);
+        }
+        List<String> upward = live();
+        assertEquals(4, upward.size());
+        assertEquals("url65", upward.get(0));//从屏幕上方最近的位置开始
+        assertEquals(upward.size(), prefetcher.getInFlightCount());
+    }
+
+    private ScrollPrefetcher newPrefetcher(int maxAhead, int maxInFlight, long memoryBudget) {
+        ScrollPrefetcher prefetcher = new ScrollPrefetcher(loader, maxAhead, maxInFlight, memoryBudget);
+        prefetcher.setImages(images);
+        prefetcher.setCellSize(300, 400);
+        return prefetcher;
+    }
+
+    /**
+     * 从firstVisible开始每帧向下滑过step张，共5帧，每屏显示6张
+     */
+    private static void scroll(ScrollPrefetcher prefetcher, int firstVisible, int step, long frameMillis) {
+        long time = 0;
+        for (int frame = 0; frame < 5; frame++) {
+            int first = firstVisible + frame * step;
+            prefetcher.onScrolled(first, first + 5, 50, time);
+            time += frameMillis;
+        }
+    }
+
+    /**
+     * @return 返回还在进行的预加载，按发起顺序
+     */
+    private List<String> live() {
+        List<String> live = new ArrayList<>();
+        for (Map.Entry<String, FakeRequest> entry : requests.entrySet()) {
+            if (!entry.getValue().cancelled && !entry.getValue().finished) {
+                live.add(entry.getKey());
+            }
+        }
+        return live;
+    }
+
+    private void finish(String url) {
+        FakeRequest request = requests.get(url);
+        request.finished = true;
+        request.onDone.run();
+    }
+
+    private static class FakeRequest implements Cancellable {
+        final Runnable onDone;
+        boolean cancelled;
+        boolean finished;
+
+        FakeRequest(Runnable onDone) {
+            this.onDone = onDone;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
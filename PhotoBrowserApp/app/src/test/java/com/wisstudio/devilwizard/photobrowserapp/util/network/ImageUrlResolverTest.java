@@ -0,0 +1,64 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.network;
+
+import com.wisstudio.devilwizard.photobrowserapp.util.image.MyImage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ImageUrlResolver}的改写测试：picsum的图片按格子大小取档请求缩放后的版本，且在两个方向上都能铺满格子；
+ * 格子大小略有变化时请求同一个地址；无法缩放或缩放不会更小时请求原图
+ *
+ * @author WizardK
+ * @date 2021-05-19
+ */
+public class ImageUrlResolverTest {
+
+    private static final MyImage LANDSCAPE = new MyImage("Alejandro Escamilla", 5616, 3744,
+            "https://picsum.photos/id/0/5616/3744");
+
+    /**
+     * 1080p屏幕上两列网格中一个格子的大小(以pixel为单位)，高度为200dp
+     */
+    private static final int CELL_WIDTH = 540;
+    private static final int CELL_HEIGHT = 600;
+
+    @Test
+    public void picsumUrlIsResizedToCoverTheCell() {
+        ImageUrlResolver.Variant variant = ImageUrlResolver.resolve(LANDSCAPE, CELL_WIDTH, CELL_HEIGHT);
+
+        assertTrue(variant.isResized());
+        assertEquals("https://picsum.photos/id/0/960/640", variant.getUrl());
+        assertEquals(960, variant.getWidth());
+        assertEquals(640, variant.getHeight());//按原图的宽高比算出
+        assertTrue(variant.getWidth() >= CELL_WIDTH && variant.getHeight() >= CELL_HEIGHT);//centerCrop不会放大
+    }
+
+    @Test
+    public void nearbyCellSizesShareOneUrl() {
+        String url = ImageUrlResolver.resolve(LANDSCAPE, CELL_WIDTH, CELL_HEIGHT).getUrl();
+
+        assertEquals(url, ImageUrlResolver.resolve(LANDSCAPE, CELL_WIDTH - 12, CELL_HEIGHT - 12).getUrl());
+        assertEquals(url, ImageUrlResolver.resolve(LANDSCAPE, CELL_WIDTH + 12, CELL_HEIGHT + 12).getUrl());
+
+        ImageUrlResolver.Variant widthOnly = ImageUrlResolver.resolve(LANDSCAPE, CELL_WIDTH, 0);//不限制的那一边不参与比较
+        assertEquals("https://picsum.photos/id/0/640/427", widthOnly.getUrl());
+    }
+
+    @Test
+    public void originalIsKeptWhenResizingCannotHelp() {
+        MyImage other = new MyImage("author", 4000, 3000, "https://example.com/photos/1.jpg");
+        MyImage small = new MyImage("author", 300, 200, "https://picsum.photos/id/7/300/200");
+
+        assertFalse(ImageUrlResolver.resolve(other, CELL_WIDTH, CELL_HEIGHT).isResized());
+        assertFalse(ImageUrlResolver.resolve(small, CELL_WIDTH, CELL_HEIGHT).isResized());
+        assertFalse(ImageUrlResolver.resolve(LANDSCAPE, 0, 0).isResized());//不限制大小，如查看大图
+        ImageUrlResolver.Variant huge = ImageUrlResolver.resolve(LANDSCAPE, 3000, 2000);
+        assertFalse(huge.isResized());//超过最大一档
+        assertEquals(LANDSCAPE.getUrl(), huge.getUrl());
+        assertEquals(LANDSCAPE.getWidth(), huge.getWidth());
+    }
+}
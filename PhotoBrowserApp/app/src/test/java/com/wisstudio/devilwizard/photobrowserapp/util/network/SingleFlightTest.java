@@ -0,0 +1,215 @@
+package com.wisstudio.devilwizard.photobrowserapp.util.network;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SingleFlight}的合并、分发、单独取消和并发加入测试，以及取消后{@link CancellableInputStream}中止读取
+ * 用手动执行的线程池控制请求开始的时机，请求执行前加入的调用者都应共享同一次请求
+ *
+ * @author WizardK
+ * @date 2021-05-14
+ */
+public class SingleFlightTest {
+
+    private final List<Runnable> pending = new ArrayList<>();
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicInteger delivered = new AtomicInteger();
+
+    private final SingleFlight<String, String> flights = new SingleFlight<String, String>() {
+        @Override
+        protected void onDelivered(String result) {
+            delivered.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void concurrentRequestsShareOneFetch() {
+        List<String> results = new ArrayList<>();
+        flights.join("a", recorder(results), pending::add, call -> "A" + fetches.incrementAndGet());
+        flights.join("a", recorder(results), pending::add, call -> "unused");
+        flights.join("b", recorder(results), pending::add, call -> "B" + fetches.incrementAndGet());
+        assertEquals(2, pending.size());
+        assertTrue(flights.isInFlight("a"));
+
+        runPending();
+        assertEquals(2, fetches.get());
+        assertEquals(3, results.size());
+        assertEquals(2, countOf(results, "A1"));
+        assertEquals(2, delivered.get());
+        assertFalse(flights.isInFlight("a"));
+
+        flights.join("a", recorder(results), pending::add, call -> "A" + fetches.incrementAndGet());
+        assertEquals(1, pending.size());//上一次请求已结束，发起新的请求
+    }
+
+    @Test
+    public void cancelledConsumerIsSkippedAndOthersStillReceive() {
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        final List<Boolean> cancelledWhenFetched = new ArrayList<>();
+        SingleFlight<String, String>.Subscription subscription = flights.join("a", recorder(first), pending::add, call -> {
+            cancelledWhenFetched.add(call.isCancelled());
+            return "A";
+        });
+        flights.join("a", recorder(second), pending::add, call -> "unused");
+        subscription.cancel();
+
+        runPending();
+        assertEquals(0, first.size());
+        assertEquals(1, second.size());
+        assertFalse(cancelledWhenFetched.get(0));//仍有调用者在等待
+    }
+
+    @Test
+    public void callIsCancelledOnlyWhenEveryConsumerCancelled() {
+        final List<Boolean> cancelledWhenFetched = new ArrayList<>();
+        SingleFlight<String, String>.Subscription a = flights.join("a", recorder(new ArrayList<>()), pending::add, call -> {
+            cancelledWhenFetched.add(call.isCancelled());
+            return null;
+        });
+        SingleFlight<String, String>.Subscription b = flights.join("a", recorder(new ArrayList<>()), pending::add,
+                call -> "unused");
+        a.cancel();
+        b.cancel();
+
+        runPending();
+        assertTrue(cancelledWhenFetched.get(0));
+        assertEquals(1, delivered.get());
+    }
+
+    @Test
+    public void joinAfterEveryConsumerCancelledRunsTheFetchAgain() {
+        final List<Boolean> cancelledWhenFetched = new ArrayList<>();
+        final List<String> rebound = new ArrayList<>();
+        final AtomicReference<SingleFlight<String, String>.Subscription> first = new AtomicReference<>();
+        first.set(flights.join("a", recorder(new ArrayList<>()), pending::add, call -> {
+            if (fetches.incrementAndGet() > 1) {
+                return "A";
+            }
+            first.get().cancel();//ImageView被复用，请求放弃加载
+            cancelledWhenFetched.add(call.isCancelled());
+            flights.join("a", recorder(rebound), pending::add, c -> "unused");//结束前格子又绑定回这张图片
+            return null;
+        }));
+
+        runPending();
+        assertTrue(cancelledWhenFetched.get(0));
+        assertEquals(0, rebound.size());//不会收到null
+        assertEquals(1, pending.size());//请求被重新提交
+        assertTrue(flights.isInFlight("a"));
+
+        runPending();
+        assertEquals(2, fetches.get());
+        assertEquals(1, rebound.size());
+        assertEquals("A", rebound.get(0));
+        assertEquals(1, delivered.get());
+        assertFalse(flights.isInFlight("a"));
+    }
+
+    @Test
+    public void streamAbortsAtNextReadOnceEveryConsumerCancelled() {
+        final List<Long> readBeforeAbort = new ArrayList<>();
+        final AtomicReference<SingleFlight<String, String>.Subscription> holder = new AtomicReference<>();
+        holder.set(flights.join("a", recorder(new ArrayList<>()), pending::add, call -> {
+            CancellableInputStream in = new CancellableInputStream(new ByteArrayInputStream(new byte[4096]), call);
+            byte[] buffer = new byte[1024];
+            try {
+                while (in.read(buffer, 0, buffer.length) != -1) {
+                    holder.get().cancel();//读完第一块后ImageView被回收
+                }
+            } catch (InterruptedIOException e) {
+                readBeforeAbort.add(in.getBytesRead());
+            }
+            assertTrue(in.isAborted());
+            return null;
+        }));
+
+        runPending();
+        assertEquals(1, readBeforeAbort.size());
+        assertEquals(1024L, (long) readBeforeAbort.get(0));
+    }
+
+    @Test
+    public void everyConsumerIsNotifiedExactlyOnceUnderContention() throws Exception {
+        final int threads = 8;
+        final int joinsPerThread = 2000;
+        final AtomicInteger notified = new AtomicInteger();
+        final HttpCallBackListener<String> counter = new HttpCallBackListener<String>() {
+            @Override
+            public void onFinish(String response) {
+                notified.incrementAndGet();
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Thread[] joiners = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            joiners[t] = new Thread(() -> {
+                for (int i = 0; i < joinsPerThread; i++) {
+                    flights.join("k" + (i + seed) % 16, counter, executor, call -> "v" + fetches.incrementAndGet());
+                }
+            });
+            joiners[t].start();
+        }
+        for (Thread joiner : joiners) {
+            joiner.join();
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(threads * joinsPerThread, notified.get());//请求结束时加入的调用者会发起新的请求，不会丢失
+        assertEquals(fetches.get(), delivered.get());
+        assertEquals(0, flights.getInFlightCount());
+        assertEquals(0, flights.getQueuedCount());
+    }
+
+    private void runPending() {
+        List<Runnable> tasks = new ArrayList<>(pending);
+        pending.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private static HttpCallBackListener<String> recorder(final List<String> results) {
+        return new HttpCallBackListener<String>() {
+            @Override
+            public void onFinish(String response) {
+                results.add(response);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                results.add("error: " + e);
+            }
+        };
+    }
+
+    private static int countOf(List<String> results, String value) {
+        int count = 0;
+        for (String result : results) {
+            if (value.equals(result)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}